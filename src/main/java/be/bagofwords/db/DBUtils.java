@@ -43,4 +43,31 @@ public class DBUtils {
             }
         }
     }
+
+    /**
+     * Same as {@link #mergeValues(List, List, Combinator)} for values whose keys are in a separate array. The keys are
+     * sorted with a {@link RadixSort} and only the merged values are wrapped in a KeyValue.
+     */
+
+    public static <T> void mergeValues(List<KeyValue<T>> mergedValuesList, long[] keys, List<T> values, Combinator<T> combinator) {
+        int[] order = RadixSort.sortedOrder(keys, values.size());
+        int i = 0;
+        while (i < order.length) {
+            long currKey = keys[order[i]];
+            T currVal = values.get(order[i]);
+            i++;
+            while (i < order.length && keys[order[i]] == currKey) {
+                T nextVal = values.get(order[i]);
+                if (currVal == null || nextVal == null) {
+                    currVal = nextVal;
+                } else {
+                    currVal = combinator.combine(currVal, nextVal);
+                }
+                i++;
+            }
+            if (currVal != null) {
+                mergedValuesList.add(new KeyValue<>(currKey, currVal));
+            }
+        }
+    }
 }
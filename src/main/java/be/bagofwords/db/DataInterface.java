@@ -269,6 +269,15 @@ public abstract class DataInterface<T extends Object> implements DataIterable<Ke
         }
     }
 
+    /**
+     * Writes entries that are sorted by key (a key can occur more than once). Subclasses that store their values sorted
+     * can write these entries directly to their final location, by default they are written like any other entries.
+     */
+
+    public void bulkLoad(Iterator<KeyValue<T>> sortedEntries) {
+        write(sortedEntries);
+    }
+
     /**
      * This method can be overwritten in a subclass to improve efficiency
      */
@@ -12,10 +12,12 @@ import be.bagofwords.db.combinator.Combinator;
 import be.bagofwords.db.combinator.LongCombinator;
 import be.bagofwords.db.combinator.OverWriteCombinator;
 import be.bagofwords.db.memory.InMemoryDataInterface;
+import be.bagofwords.util.KeyValue;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 public abstract class DataInterfaceFactory implements LateCloseableComponent {
@@ -56,6 +58,16 @@ public abstract class DataInterfaceFactory implements LateCloseableComponent {
         return createDataInterface(cachingType, subset, objectClass, combinator, false);
     }
 
+    /**
+     * Creates a data interface and loads the given entries, which should be sorted by key
+     */
+
+    public <T extends Object> DataInterface<T> bulkLoad(String subset, Class<T> objectClass, Combinator<T> combinator, Iterator<KeyValue<T>> sortedEntries) {
+        DataInterface<T> result = createDataInterface(subset, objectClass, combinator);
+        result.bulkLoad(sortedEntries);
+        return result;
+    }
+
     public DataInterface<Long> createInMemoryCountDataInterface(String name) {
         return createInMemoryDataInterface(DatabaseCachingType.CACHED, name, Long.class, new LongCombinator());
     }
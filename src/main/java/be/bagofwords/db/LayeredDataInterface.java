@@ -59,6 +59,10 @@ public abstract class LayeredDataInterface<T> extends DataInterface<T> {
         baseInterface.write(entries);
     }
 
+    public void bulkLoad(Iterator<KeyValue<T>> sortedEntries) {
+        baseInterface.bulkLoad(sortedEntries);
+    }
+
     public CloseableIterator<KeyValue<T>> iterator(final Iterator<Long> keyIterator) {
         return baseInterface.iterator(keyIterator);
     }
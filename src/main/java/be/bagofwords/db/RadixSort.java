@@ -0,0 +1,128 @@
+package be.bagofwords.db;
+
+/**
+ * Stable LSD radix sort of (signed) long keys, used to sort the values of a file when it is rewritten. Keys are sorted
+ * one byte at a time, starting with the least significant byte. A byte that is the same for all keys (for example the
+ * first bytes of the keys in one file bucket) is skipped.
+ */
+
+public class RadixSort {
+
+    private static final int INSERTION_SORT_THRESHOLD = 64;
+    private static final int BITS_PER_DIGIT = 8;
+    private static final int NUM_OF_DIGITS = 64 / BITS_PER_DIGIT;
+    private static final int DIGIT_MASK = (1 << BITS_PER_DIGIT) - 1;
+
+    /**
+     * Sorts keys[from, to) and moves the values at the same positions along with their keys. Values with the same key
+     * stay in the same order.
+     *
+     * @param scratchKeys   scratch space of at least to - from longs
+     * @param scratchValues scratch space of at least to - from longs
+     */
+
+    public static void sort(long[] keys, long[] values, int from, int to, long[] scratchKeys, long[] scratchValues) {
+        int size = to - from;
+        if (size <= INSERTION_SORT_THRESHOLD) {
+            insertionSort(keys, values, from, to);
+            return;
+        }
+        int[][] counts = countDigits(keys, from, to);
+        long[] sourceKeys = keys;
+        long[] sourceValues = values;
+        int sourceOffset = from;
+        long[] targetKeys = scratchKeys;
+        long[] targetValues = scratchValues;
+        int targetOffset = 0;
+        for (int digit = 0; digit < NUM_OF_DIGITS; digit++) {
+            int[] countsOfDigit = counts[digit];
+            if (countsOfDigit[getDigit(sourceKeys[sourceOffset], digit)] == size) {
+                continue; //all keys have the same value for this digit
+            }
+            int[] positions = toStartPositions(countsOfDigit, targetOffset);
+            for (int i = sourceOffset; i < sourceOffset + size; i++) {
+                int position = positions[getDigit(sourceKeys[i], digit)]++;
+                targetKeys[position] = sourceKeys[i];
+                targetValues[position] = sourceValues[i];
+            }
+            long[] tmpKeys = sourceKeys;
+            long[] tmpValues = sourceValues;
+            int tmpOffset = sourceOffset;
+            sourceKeys = targetKeys;
+            sourceValues = targetValues;
+            sourceOffset = targetOffset;
+            targetKeys = tmpKeys;
+            targetValues = tmpValues;
+            targetOffset = tmpOffset;
+        }
+        if (sourceKeys != keys) {
+            System.arraycopy(sourceKeys, sourceOffset, keys, from, size);
+            System.arraycopy(sourceValues, sourceOffset, values, from, size);
+        }
+    }
+
+    /**
+     * Returns the positions of keys[0, size) in sorted order. Positions of equal keys stay in increasing order.
+     */
+
+    public static int[] sortedOrder(long[] keys, int size) {
+        long[] sortedKeys = new long[size];
+        System.arraycopy(keys, 0, sortedKeys, 0, size);
+        long[] positions = new long[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = i;
+        }
+        sort(sortedKeys, positions, 0, size, new long[size], new long[size]);
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = (int) positions[i];
+        }
+        return result;
+    }
+
+    /**
+     * Counts the occurrences of every value of every digit in a single pass over the keys
+     */
+
+    private static int[][] countDigits(long[] keys, int from, int to) {
+        int[][] counts = new int[NUM_OF_DIGITS][DIGIT_MASK + 1];
+        for (int i = from; i < to; i++) {
+            long key = keys[i];
+            for (int digit = 0; digit < NUM_OF_DIGITS; digit++) {
+                counts[digit][getDigit(key, digit)]++;
+            }
+        }
+        return counts;
+    }
+
+    private static int[] toStartPositions(int[] counts, int offset) {
+        int[] positions = new int[counts.length];
+        int position = offset;
+        for (int i = 0; i < counts.length; i++) {
+            positions[i] = position;
+            position += counts[i];
+        }
+        return positions;
+    }
+
+    private static int getDigit(long key, int digit) {
+        //flip the sign bit so negative keys are sorted before positive keys
+        return (int) ((key ^ Long.MIN_VALUE) >>> (digit * BITS_PER_DIGIT)) & DIGIT_MASK;
+    }
+
+    private static void insertionSort(long[] keys, long[] values, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            long key = keys[i];
+            long value = values[i];
+            int j = i - 1;
+            while (j >= from && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+}
@@ -95,7 +95,16 @@ public class BloomFilterDataInterface<T extends Object> extends LayeredDataInter
 
     @Override
     public void write(final Iterator<KeyValue<T>> keyValueIterator) {
-        baseInterface.write(new Iterator<KeyValue<T>>() {
+        baseInterface.write(updateFilter(keyValueIterator));
+    }
+
+    @Override
+    public void bulkLoad(Iterator<KeyValue<T>> sortedEntries) {
+        baseInterface.bulkLoad(updateFilter(sortedEntries));
+    }
+
+    private Iterator<KeyValue<T>> updateFilter(final Iterator<KeyValue<T>> keyValueIterator) {
+        return new Iterator<KeyValue<T>>() {
             @Override
             public boolean hasNext() {
                 return keyValueIterator.hasNext();
@@ -112,7 +121,7 @@ public class BloomFilterDataInterface<T extends Object> extends LayeredDataInter
             public void remove() {
                 keyValueIterator.remove();
             }
-        });
+        };
     }
 
     @Override
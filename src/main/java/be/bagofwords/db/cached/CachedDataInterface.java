@@ -149,6 +149,15 @@ public class CachedDataInterface<T extends Object> extends LayeredDataInterface<
         }
     }
 
+    @Override
+    public void bulkLoad(Iterator<KeyValue<T>> sortedEntries) {
+        //write buffered values first, they are older than the loaded entries
+        flush();
+        baseInterface.bulkLoad(sortedEntries);
+        readCacheDirty = true;
+        cleanDirtyReadCache();
+    }
+
     @Override
     public synchronized void doCloseImpl() {
         try {
@@ -1,9 +1,14 @@
 package be.bagofwords.db.combinator;
 
-public class DoubleCombinator implements Combinator<Double> {
+public class DoubleCombinator implements PrimitiveCombinator<Double> {
 
     @Override
-    public Double combine(Double first, Double second) {
+    public final Double combine(Double first, Double second) {
         return first + second;
     }
+
+    @Override
+    public final long combinePrimitive(long first, long second) {
+        return Double.doubleToLongBits(Double.longBitsToDouble(first) + Double.longBitsToDouble(second));
+    }
 }
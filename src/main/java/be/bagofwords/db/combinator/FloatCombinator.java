@@ -1,9 +1,14 @@
 package be.bagofwords.db.combinator;
 
-public class FloatCombinator implements Combinator<Float> {
+public class FloatCombinator implements PrimitiveCombinator<Float> {
 
     @Override
-    public Float combine(Float first, Float second) {
+    public final Float combine(Float first, Float second) {
         return first + second;
     }
+
+    @Override
+    public final long combinePrimitive(long first, long second) {
+        return Float.floatToIntBits(Float.intBitsToFloat((int) first) + Float.intBitsToFloat((int) second));
+    }
 }
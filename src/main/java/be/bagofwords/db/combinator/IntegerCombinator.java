@@ -1,9 +1,14 @@
 package be.bagofwords.db.combinator;
 
-public class IntegerCombinator implements Combinator<Integer> {
+public class IntegerCombinator implements PrimitiveCombinator<Integer> {
 
     @Override
-    public Integer combine(Integer first, Integer second) {
+    public final Integer combine(Integer first, Integer second) {
         return first + second;
     }
+
+    @Override
+    public final long combinePrimitive(long first, long second) {
+        return (int) first + (int) second;
+    }
 }
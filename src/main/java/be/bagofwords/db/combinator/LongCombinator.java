@@ -1,9 +1,14 @@
 package be.bagofwords.db.combinator;
 
-public class LongCombinator implements Combinator<Long> {
+public class LongCombinator implements PrimitiveCombinator<Long> {
 
     @Override
-    public Long combine(Long first, Long second) {
+    public final Long combine(Long first, Long second) {
+        return first + second;
+    }
+
+    @Override
+    public final long combinePrimitive(long first, long second) {
         return first + second;
     }
 }
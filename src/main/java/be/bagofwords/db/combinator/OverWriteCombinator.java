@@ -1,9 +1,14 @@
 package be.bagofwords.db.combinator;
 
-public class OverWriteCombinator<T> implements Combinator<T> {
+public class OverWriteCombinator<T> implements PrimitiveCombinator<T> {
 
     @Override
     public T combine(T first, T second) {
         return second;
     }
+
+    @Override
+    public long combinePrimitive(long first, long second) {
+        return second;
+    }
 }
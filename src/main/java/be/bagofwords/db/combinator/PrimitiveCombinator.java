@@ -0,0 +1,13 @@
+package be.bagofwords.db.combinator;
+
+/**
+ * Combinator for values of type Long, Double, Integer or Float that can also combine these values without boxing them.
+ * The values are passed in their serialized form: the value itself for longs and integers and the result of
+ * {@link Double#doubleToLongBits(double)} or {@link Float#floatToIntBits(float)} for doubles and floats.
+ */
+
+public interface PrimitiveCombinator<T extends Object> extends Combinator<T> {
+
+    long combinePrimitive(long first, long second);
+
+}
@@ -0,0 +1,79 @@
+package be.bagofwords.db.filedb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Long-lived channel to append values to one file. Appended bytes are buffered in memory and written to the file when
+ * the buffer is full or when {@link #flush()} is called. Bytes that are not yet flushed can only be read from the file
+ * after flushing this channel.
+ */
+
+class AppendChannel {
+
+    private final File file;
+    private final byte[] buffer;
+    private int bufferedBytes;
+    private final FileChannel channel;
+    private boolean closed;
+
+    public AppendChannel(File file, int bufferSize) throws IOException {
+        this.file = file;
+        this.buffer = new byte[bufferSize];
+        this.bufferedBytes = 0;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.closed = false;
+    }
+
+    /**
+     * @return false if this channel was already closed, the bytes were not written in that case
+     */
+
+    public synchronized boolean append(byte[] bytes) throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (bufferedBytes + bytes.length > buffer.length) {
+            flush();
+        }
+        if (bytes.length > buffer.length) {
+            writeFully(ByteBuffer.wrap(bytes));
+        } else {
+            System.arraycopy(bytes, 0, buffer, bufferedBytes, bytes.length);
+            bufferedBytes += bytes.length;
+        }
+        return true;
+    }
+
+    public synchronized void flush() throws IOException {
+        if (bufferedBytes > 0) {
+            writeFully(ByteBuffer.wrap(buffer, 0, bufferedBytes));
+            bufferedBytes = 0;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    public String toString() {
+        return super.toString() + " " + file.getAbsolutePath() + " " + bufferedBytes;
+    }
+
+}
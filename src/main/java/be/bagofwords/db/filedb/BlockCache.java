@@ -0,0 +1,203 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.application.memory.MemoryGobbler;
+import be.bagofwords.application.memory.MemoryManager;
+import be.bagofwords.application.memory.MemoryStatus;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the (uncompressed) blocks of files, shared by all file data interfaces and bounded in bytes. Blocks are
+ * evicted with the CLOCK algorithm: a block that was read since the clock hand last passed it gets a second chance, so
+ * the blocks that are read often survive when the cache needs to make room or when memory is low.
+ */
+
+public class BlockCache implements MemoryGobbler {
+
+    private final MemoryManager memoryManager;
+    private final long maxSize;
+    private final Map<BlockKey, CachedBlock> blocks;
+    private final Map<FileInfo, Set<CachedBlock>> blocksOfFiles; //guarded by this
+    private CachedBlock hand; //guarded by this, the cached blocks form a circular list and the hand points to the next block to evict
+    private long currentSize; //guarded by this
+
+    public BlockCache(MemoryManager memoryManager, long maxSize) {
+        this.memoryManager = memoryManager;
+        this.maxSize = maxSize;
+        this.blocks = new ConcurrentHashMap<>();
+        this.blocksOfFiles = new IdentityHashMap<>();
+        this.currentSize = 0;
+    }
+
+    /**
+     * Returns the cached block of the file that starts at the given position, or null if that block is not cached
+     */
+
+    ByteBuffer get(FileInfo file, int position) {
+        CachedBlock block = blocks.get(new BlockKey(file, position));
+        if (block == null) {
+            return null;
+        }
+        block.referenced = true;
+        return ByteBuffer.wrap(block.contents);
+    }
+
+    /**
+     * Adds a block to the cache. When memory is not free, the cache makes room for more than this block, so it gradually
+     * shrinks while memory stays low.
+     */
+
+    synchronized void put(FileInfo file, int position, byte[] contents) {
+        MemoryStatus memoryStatus = memoryManager.getMemoryStatus();
+        if (contents.length > maxSize || memoryStatus == MemoryStatus.CRITICAL) {
+            return;
+        }
+        BlockKey key = new BlockKey(file, position);
+        if (blocks.containsKey(key)) {
+            return;
+        }
+        long bytesToEvict = currentSize + contents.length - maxSize;
+        if (memoryStatus != MemoryStatus.FREE) {
+            bytesToEvict = Math.max(bytesToEvict, 2L * contents.length);
+        }
+        if (bytesToEvict > 0) {
+            evict(bytesToEvict);
+        }
+        CachedBlock block = new CachedBlock(key, contents);
+        blocks.put(key, block);
+        blocksOfFiles.computeIfAbsent(file, f -> new HashSet<>()).add(block);
+        link(block);
+        currentSize += contents.length;
+    }
+
+    /**
+     * Removes all blocks of this file, for example because it was rewritten or deleted
+     */
+
+    synchronized void removeBlocks(FileInfo file) {
+        Set<CachedBlock> blocksOfFile = blocksOfFiles.remove(file);
+        if (blocksOfFile != null) {
+            for (CachedBlock block : blocksOfFile) {
+                remove(block);
+            }
+        }
+    }
+
+    private long evict(long bytesToEvict) {
+        long bytesReleased = 0;
+        while (bytesReleased < bytesToEvict && hand != null) {
+            CachedBlock block = hand;
+            if (block.referenced) {
+                //second chance
+                block.referenced = false;
+                hand = block.next;
+            } else {
+                Set<CachedBlock> blocksOfFile = blocksOfFiles.get(block.key.file);
+                blocksOfFile.remove(block);
+                if (blocksOfFile.isEmpty()) {
+                    blocksOfFiles.remove(block.key.file);
+                }
+                remove(block);
+                bytesReleased += block.contents.length;
+            }
+        }
+        return bytesReleased;
+    }
+
+    private void remove(CachedBlock block) {
+        blocks.remove(block.key);
+        unlink(block);
+        currentSize -= block.contents.length;
+    }
+
+    /**
+     * New blocks are added just before the hand, so they are the last blocks the hand passes
+     */
+
+    private void link(CachedBlock block) {
+        if (hand == null) {
+            block.previous = block;
+            block.next = block;
+            hand = block;
+        } else {
+            block.previous = hand.previous;
+            block.next = hand;
+            hand.previous.next = block;
+            hand.previous = block;
+        }
+    }
+
+    private void unlink(CachedBlock block) {
+        if (block.next == block) {
+            hand = null;
+        } else {
+            block.previous.next = block.next;
+            block.next.previous = block.previous;
+            if (hand == block) {
+                hand = block.next;
+            }
+        }
+        block.previous = null;
+        block.next = null;
+    }
+
+    /**
+     * Only releases half of the cache, the blocks that were read recently are kept.
+     */
+
+    @Override
+    public synchronized long freeMemory() {
+        return evict(currentSize / 2);
+    }
+
+    @Override
+    public synchronized long getMemoryUsage() {
+        return currentSize;
+    }
+
+    private static class BlockKey {
+        private final FileInfo file;
+        private final int position;
+
+        private BlockKey(FileInfo file, int position) {
+            this.file = file;
+            this.position = position;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BlockKey)) {
+                return false;
+            }
+            BlockKey other = (BlockKey) o;
+            return file == other.file && position == other.position;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(file) + position;
+        }
+    }
+
+    private static class CachedBlock {
+        private final BlockKey key;
+        private final byte[] contents;
+        private volatile boolean referenced;
+        private CachedBlock previous; //guarded by the cache
+        private CachedBlock next; //guarded by the cache
+
+        private CachedBlock(BlockKey key, byte[] contents) {
+            this.key = key;
+            this.contents = contents;
+        }
+    }
+
+}
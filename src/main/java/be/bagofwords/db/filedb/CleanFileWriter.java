@@ -0,0 +1,246 @@
+package be.bagofwords.db.filedb;
+
+import org.xerial.snappy.Snappy;
+
+import java.io.*;
+
+/**
+ * Writes the sorted values of a clean file and builds its index. Files in the plain format are a sequence of keys and
+ * values. Files in another format start with a header (see {@link #FILE_HEADER_SIZE}) and can
+ * <ul>
+ * <li>store their keys delta encoded: every key is written as the (unsigned varint) difference with the previous key.
+ * A difference of 0 marks a restart and is followed by the complete key. There is a restart at the start of every block
+ * of the index, so every block can be decoded on its own.</li>
+ * <li>be compressed: the values are written in independently compressed blocks of approximately blockSize
+ * (uncompressed) bytes. Every block is written as its compressed length followed by the snappy compressed values, and
+ * is one entry of the index.</li>
+ * </ul>
+ */
+
+class CleanFileWriter {
+
+    /**
+     * The header consists of a key that can never be stored in this file (so plain files and files with a header can
+     * be distinguished by their first 8 bytes), the format flags and the size of the clean part of the file.
+     */
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int FLAG_COMPRESSED = 1;
+    public static final int FLAG_DELTA_ENCODED = 2;
+
+    private final File file;
+    private final DataOutputStream dos;
+    private final FileIndexBuilder index;
+    private final boolean compressed;
+    private final boolean deltaEncoded;
+    private final int blockSize;
+    private final BlockBuffer currentBlock;
+    private final DataOutputStream currentBlockOutputStream;
+    private byte[] compressedBlock;
+    private long firstKeyOfBlock;
+    private long lastKey;
+    private int size;
+    private int numOfValues;
+
+    /**
+     * @param index can be null if the file does not need an index (only for plain files)
+     */
+
+    public CleanFileWriter(File file, FileIndexBuilder index, boolean compressed, boolean deltaEncoded, int blockSize, long firstKeyOfFile) throws IOException {
+        if ((compressed || deltaEncoded) && index == null) {
+            throw new IllegalArgumentException("Compressed or delta encoded files always need an index");
+        }
+        this.file = file;
+        this.dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+        this.index = index;
+        this.compressed = compressed;
+        this.deltaEncoded = deltaEncoded;
+        this.blockSize = blockSize;
+        if (compressed) {
+            this.currentBlock = new BlockBuffer(blockSize * 2);
+            this.currentBlockOutputStream = new DataOutputStream(currentBlock);
+            this.compressedBlock = new byte[Snappy.maxCompressedLength(blockSize * 2)];
+        } else {
+            this.currentBlock = null;
+            this.currentBlockOutputStream = null;
+            this.compressedBlock = null;
+        }
+        if (hasHeader()) {
+            dos.writeLong(fileHeaderKey(firstKeyOfFile));
+            dos.writeInt(getFlags(compressed, deltaEncoded));
+            dos.writeInt(0); //size of the clean part, is filled in when the file is closed
+            size = FILE_HEADER_SIZE;
+        }
+    }
+
+    public static long fileHeaderKey(long firstKeyOfFile) {
+        return firstKeyOfFile - 1;
+    }
+
+    public static int getFlags(boolean compressed, boolean deltaEncoded) {
+        return (compressed ? FLAG_COMPRESSED : 0) | (deltaEncoded ? FLAG_DELTA_ENCODED : 0);
+    }
+
+    /**
+     * @param value       the serialized value
+     * @param writeLength true for values with variable width, the length of the value is then written first
+     */
+
+    public void write(long key, byte[] value, boolean writeLength) throws IOException {
+        DataOutputStream out = startRecord(key);
+        if (writeLength) {
+            out.writeInt(value.length);
+        }
+        out.write(value);
+        endRecord(key, writeLength ? 4 + value.length : value.length);
+    }
+
+    /**
+     * Writes a value of type Long, Double, Integer or Float in its serialized form (see
+     * {@link be.bagofwords.db.combinator.PrimitiveCombinator}), without converting it to a byte array first.
+     *
+     * @param width the width of the serialized values, 4 or 8
+     */
+
+    public void write(long key, long value, int width) throws IOException {
+        DataOutputStream out = startRecord(key);
+        if (width == 8) {
+            out.writeLong(value);
+        } else {
+            out.writeInt((int) value);
+        }
+        endRecord(key, width);
+    }
+
+    /**
+     * (Approximate) size of the file if it would be closed now
+     */
+
+    public int getSize() {
+        return compressed ? size + currentBlock.size() : size;
+    }
+
+    public FileIndexBuilder getIndex() {
+        return index;
+    }
+
+    public int getNumOfValues() {
+        return numOfValues;
+    }
+
+    /**
+     * Closes the file and returns its final size
+     */
+
+    public int close() throws IOException {
+        if (compressed && currentBlock.size() > 0) {
+            writeCurrentBlock();
+        }
+        dos.close();
+        if (hasHeader()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(FILE_HEADER_SIZE - 4);
+                raf.writeInt(size);
+            }
+        }
+        return size;
+    }
+
+    private boolean hasHeader() {
+        return compressed || deltaEncoded;
+    }
+
+    /**
+     * Writes the key of a new record and returns the stream to write its value to
+     */
+
+    private DataOutputStream startRecord(long key) throws IOException {
+        if (compressed) {
+            if (currentBlock.size() >= blockSize) {
+                writeCurrentBlock();
+            }
+            boolean startOfBlock = currentBlock.size() == 0;
+            if (startOfBlock) {
+                firstKeyOfBlock = key;
+            }
+            writeKey(currentBlockOutputStream, key, startOfBlock);
+            return currentBlockOutputStream;
+        } else {
+            boolean startOfBlock = index != null && index.addEntry(key, size);
+            size += writeKey(dos, key, startOfBlock);
+            return dos;
+        }
+    }
+
+    private void endRecord(long key, int lengthOfValue) {
+        if (!compressed) {
+            size += lengthOfValue;
+        }
+        lastKey = key;
+        numOfValues++;
+    }
+
+    private int writeKey(DataOutputStream dos, long key, boolean startOfBlock) throws IOException {
+        if (!deltaEncoded) {
+            dos.writeLong(key);
+            return 8;
+        } else if (startOfBlock) {
+            dos.writeByte(0); //restart
+            dos.writeLong(key);
+            return 9;
+        } else {
+            return writeUnsignedVarLong(dos, key - lastKey);
+        }
+    }
+
+    private void writeCurrentBlock() throws IOException {
+        index.addBlock(firstKeyOfBlock, lastKey, size);
+        //compress into a buffer that is reused for all blocks of this file
+        int maxCompressedLength = Snappy.maxCompressedLength(currentBlock.size());
+        if (compressedBlock.length < maxCompressedLength) {
+            compressedBlock = new byte[maxCompressedLength];
+        }
+        int compressedLength = Snappy.compress(currentBlock.getBuffer(), 0, currentBlock.size(), compressedBlock, 0);
+        dos.writeInt(compressedLength);
+        dos.write(compressedBlock, 0, compressedLength);
+        size += 4 + compressedLength;
+        currentBlock.reset();
+    }
+
+    /**
+     * Writes one compressed block and returns the number of bytes written
+     */
+
+    public static int writeCompressedBlock(DataOutputStream dos, byte[] keysAndValues) throws IOException {
+        byte[] compressedBlock = Snappy.compress(keysAndValues);
+        dos.writeInt(compressedBlock.length);
+        dos.write(compressedBlock);
+        return 4 + compressedBlock.length;
+    }
+
+    private static int writeUnsignedVarLong(DataOutputStream dos, long value) throws IOException {
+        int bytesWritten = 1;
+        while ((value & ~0x7FL) != 0) {
+            dos.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            bytesWritten++;
+        }
+        dos.writeByte((int) value);
+        return bytesWritten;
+    }
+
+    /**
+     * Gives access to the bytes of the current block without copying them
+     */
+
+    private static class BlockBuffer extends ByteArrayOutputStream {
+
+        private BlockBuffer(int size) {
+            super(size);
+        }
+
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+}
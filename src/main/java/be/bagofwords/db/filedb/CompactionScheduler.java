@@ -0,0 +1,161 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.ui.UI;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the compactions (rewrites of dirty files) of all file data interfaces on a dedicated thread pool of bounded size,
+ * so they do not compete with other work on the common fork-join pool. Waiting compactions run in order of their
+ * priority. Background compactions share a budget of bytes per second (read plus written), so they leave room for
+ * foreground reads and writes. Urgent compactions run on a second pool, so a thread of the first pool can wait for them
+ * without deadlocking.
+ */
+
+public class CompactionScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor urgentExecutor;
+    private final RateLimiter rateLimiter; //null if the bytes per second are not limited
+    private final Set<Object> scheduledCompactions; //compactions that are waiting or running
+    private final AtomicLong sequenceNumbers;
+
+    /**
+     * @param maxBytesPerSecond budget of background compactions, 0 for no limit
+     */
+
+    public CompactionScheduler(int numOfThreads, long maxBytesPerSecond) {
+        if (numOfThreads < 1) {
+            throw new IllegalArgumentException("Need at least one compaction thread, got " + numOfThreads);
+        }
+        if (maxBytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid number of bytes per second " + maxBytesPerSecond);
+        }
+        this.executor = new ThreadPoolExecutor(numOfThreads, numOfThreads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), createThreadFactory("compaction-"));
+        this.urgentExecutor = new ThreadPoolExecutor(numOfThreads, numOfThreads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), createThreadFactory("urgent-compaction-"));
+        this.rateLimiter = maxBytesPerSecond > 0 ? RateLimiter.create(maxBytesPerSecond) : null;
+        this.scheduledCompactions = ConcurrentHashMap.newKeySet();
+        this.sequenceNumbers = new AtomicLong(0);
+    }
+
+    private static ThreadFactory createThreadFactory(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Schedules a background compaction, unless a compaction with the same key is already waiting or running
+     *
+     * @param key      identifies the compaction, for example the bucket that will be compacted
+     * @param priority compactions with a higher priority run first
+     */
+
+    void schedule(Object key, double priority, Runnable compaction) {
+        if (scheduledCompactions.add(key)) {
+            try {
+                executor.execute(new Compaction(priority, sequenceNumbers.getAndIncrement(), () -> {
+                    try {
+                        compaction.run();
+                    } finally {
+                        scheduledCompactions.remove(key);
+                    }
+                }));
+            } catch (RejectedExecutionException exp) {
+                scheduledCompactions.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Runs a compaction without waiting for the background compactions. The returned future can be used to wait for its
+     * completion.
+     */
+
+    Future<?> submitUrgent(Runnable compaction) {
+        FutureTask<Void> task = new FutureTask<>(compaction, null);
+        urgentExecutor.execute(new Compaction(Double.POSITIVE_INFINITY, sequenceNumbers.getAndIncrement(), task));
+        return task;
+    }
+
+    /**
+     * Blocks until the budget allows a background compaction to read or write this number of bytes
+     */
+
+    void acquireBytes(long bytes) {
+        if (rateLimiter != null && bytes > 0) {
+            rateLimiter.acquire((int) Math.min(Integer.MAX_VALUE, bytes));
+        }
+    }
+
+    /**
+     * Number of compactions that are waiting or running (urgent compactions are not counted)
+     */
+
+    public int getNumOfScheduledCompactions() {
+        return scheduledCompactions.size();
+    }
+
+    /**
+     * Cancels the compactions that are waiting and waits for the running compactions to finish
+     */
+
+    public void close() {
+        List<Runnable> waitingCompactions = new ArrayList<>();
+        executor.getQueue().drainTo(waitingCompactions);
+        urgentExecutor.getQueue().drainTo(waitingCompactions);
+        for (Runnable compaction : waitingCompactions) {
+            Runnable action = ((Compaction) compaction).action;
+            if (action instanceof Future) {
+                ((Future) action).cancel(false); //urgent compaction, do not let its caller wait forever
+            }
+        }
+        executor.shutdown();
+        urgentExecutor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES) || !urgentExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                UI.writeError("Compactions did not finish after one minute");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Compaction implements Runnable, Comparable<Compaction> {
+
+        private final double priority;
+        private final long sequenceNumber; //compactions with the same priority run in the order they were scheduled
+        private final Runnable action;
+
+        private Compaction(double priority, long sequenceNumber, Runnable action) {
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            try {
+                action.run();
+            } catch (Throwable t) {
+                UI.writeError("Unexpected exception while compacting files", t);
+            }
+        }
+
+        @Override
+        public int compareTo(Compaction other) {
+            int result = Double.compare(other.priority, priority);
+            return result != 0 ? result : Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+}
@@ -1,12 +1,23 @@
 package be.bagofwords.db.filedb;
 
 import be.bagofwords.ui.UI;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Range of keys whose files share one lock. Buckets are split and merged while the data interface is used (see
+ * {@link FileDataInterface}). A bucket that was split or merged is replaced by new buckets and should no longer be
+ * used, threads that locked it should look up the new bucket of their key.
+ */
 
 public class FileBucket implements Comparable<FileBucket> {
 
@@ -15,8 +26,18 @@ public class FileBucket implements Comparable<FileBucket> {
     private long firstKey; //inclusive
     private long lastKey; //inclusive
     private List<FileInfo> files;
-    private final ReadWriteLock lock;
+    private final ReentrantReadWriteLock lock;
+    private final StampedLock versions; //write locked while a thread holds the write lock, used to validate optimistic reads
+    private long writeStamp;
+    private final Lock rewriteLock; //only one thread at a time can rewrite the files of this bucket
     private boolean shouldBeCleanedBeforeRead;
+    private MemTable<?> memTable;
+    private MemTable<?> flushingMemTable;
+    private KeySketch keySketch;
+    private final AtomicInteger readsOfDirtyFiles;
+    private final LongAdder contendedLocks;
+    private volatile boolean replaced;
+    private final long timeOfCreation;
 
     public FileBucket(long firstKey, long lastKey) {
         this();
@@ -73,6 +94,9 @@ public class FileBucket implements Comparable<FileBucket> {
     }
 
     public void lockRead() {
+        if (lock.isWriteLocked()) {
+            contendedLocks.increment();
+        }
         lock.readLock().lock();
     }
 
@@ -81,17 +105,65 @@ public class FileBucket implements Comparable<FileBucket> {
     }
 
     public void lockWrite() {
+        if (lock.isWriteLocked() || lock.getReadLockCount() > 0) {
+            contendedLocks.increment();
+        }
         lock.writeLock().lock();
+        startNewVersion();
     }
 
     public boolean tryLockWrite() {
-        return lock.writeLock().tryLock();
+        if (lock.writeLock().tryLock()) {
+            startNewVersion();
+            return true;
+        } else {
+            return false;
+        }
     }
 
     public void unlockWrite() {
+        if (lock.getWriteHoldCount() == 1) {
+            versions.unlockWrite(writeStamp);
+        }
         lock.writeLock().unlock();
     }
 
+    private void startNewVersion() {
+        if (lock.getWriteHoldCount() == 1) {
+            writeStamp = versions.writeLock(); //never contended, only the holder of the write lock takes this lock
+        }
+    }
+
+    /**
+     * Returns a stamp to read this bucket without taking the read lock, or 0 if the bucket is locked for writing. The
+     * stamp should be validated after reading, any value that was read without the lock is only valid if
+     * {@link #validate(long)} returns true.
+     */
+
+    public long tryOptimisticRead() {
+        return versions.tryOptimisticRead();
+    }
+
+    /**
+     * True if this bucket was not locked for writing since the stamp was returned by {@link #tryOptimisticRead()}
+     */
+
+    public boolean validate(long stamp) {
+        return versions.validate(stamp);
+    }
+
+    public void lockRewrite() {
+        rewriteLock.lock();
+    }
+
+    public boolean tryLockRewrite() {
+        return rewriteLock.tryLock();
+    }
+
+    public void unlockRewrite() {
+        rewriteLock.unlock();
+    }
+
     public String toString() {
         return super.toString() + " " + firstKey;
     }
@@ -110,12 +182,112 @@ public class FileBucket implements Comparable<FileBucket> {
         this.shouldBeCleanedBeforeRead = shouldBeCleanedBeforeRead;
     }
 
+    /**
+     * Values that were written to this bucket but not yet to its files. Not stored in the meta file.
+     */
+
+    @JsonIgnore
+    public MemTable<?> getMemTable() {
+        return memTable;
+    }
+
+    @JsonIgnore
+    public void setMemTable(MemTable<?> memTable) {
+        this.memTable = memTable;
+    }
+
+    /**
+     * Mem table that is being merged with the files of this bucket, null if no mem table is being flushed. Its values
+     * are removed when the files that contain them are swapped in.
+     */
+
+    @JsonIgnore
+    public MemTable<?> getFlushingMemTable() {
+        return flushingMemTable;
+    }
+
+    @JsonIgnore
+    public void setFlushingMemTable(MemTable<?> flushingMemTable) {
+        this.flushingMemTable = flushingMemTable;
+    }
+
+    /**
+     * Sketch of the keys of the files and the mem tables of this bucket, null if unknown or if key sketches are disabled.
+     * Keys that were deleted since the bucket was last clean are still counted. Not stored in the meta file.
+     */
+
+    @JsonIgnore
+    public KeySketch getKeySketch() {
+        return keySketch;
+    }
+
+    @JsonIgnore
+    public void setKeySketch(KeySketch keySketch) {
+        this.keySketch = keySketch;
+    }
+
+    /**
+     * Number of reads of dirty files in this bucket since its last compaction, used to compact buckets that are read
+     * often first. Not stored in the meta file.
+     */
+
+    @JsonIgnore
+    public int getReadsOfDirtyFiles() {
+        return readsOfDirtyFiles.get();
+    }
+
+    public void dirtyFileWasRead() {
+        readsOfDirtyFiles.incrementAndGet();
+    }
+
+    public void resetReadsOfDirtyFiles() {
+        readsOfDirtyFiles.set(0);
+    }
+
+    /**
+     * Number of times a thread had to wait for the lock of this bucket since the last call of this method
+     */
+
+    public long countAndResetContendedLocks() {
+        return contendedLocks.sumThenReset();
+    }
+
+    /**
+     * True if this bucket was split or merged, its files are now in other buckets
+     */
+
+    @JsonIgnore
+    public boolean isReplaced() {
+        return replaced;
+    }
+
+    public void wasReplaced() {
+        this.replaced = true;
+        this.shouldBeCleanedBeforeRead = false; //the new buckets are cleaned instead
+    }
+
+    /**
+     * Time at which this bucket was created or read from the meta file
+     */
+
+    @JsonIgnore
+    public long getTimeOfCreation() {
+        return timeOfCreation;
+    }
+
     /**
      * Serialization:
      */
 
     public FileBucket() {
         this.lock = new ReentrantReadWriteLock();
+        this.versions = new StampedLock();
+        this.rewriteLock = new ReentrantLock();
+        this.memTable = new MemTable<>();
+        this.readsOfDirtyFiles = new AtomicInteger(0);
+        this.contendedLocks = new LongAdder();
+        this.replaced = false;
+        this.timeOfCreation = System.currentTimeMillis();
     }
 
     public void setFiles(List<FileInfo> files) {
@@ -6,7 +6,9 @@ import be.bagofwords.application.memory.MemoryManager;
 import be.bagofwords.application.memory.MemoryStatus;
 import be.bagofwords.db.CoreDataInterface;
 import be.bagofwords.db.DBUtils;
+import be.bagofwords.db.bloomfilter.LongBloomFilter;
 import be.bagofwords.db.combinator.Combinator;
+import be.bagofwords.db.combinator.PrimitiveCombinator;
 import be.bagofwords.iterator.CloseableIterator;
 import be.bagofwords.iterator.IterableUtils;
 import be.bagofwords.iterator.SimpleIterator;
@@ -15,13 +17,26 @@ import be.bagofwords.util.KeyValue;
 import be.bagofwords.util.MappedLists;
 import be.bagofwords.util.Pair;
 import be.bagofwords.util.SerializationUtils;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.mutable.MutableLong;
+import org.xerial.snappy.Snappy;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Collectors;
 
 public class FileDataInterface<T extends Object> extends CoreDataInterface<T> implements MemoryGobbler {
@@ -31,98 +46,178 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     private static final long BITS_TO_DISCARD_FOR_FILE_BUCKETS = 58;
     private static final int BATCH_SIZE_PRIMITIVE_VALUES = 100000;
     private static final int BATCH_SIZE_NON_PRIMITIVE_VALUES = 100;
+    private static final int CONTENDED_LOCKS_TO_SPLIT = 100; //per run of the periodic task
+    private static final long MIN_AGE_OF_MERGED_BUCKETS = 60 * 1000; //buckets that were just split are not merged again
 
     private static final String META_FILE = "META_FILE";
     private static final String LOCK_FILE = "LOCK";
+    private static final String TEMP_FILE_PREFIX = "tmp.";
+    private static final String CHECKPOINT_FILE_PREFIX = "ckpt."; //version of a file in the last checkpoint
 
     private static final int LONG_SIZE = 8;
     private static final int INT_SIZE = 4;
+    private static final int MAX_APPEND_ATTEMPTS = 10;
+    private static final int OBJECT_HEADER_SIZE = 12;
+    private static final int BYTES_PER_OBJECT_IN_MEM_TABLE = 64;
 
     private MemoryManager memoryManager;
     private File directory;
-    private List<FileBucket> fileBuckets;
+    private volatile List<FileBucket> fileBuckets; //sorted, replaced by a new list when buckets are split or merged
     private final int sizeOfValues;
+    private final long primitiveNullValue; //serialized form of a delete, only used if values have a fixed width
     private final long randomId;
+    private final FileDataInterfaceSettings settings;
+    private final BlockCache blockCache;
+    private final CompactionScheduler compactionScheduler;
+    private final BowTaskScheduler taskScheduler;
+    private volatile boolean opened; //false until first use if the data interface is opened lazily
+    private final Object writeThreadsLock = new Object();
+    private ExecutorService[] writeThreads; //only created if values are written in parallel, guarded by writeThreadsLock
+    private final ReadWriteLock runningCompactionsLock; //background compactions hold the read lock, closing takes the write lock
+    private final Map<FileInfo, AppendChannel> appendChannels; //open channels in LRU order, guarded by itself
+    private final Map<FileInfo, AppendChannel> closingAppendChannels; //removed channels that are being closed, guarded by appendChannels
+    private final Queue<RewriteBuffers> rewriteBuffers; //reused by rewrites of primitive values
+    private WriteAheadLog writeAheadLog; //null if no write-ahead log is used
+    private final ReadWriteLock logLock; //writes and swaps of files hold the read lock, checkpoints take the write lock
+    private long checkpointSegment; //first segment of the write-ahead log after the last checkpoint
+    private final Set<File> filesToSync; //files that were changed since the last checkpoint, guarded by itself
+    private final List<File> preservedFiles; //versions of the last checkpoint of files that were replaced, guarded by itself
+    private final MetaFileJournal metaFileJournal;
 
     private final String sizeOfCachedFileContentsLock = new String("LOCK");
-    private final long maxSizeOfCachedFileContents;
-    private long currentSizeOfCachedFileContents;
+    private long currentSizeOfCachedFileContents; //values parsed from the dirty part of files
+    private long sizeOfBloomFilters; //guarded by sizeOfCachedFileContentsLock
 
     private long timeOfLastWrite;
     private long timeOfLastRead;
 
     private boolean metaFileOutOfSync;
 
-    public FileDataInterface(MemoryManager memoryManager, Combinator<T> combinator, Class<T> objectClass, String directory, String nameOfSubset, boolean isTemporaryDataInterface, BowTaskScheduler taskScheduler) {
+    public FileDataInterface(MemoryManager memoryManager, Combinator<T> combinator, Class<T> objectClass, String directory, String nameOfSubset, boolean isTemporaryDataInterface, BowTaskScheduler taskScheduler, FileDataInterfaceSettings settings, BlockCache blockCache, CompactionScheduler compactionScheduler) {
         super(nameOfSubset, objectClass, combinator, isTemporaryDataInterface);
         this.directory = new File(directory, nameOfSubset);
         this.sizeOfValues = SerializationUtils.getWidth(objectClass);
+        this.primitiveNullValue = sizeOfValues == -1 ? 0 : readPrimitiveValue(ByteBuffer.wrap(SerializationUtils.objectToBytesCheckForNull(null, objectClass)), 0);
         this.randomId = new Random().nextLong();
+        this.settings = settings;
         this.memoryManager = memoryManager;
-        this.maxSizeOfCachedFileContents = memoryManager.getAvailableMemoryInBytes() / 3;
+        this.blockCache = blockCache;
+        this.compactionScheduler = compactionScheduler;
+        this.taskScheduler = taskScheduler;
+        this.runningCompactionsLock = new ReentrantReadWriteLock();
+        this.appendChannels = new LinkedHashMap<>(16, 0.75f, true);
+        this.closingAppendChannels = new HashMap<>();
+        this.rewriteBuffers = new ConcurrentLinkedQueue<>();
+        this.logLock = new ReentrantReadWriteLock();
+        this.filesToSync = new HashSet<>();
+        this.preservedFiles = new ArrayList<>();
+        this.metaFileJournal = new MetaFileJournal(this.directory);
         timeOfLastRead = 0;
+        currentSizeOfCachedFileContents = 0;
+        if (!settings.lazyOpen()) {
+            ensureOpen();
+        }
+    }
+
+    /**
+     * Reads the meta information, checks the files and starts the periodic task. Called by the constructor, or by the
+     * first method that needs the files if the data interface is opened lazily.
+     */
+
+    private void ensureOpen() {
+        if (!opened) {
+            synchronized (this) {
+                if (!opened) {
+                    open();
+                    opened = true;
+                }
+            }
+        }
+    }
+
+    private void open() {
         checkDataDir();
+        //the lock file is removed when the data interface is closed, if it still exists the files might have changed after the meta information was written
+        boolean closedCleanly = !new File(directory, LOCK_FILE).exists();
         MetaFile metaFile = readMetaInfo();
-        initializeFiles(metaFile);
+        List<Long> logSegments = settings.useWriteAheadLog() ? WriteAheadLog.findSegments(this.directory) : Collections.emptyList();
+        if (metaFile != null && metaFile.getLogSegment() > 0) {
+            checkpointSegment = metaFile.getLogSegment();
+            restoreCheckpoint(metaFile, logSegments);
+        }
+        initializeFiles(metaFile, settings.lazyOpen() && closedCleanly);
+        initializeKeySketches();
         writeLockFile(randomId);
-        currentSizeOfCachedFileContents = 0;
+        if (settings.useWriteAheadLog()) {
+            openWriteAheadLog(logSegments);
+        }
+        //flushes what was written in the last second, adapts the buckets and schedules the compactions of dirty files
         taskScheduler.schedulePeriodicTask(() -> ifNotClosed(() -> {
-            rewriteAllFiles(false);
+            if (inReadPhase()) {
+                flushMemTables();
+            }
+            flushAppendChannels();
+            syncWriteAheadLog();
+            updateBucketLayout();
+            scheduleCompactions();
+            if (metaFileOutOfSync) {
+                writeMetaFile();
+            }
             checkLock();
-        }), 1000); //rewrite files that are too large
+        }), 1000);
     }
 
     @Override
     public T read(long key) {
+        ensureOpen();
         FileBucket bucket = getBucket(key);
-        lockForRead(bucket);
-        FileInfo file = bucket.getFile(key);
-        try {
-            int startPos;
-            int pos = Arrays.binarySearch(file.getFileLocationsKeys(), key);
-            if (pos == -1) {
-                //Before first key, value can not be in file
-                return null;
-            } else {
-                if (pos < 0) {
-                    pos = -(pos + 1);
-                }
-                if (pos == file.getFileLocationsKeys().length || file.getFileLocationsKeys()[pos] > key) {
-                    pos--;
-                }
-                startPos = file.getFileLocationsValues()[pos];
-            }
-            int endPos = pos + 1 < file.getFileLocationsKeys().length ? file.getFileLocationsValues()[pos + 1] : file.getReadSize();
-            ReadBuffer readBuffer = getReadBuffer(file, startPos, endPos);
-            startPos -= readBuffer.getOffset();
-            endPos -= readBuffer.getOffset();
-            byte firstByteOfKeyToRead = (byte) (key >> 56);
-            byte[] buffer = readBuffer.getBuffer();
-            int position = startPos;
-            while (position < endPos) {
-                byte currentByte = buffer[position];
-                if (currentByte == firstByteOfKeyToRead) {
-                    long currentKey = SerializationUtils.bytesToLong(buffer, position);
-                    position += LONG_SIZE;
-                    if (currentKey == key) {
-                        ReadValue<T> readValue = readValue(buffer, position);
-                        return readValue.getValue();
-                    } else if (currentKey > key) {
-                        return null;
-                    } else {
-                        //skip value
-                        position += skipValue(buffer, position);
+        long stamp = bucket.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                FileInfo file = bucket.getFile(key);
+                //the state of the file is only used if no files were swapped since the stamp was taken
+                if (bucket.validate(stamp) && canReadOptimistically(bucket, file)) {
+                    ValueLocation location = findCachedCleanValue(file, key);
+                    if (bucket.validate(stamp)) {
+                        //only deserialized now, the bytes are known to belong to the current version of the file
+                        dataWasRead();
+                        return location == null ? null : readValue(location.getBuffer(), location.getPosition()).getValue();
                     }
-                } else if (currentByte > firstByteOfKeyToRead) {
-                    //key too large, value not in this file
-                    return null;
-                } else if (currentByte < firstByteOfKeyToRead) {
-                    //key too small, skip key and value
-                    position += LONG_SIZE;
-                    position += skipValue(buffer, position);
                 }
+            } catch (NotCachedException exp) {
+                //the block of the value is not cached, read it with the lock
+            } catch (IOException | RuntimeException exp) {
+                if (bucket.validate(stamp)) {
+                    //nothing was changed while we were reading, so this is not caused by a concurrent swap of files
+                    throw new RuntimeException("Error while reading key " + key + " of " + getName(), exp);
+                }
+                //the files of the bucket were changed while we were reading, read again with the lock
             }
-            return null;
+        }
+        return readWithLock(key);
+    }
+
+    /**
+     * Values are only read without a lock from the clean part of a file. Reading the dirty part of a file updates its
+     * cached tail, and the mem tables can not be read safely while they are written.
+     */
+
+    private boolean canReadOptimistically(FileBucket bucket, FileInfo file) {
+        return file.isClean() && !bucket.isReplaced() && !bucket.shouldBeCleanedBeforeRead()
+                && getFlushingMemTable(bucket) == null && getMemTable(bucket).isEmpty();
+    }
+
+    private T readWithLock(long key) {
+        FileBucket bucket = lockBucketForRead(key);
+        FileInfo file = bucket.getFile(key);
+        try {
+            T value = readCleanValue(file, key);
+            if (!file.isClean()) {
+                //combine with the values that were appended to this file after it was last rewritten
+                value = readTailValue(file, key, value);
+                bucket.dirtyFileWasRead();
+            }
+            return combineWithMemTables(bucket, key, value);
         } catch (Exception exp) {
             throw new RuntimeException("Error in file " + toFile(file).getAbsolutePath(), exp);
         } finally {
@@ -131,707 +226,2703 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
-    @Override
-    public void write(long key, T value) {
-        FileBucket bucket = getBucket(key);
-        bucket.lockWrite();
-        FileInfo file = bucket.getFile(key);
-        try {
-            DataOutputStream dos = getAppendingOutputStream(file);
-            int extraSize = writeValue(dos, key, value);
-            dos.close();
-            file.increaseWriteSize(extraSize);
-            dataWasWritten();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to write value with key " + key + " to file " + toFile(file).getAbsolutePath(), e);
-        } finally {
-            bucket.unlockWrite();
+    private T combineWithMemTables(FileBucket bucket, long key, T fileValue) {
+        T value = fileValue;
+        MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+        if (flushingMemTable != null) {
+            value = flushingMemTable.combineWithFileValue(key, value, getCombinator());
         }
+        MemTable<T> memTable = getMemTable(bucket);
+        return memTable.combineWithFileValue(key, value, getCombinator());
     }
 
-    @Override
-    public void write(Iterator<KeyValue<T>> entries) {
-        long batchSize = getBatchSize();
-        while (entries.hasNext()) {
-            MappedLists<FileBucket, KeyValue<T>> entriesToFileBuckets = new MappedLists<>();
-            int numRead = 0;
-            while (numRead < batchSize && entries.hasNext()) {
-                KeyValue<T> curr = entries.next();
-                FileBucket fileBucket = getBucket(curr.getKey());
-                entriesToFileBuckets.get(fileBucket).add(curr);
-                numRead++;
+    private T readCleanValue(FileInfo file, long key) throws IOException {
+        if (file.getReadSize() == 0 || !mightContain(file, key)) {
+            return null;
+        } else if (sizeOfValues != -1 && !file.hasHeader()) {
+            return readFixedWidthValue(file, key);
+        } else {
+            return readIndexedValue(file, key);
+        }
+    }
+
+    private T readTailValue(FileInfo file, long key, T cleanValue) throws IOException {
+        synchronized (file) {
+            FileTail<T> tail = file.getTail();
+            if (tail == null) {
+                tail = new FileTail<>(file.getReadSize());
+                file.setTail(tail);
             }
-            long totalSizeWrittenInBatch = 0;
-            for (FileBucket bucket : entriesToFileBuckets.keySet()) {
-                List<KeyValue<T>> values = entriesToFileBuckets.get(bucket);
-                bucket.lockWrite();
-                try {
-                    MappedLists<FileInfo, KeyValue<T>> entriesToFiles = new MappedLists<>();
-                    for (KeyValue<T> value : values) {
-                        FileInfo file = bucket.getFile(value.getKey());
-                        entriesToFiles.get(file).add(value);
-                    }
-                    for (FileInfo file : entriesToFiles.keySet()) {
-                        try {
-                            List<KeyValue<T>> valuesForFile = entriesToFiles.get(file);
-                            DataOutputStream dos = getAppendingOutputStream(file);
-                            for (KeyValue<T> value : valuesForFile) {
-                                int extraSize = writeValue(dos, value.getKey(), value.getValue());
-                                file.increaseWriteSize(extraSize);
-                                totalSizeWrittenInBatch += extraSize;
-                            }
-                            dataWasWritten();
-                            dos.close();
-                        } catch (Exception exp) {
-                            throw new RuntimeException("Failed to write multiple values to file " + toFile(file).getAbsolutePath(), exp);
-                        }
-                    }
-                } finally {
-                    bucket.unlockWrite();
+            if (tail.getEndPos() < file.getWriteSize()) {
+                //parse the values that were appended since the last read
+                for (KeyValue<T> appendedValue : readAppendedValues(file, tail.getEndPos(), file.getWriteSize())) {
+                    tail.add(appendedValue.getKey(), appendedValue.getValue(), getCombinator());
                 }
+                updateSizeOfCachedFileContents(file.getWriteSize() - tail.getEndPos());
+                tail.setEndPos(file.getWriteSize());
             }
-            if (totalSizeWrittenInBatch > 0) {
-                batchSize = BATCH_SIZE_PRIMITIVE_VALUES * 16 * batchSize / totalSizeWrittenInBatch;
-            }
+            return tail.combineWithCleanValue(key, cleanValue, getCombinator());
         }
     }
 
-    @Override
-    public CloseableIterator<KeyValue<T>> iterator(final Iterator<Long> keyIterator) {
-        return new CloseableIterator<KeyValue<T>>() {
+    /**
+     * Reads the values (in the order they were appended) between two positions in the dirty part of a file
+     */
 
-            private Iterator<KeyValue<T>> currBatchIterator;
+    private List<KeyValue<T>> readAppendedValues(FileInfo file, int startPos, int endPos) throws IOException {
+        flushAppendChannel(file);
+        ByteBuffer appendedValues = readFromFile(file, startPos, endPos);
+        if (file.isCompressed()) {
+            appendedValues = decompressBlocks(appendedValues, 0, appendedValues.limit());
+        }
+        return readValues(appendedValues);
+    }
 
-            {
-                readNextBatch(); //constructor
-            }
+    /**
+     * Reads a sequence of (not delta encoded) keys and values, in the order they were written
+     */
+
+    private List<KeyValue<T>> readValues(ByteBuffer records) throws IOException {
+        List<KeyValue<T>> result = new ArrayList<>();
+        KeyReader keyReader = new KeyReader(records, 0, false);
+        while (keyReader.getPosition() < records.limit()) {
+            long key = keyReader.readKey();
+            ReadValue<T> readValue = readValue(records, keyReader.getPosition());
+            keyReader.skip(readValue.getSize());
+            result.add(new KeyValue<>(key, readValue.getValue()));
+        }
+        return result;
+    }
 
-            private void readNextBatch() {
-                long batchSize = getBatchSize();
-                List<Long> keysInBatch = new ArrayList<>();
-                while (keyIterator.hasNext() && keysInBatch.size() < batchSize) {
-                    keysInBatch.add(keyIterator.next());
-                }
-                Collections.sort(keysInBatch);
-                List<KeyValue<T>> valuesInBatch = new ArrayList<>();
-                FileInfo currentFile = null;
-                Map<Long, T> valuesInCurrentFile = null;
-                for (Long key : keysInBatch) {
-                    FileBucket bucket = getBucket(key);
-                    lockForRead(bucket);
-                    FileInfo file = bucket.getFile(key);
-                    if (file != currentFile) {
-                        currentFile = file;
-                        valuesInCurrentFile = readMap(file);
-                    }
-                    bucket.unlockRead();
-                    T value = valuesInCurrentFile.get(key);
-                    if (value != null) {
-                        valuesInBatch.add(new KeyValue<>(key, value));
+    /**
+     * Checks the bloom filter of the file. Only valid for the clean part of the file, values appended to a file are not added to its bloom filter.
+     */
+
+    private boolean mightContain(FileInfo file, long key) {
+        if (!settings.useBloomFilters()) {
+            return true;
+        }
+        LongBloomFilter bloomFilter = file.getBloomFilter();
+        if (bloomFilter == null) {
+            //bloom filters are not stored in the meta file, the file is read without bloom filter until it is created
+            scheduleCreationOfBloomFilter(file);
+            return true;
+        }
+        return bloomFilter.mightContain(key);
+    }
+
+    private void scheduleCreationOfBloomFilter(FileInfo file) {
+        compactionScheduler.schedule(file, file.getReadSize(), () -> createBloomFilterInBackground(file));
+    }
+
+    /**
+     * Skipped if memory is scarce or if the file was rewritten or moved to another bucket in the mean time, the next
+     * read of the file schedules it again.
+     */
+
+    private void createBloomFilterInBackground(FileInfo file) {
+        if (memoryManager.getMemoryStatus() != MemoryStatus.FREE || !runningCompactionsLock.readLock().tryLock()) {
+            return;
+        }
+        try {
+            if (closeWasRequested()) {
+                return;
+            }
+            compactionScheduler.acquireBytes(file.getReadSize());
+            FileBucket bucket = getBucket(file.getFirstKey());
+            bucket.lockRead();
+            try {
+                if (!bucket.isReplaced() && bucket.getFiles().contains(file) && file.getBloomFilter() == null) {
+                    List<Long> keys = readCleanKeys(file);
+                    LongBloomFilter bloomFilter = new LongBloomFilter(keys.size(), settings.getBloomFilterFpp());
+                    for (Long key : keys) {
+                        bloomFilter.put(key);
                     }
+                    setBloomFilter(file, bloomFilter);
                 }
-                currBatchIterator = valuesInBatch.iterator();
+            } finally {
+                bucket.unlockRead();
             }
+        } catch (IOException exp) {
+            throw new RuntimeException("Unexpected exception while creating the bloom filter of " + toFile(file).getAbsolutePath(), exp);
+        } finally {
+            runningCompactionsLock.readLock().unlock();
+        }
+    }
 
-            @Override
-            protected void closeInt() {
-                //ok
-            }
+    /**
+     * Replaces the bloom filter of the file (null to discard it) and keeps track of the memory used by bloom filters
+     */
 
-            @Override
-            public boolean hasNext() {
-                return currBatchIterator.hasNext();
-            }
+    private long setBloomFilter(FileInfo file, LongBloomFilter bloomFilter) {
+        long bytesReleased;
+        synchronized (file) {
+            bytesReleased = getMemoryUsage(file.getBloomFilter()) - getMemoryUsage(bloomFilter);
+            file.setBloomFilter(bloomFilter);
+        }
+        synchronized (sizeOfCachedFileContentsLock) {
+            sizeOfBloomFilters -= bytesReleased;
+        }
+        return bytesReleased;
+    }
 
-            @Override
-            public KeyValue<T> next() {
-                KeyValue<T> next = currBatchIterator.next();
-                if (!currBatchIterator.hasNext()) {
-                    readNextBatch();
-                }
-                return next;
+    private long getMemoryUsage(LongBloomFilter bloomFilter) {
+        return bloomFilter == null ? 0 : bloomFilter.getBits().size() / Byte.SIZE;
+    }
+
+    private T readFixedWidthValue(FileInfo file, long key) throws IOException {
+        //All records have the same size, so we can search directly on the positions of the records and don't need an index
+        int recordSize = LONG_SIZE + sizeOfValues;
+        int numOfRecords = file.getReadSize() / recordSize;
+        if (settings.useMemoryMappedFiles()) {
+            ByteBuffer fileContents = getMappedFileContents(file);
+            int ind = InterpolationSearch.searchFixedWidth(fileContents, 0, numOfRecords, recordSize, key);
+            return ind >= 0 ? readValue(fileContents, ind * recordSize + LONG_SIZE).getValue() : null;
+        } else {
+            //the file is read (and cached) in pages of a whole number of records
+            int recordsPerPage = Math.max(1, settings.getIndexBlockSize() / recordSize);
+            int ind = InterpolationSearch.search(recordInd -> getFixedWidthPage(file, recordInd / recordsPerPage, recordsPerPage * recordSize).getLong((recordInd % recordsPerPage) * recordSize), numOfRecords, key);
+            if (ind >= 0) {
+                ByteBuffer page = getFixedWidthPage(file, ind / recordsPerPage, recordsPerPage * recordSize);
+                return readValue(page, (ind % recordsPerPage) * recordSize + LONG_SIZE).getValue();
+            } else {
+                return null;
             }
-        };
+        }
     }
 
-    @Override
-    public CloseableIterator<KeyValue<T>> iterator() {
-        final FileIterator fileIterator = new FileIterator();
-        return IterableUtils.iterator(new SimpleIterator<KeyValue<T>>() {
+    private ByteBuffer getFixedWidthPage(FileInfo file, int pageInd, int pageSize) throws IOException {
+        int startPos = pageInd * pageSize;
+        return getCleanBlock(file, startPos, Math.min(startPos + pageSize, file.getReadSize()));
+    }
 
-            private Iterator<KeyValue<T>> valuesInFileIt;
+    private T readIndexedValue(FileInfo file, long key) throws IOException {
+        long[] keys = file.getFileLocationsKeys();
+        int blockInd = findBlock(keys, file.getFileLocationsLastKeys(), key);
+        if (blockInd == -1) {
+            return null;
+        }
+        int[] positions = file.getFileLocationsValues();
+        int endPos = blockInd + 1 < keys.length ? positions[blockInd + 1] : file.getReadSize();
+        ByteBuffer block = getCleanBlock(file, positions[blockInd], endPos);
+        int position = findValue(block, key, file.isDeltaEncoded());
+        return position == -1 ? null : readValue(block, position).getValue();
+    }
 
-            @Override
-            public KeyValue<T> next() throws Exception {
-                while ((valuesInFileIt == null || !valuesInFileIt.hasNext())) {
-                    Pair<FileBucket, FileInfo> next = fileIterator.lockCurrentBucketAndGetNextFile();
-                    if (next != null) {
-                        FileBucket bucket = next.getFirst();
-                        FileInfo file = next.getSecond();
-                        List<KeyValue<T>> sortedEntries = readCleanValues(file);
-                        bucket.unlockRead();
-                        valuesInFileIt = sortedEntries.iterator();
-                    } else {
-                        valuesInFileIt = null;
-                        break;
-                    }
-                }
-                if (valuesInFileIt != null && valuesInFileIt.hasNext()) {
-                    return valuesInFileIt.next();
-                } else {
-                    return null;
-                }
+    /**
+     * Finds the value of a key in the clean part of a file without the lock of its bucket. The file can be replaced while
+     * it is read, so only blocks that are already cached or mapped are read (nothing is loaded, cached or created for a
+     * version of the file that might no longer exist) and every decoded length is checked against its block. Returns
+     * null if the key is not in the file.
+     *
+     * @throws NotCachedException if the value can only be found by reading the file
+     */
+
+    private ValueLocation findCachedCleanValue(FileInfo file, long key) throws IOException {
+        int readSize = file.getReadSize();
+        if (readSize == 0) {
+            return null;
+        }
+        if (settings.useBloomFilters()) {
+            LongBloomFilter bloomFilter = file.getBloomFilter();
+            if (bloomFilter == null) {
+                throw NotCachedException.INSTANCE;
+            } else if (!bloomFilter.mightContain(key)) {
+                return null;
+            }
+        }
+        MappedByteBuffer mappedContents = file.getMappedFileContents();
+        if (sizeOfValues != -1 && !file.hasHeader()) {
+            int recordSize = LONG_SIZE + sizeOfValues;
+            if (mappedContents != null) {
+                int ind = InterpolationSearch.searchFixedWidth(mappedContents, 0, mappedContents.limit() / recordSize, recordSize, key);
+                return ind >= 0 ? new ValueLocation(mappedContents, ind * recordSize + LONG_SIZE) : null;
+            }
+            int recordsPerPage = Math.max(1, settings.getIndexBlockSize() / recordSize);
+            int ind = InterpolationSearch.search(recordInd -> getCachedRecord(file, recordInd, recordsPerPage, recordSize).getLong(0), readSize / recordSize, key);
+            if (ind >= 0) {
+                return new ValueLocation(getCachedRecord(file, ind, recordsPerPage, recordSize), LONG_SIZE);
+            } else {
+                return null;
+            }
+        }
+        long[] keys = file.getFileLocationsKeys();
+        long[] lastKeys = file.getFileLocationsLastKeys();
+        int[] positions = file.getFileLocationsValues();
+        if (positions.length != keys.length || (lastKeys != null && lastKeys.length != keys.length)) {
+            throw new IOException("Index of file has " + keys.length + " keys and " + positions.length + " positions");
+        }
+        int blockInd = findBlock(keys, lastKeys, key);
+        if (blockInd == -1) {
+            return null;
+        }
+        int startPos = positions[blockInd];
+        int endPos = blockInd + 1 < keys.length ? positions[blockInd + 1] : readSize;
+        ByteBuffer block = blockCache.get(file, startPos);
+        if (block == null) {
+            if (mappedContents == null || file.isCompressed()) {
+                throw NotCachedException.INSTANCE;
             }
+            if (startPos < 0 || startPos > endPos || endPos > mappedContents.limit()) {
+                throw new IOException("Block " + startPos + "-" + endPos + " is outside the mapped contents of the file");
+            }
+            block = getRecords(mappedContents, startPos, endPos, false);
+        }
+        int position = findValue(block, key, file.isDeltaEncoded());
+        return position == -1 ? null : new ValueLocation(block, position);
+    }
 
-        });
+    /**
+     * A record of a file with values of fixed width, read from its cached page. The returned buffer starts at the key of
+     * the record.
+     */
+
+    private ByteBuffer getCachedRecord(FileInfo file, int recordInd, int recordsPerPage, int recordSize) throws IOException {
+        ByteBuffer page = blockCache.get(file, (recordInd / recordsPerPage) * recordsPerPage * recordSize);
+        if (page == null) {
+            throw NotCachedException.INSTANCE;
+        }
+        int position = (recordInd % recordsPerPage) * recordSize;
+        if (position + recordSize > page.limit()) {
+            throw new IOException("Record " + recordInd + " does not fit in its page of size " + page.limit());
+        }
+        page.position(position);
+        return page.slice();
     }
 
-    @Override
-    public CloseableIterator<Long> keyIterator() {
-        final FileIterator fileIterator = new FileIterator();
-        return IterableUtils.iterator(new SimpleIterator<Long>() {
+    /**
+     * Index of the block in the file index that can contain the key, -1 if the key can not be in the file
+     */
 
-            private Iterator<Long> keysInFileIt;
+    private int findBlock(long[] keys, long[] lastKeys, long key) {
+        int pos = InterpolationSearch.search(keys, key);
+        if (pos == -1) {
+            //Before first key, value can not be in file
+            return -1;
+        }
+        if (pos < 0) {
+            pos = -(pos + 1);
+        }
+        if (pos == keys.length || keys[pos] > key) {
+            pos--;
+        }
+        if (lastKeys != null && lastKeys[pos] < key) {
+            //key falls between two blocks, value can not be in file
+            return -1;
+        }
+        return pos;
+    }
 
-            @Override
-            public Long next() throws Exception {
-                while ((keysInFileIt == null || !keysInFileIt.hasNext())) {
-                    Pair<FileBucket, FileInfo> next = fileIterator.lockCurrentBucketAndGetNextFile();
-                    if (next != null) {
-                        FileBucket bucket = next.getFirst();
-                        FileInfo file = next.getSecond();
-                        List<Long> sortedKeys = readKeys(file);
-                        bucket.unlockRead();
-                        keysInFileIt = sortedKeys.iterator();
-                    } else {
-                        keysInFileIt = null;
-                        break;
-                    }
-                }
-                if (keysInFileIt != null && keysInFileIt.hasNext()) {
-                    return keysInFileIt.next();
-                } else {
-                    return null;
-                }
-            }
+    /**
+     * Position of the value of the key in a block of records, -1 if the key is not in the block
+     */
 
-        });
+    private int findValue(ByteBuffer block, long key, boolean deltaEncoded) throws IOException {
+        return deltaEncoded ? scanForDeltaEncodedValue(block, key) : scanForValue(block, key);
     }
 
-    @Override
-    public long freeMemory() {
-        MutableLong totalBytesReleased = new MutableLong(0);
-        ifNotClosed(() -> {
-            for (FileBucket bucket : fileBuckets) {
-                bucket.lockRead();
-                for (FileInfo fileInfo : bucket.getFiles()) {
-                    long bytesReleased = fileInfo.discardFileContents();
-                    updateSizeOfCachedFileContents(-bytesReleased);
-                    totalBytesReleased.add(bytesReleased);
+    private int scanForDeltaEncodedValue(ByteBuffer buffer, long key) throws IOException {
+        KeyReader keyReader = new KeyReader(buffer, 0, true);
+        while (keyReader.getPosition() < buffer.limit()) {
+            long currentKey = keyReader.readKey();
+            if (currentKey == key) {
+                return keyReader.getPosition();
+            } else if (currentKey > key) {
+                return -1;
+            } else {
+                keyReader.skip(skipValue(buffer, keyReader.getPosition()));
+            }
+        }
+        return -1;
+    }
+
+    private int scanForValue(ByteBuffer buffer, long key) throws IOException {
+        byte firstByteOfKeyToRead = (byte) (key >> 56);
+        int position = 0;
+        while (position < buffer.limit()) {
+            byte currentByte = buffer.get(position);
+            checkFitsInBuffer(buffer, position, LONG_SIZE);
+            if (currentByte == firstByteOfKeyToRead) {
+                long currentKey = buffer.getLong(position);
+                position += LONG_SIZE;
+                if (currentKey == key) {
+                    return position;
+                } else if (currentKey > key) {
+                    return -1;
+                } else {
+                    //skip value
+                    position += skipValue(buffer, position);
                 }
-                bucket.unlockRead();
+            } else if (currentByte > firstByteOfKeyToRead) {
+                //key too large, value not in this file
+                return -1;
+            } else if (currentByte < firstByteOfKeyToRead) {
+                //key too small, skip key and value
+                position += LONG_SIZE;
+                position += skipValue(buffer, position);
             }
-        });
-        return totalBytesReleased.longValue();
+        }
+        return -1;
     }
 
     @Override
-    public long getMemoryUsage() {
-        return currentSizeOfCachedFileContents;
+    public void write(long key, T value) {
+        ensureOpen();
+        writeValues(getBucket(key), Collections.singletonList(new KeyValue<>(key, value)));
     }
 
     @Override
-    public long apprSize() {
-        int numOfFilesToSample = 100;
-        long numOfObjects = 0;
-        long sizeOfSampledFiles = 0;
-        int numOfSampledFiles = 0;
-        long sizeOfAllFiles = 0;
-        try {
-            FileIterator fileIt = new FileIterator();
-            Pair<FileBucket, FileInfo> next = fileIt.lockCurrentBucketAndGetNextFile();
-            while (next != null) {
-                FileBucket bucket = next.getFirst();
-                FileInfo file = next.getSecond();
-                long fileSize = file.getReadSize();
-                if (numOfSampledFiles < numOfFilesToSample) {
-                    List<Long> keys = readKeys(file);
-                    numOfObjects += keys.size();
-                    sizeOfSampledFiles += fileSize;
-                    if (fileSize == 0 && !keys.isEmpty()) {
-                        UI.writeError("Something is wrong with file " + file.getFirstKey());
-                    }
-                    numOfSampledFiles++;
+    public void write(Iterator<KeyValue<T>> entries) {
+        ensureOpen();
+        writeEntries(entries);
+    }
+
+    private void writeEntries(Iterator<KeyValue<T>> entries) {
+        if (settings.getWriteThreads() > 1) {
+            writeInParallel(entries);
+            return;
+        }
+        long batchSize = getBatchSize();
+        while (entries.hasNext()) {
+            MappedLists<FileBucket, KeyValue<T>> entriesToFileBuckets = readBatch(entries, batchSize);
+            long totalSizeWrittenInBatch = 0;
+            for (FileBucket bucket : entriesToFileBuckets.keySet()) {
+                totalSizeWrittenInBatch += writeValues(bucket, entriesToFileBuckets.get(bucket));
+            }
+            batchSize = updateBatchSize(batchSize, totalSizeWrittenInBatch);
+        }
+    }
+
+    /**
+     * Pipelined version of {@link #write(Iterator)}: the calling thread reads and partitions the next batch while the
+     * write threads write the values of the previous batch. All values of a bucket are written by the same thread, in
+     * the order in which they were read.
+     */
+
+    private void writeInParallel(Iterator<KeyValue<T>> entries) {
+        ExecutorService[] writeThreads = getWriteThreads();
+        long batchSize = getBatchSize();
+        List<Future<Long>> previousBatch = Collections.emptyList();
+        List<Future<Long>> currentBatch = Collections.emptyList();
+        try {
+            while (entries.hasNext()) {
+                MappedLists<FileBucket, KeyValue<T>> entriesToFileBuckets = readBatch(entries, batchSize);
+                currentBatch = new ArrayList<>();
+                for (FileBucket bucket : entriesToFileBuckets.keySet()) {
+                    List<KeyValue<T>> values = entriesToFileBuckets.get(bucket);
+                    currentBatch.add(writeThreads[getWriteThreadInd(bucket, writeThreads.length)].submit(() -> writeValues(bucket, values)));
+                }
+                long totalSizeWrittenInBatch = waitForWrites(previousBatch);
+                previousBatch = currentBatch;
+                batchSize = updateBatchSize(batchSize, totalSizeWrittenInBatch);
+            }
+            waitForWrites(previousBatch);
+        } catch (RuntimeException exp) {
+            //make sure that no values are written after this method returns
+            for (Future<Long> write : Iterables.concat(previousBatch, currentBatch)) {
+                try {
+                    write.get();
+                } catch (Exception otherExp) {
+                    //already failed or reported
+                }
+            }
+            throw exp;
+        }
+    }
+
+    private MappedLists<FileBucket, KeyValue<T>> readBatch(Iterator<KeyValue<T>> entries, long batchSize) {
+        MappedLists<FileBucket, KeyValue<T>> entriesToFileBuckets = new MappedLists<>();
+        int numRead = 0;
+        while (numRead < batchSize && entries.hasNext()) {
+            KeyValue<T> curr = entries.next();
+            FileBucket fileBucket = getBucket(curr.getKey());
+            entriesToFileBuckets.get(fileBucket).add(curr);
+            numRead++;
+        }
+        return entriesToFileBuckets;
+    }
+
+    private long updateBatchSize(long batchSize, long totalSizeWrittenInBatch) {
+        if (totalSizeWrittenInBatch > 0) {
+            return BATCH_SIZE_PRIMITIVE_VALUES * 16 * batchSize / totalSizeWrittenInBatch;
+        } else {
+            return batchSize;
+        }
+    }
+
+    /**
+     * Writes the values of one bucket to its mem table or appends them to its files. Returns the number of bytes that
+     * were appended.
+     */
+
+    private long writeValues(FileBucket bucket, List<KeyValue<T>> values) {
+        if (useMemTables()) {
+            writeToMemTable(bucket, values);
+            return 0;
+        }
+        long sizeWritten = 0;
+        long logRecord;
+        lockLog();
+        bucket.lockWrite();
+        if (bucket.isReplaced()) {
+            bucket.unlockWrite();
+            unlockLog();
+            return writeValuesToCurrentBuckets(values);
+        }
+        try {
+            logRecord = logValues(values);
+            addToKeySketch(bucket, values);
+            MappedLists<FileInfo, KeyValue<T>> entriesToFiles = new MappedLists<>();
+            for (KeyValue<T> value : values) {
+                FileInfo file = bucket.getFile(value.getKey());
+                entriesToFiles.get(file).add(value);
+            }
+            for (FileInfo file : entriesToFiles.keySet()) {
+                try {
+                    List<KeyValue<T>> valuesForFile = entriesToFiles.get(file);
+                    sizeWritten += appendValues(file, valuesForFile);
+                    dataWasWritten();
+                } catch (Exception exp) {
+                    throw new RuntimeException("Failed to write multiple values to file " + toFile(file).getAbsolutePath(), exp);
+                }
+            }
+        } finally {
+            bucket.unlockWrite();
+            unlockLog();
+        }
+        waitForLog(logRecord);
+        return sizeWritten;
+    }
+
+    /**
+     * Writes values that were partitioned over buckets that were split or merged in the mean time
+     */
+
+    private long writeValuesToCurrentBuckets(List<KeyValue<T>> values) {
+        long sizeWritten = 0;
+        MappedLists<FileBucket, KeyValue<T>> valuesToFileBuckets = toCurrentBuckets(values);
+        for (FileBucket bucket : valuesToFileBuckets.keySet()) {
+            sizeWritten += writeValues(bucket, valuesToFileBuckets.get(bucket));
+        }
+        return sizeWritten;
+    }
+
+    private MappedLists<FileBucket, KeyValue<T>> toCurrentBuckets(List<KeyValue<T>> values) {
+        MappedLists<FileBucket, KeyValue<T>> valuesToFileBuckets = new MappedLists<>();
+        for (KeyValue<T> value : values) {
+            valuesToFileBuckets.get(getBucket(value.getKey())).add(value);
+        }
+        return valuesToFileBuckets;
+    }
+
+    private long waitForWrites(List<Future<Long>> writes) {
+        long totalSizeWritten = 0;
+        try {
+            for (Future<Long> write : writes) {
+                totalSizeWritten += write.get();
+            }
+        } catch (InterruptedException | ExecutionException exp) {
+            throw new RuntimeException("Failed to write values to " + getName(), exp);
+        }
+        return totalSizeWritten;
+    }
+
+    /**
+     * A bucket is always written by the same thread, so values of the same key are written in order. Buckets are only
+     * split and merged within the same range of {@link #BITS_TO_DISCARD_FOR_FILE_BUCKETS}, so the new buckets are
+     * written by the same thread.
+     */
+
+    private int getWriteThreadInd(FileBucket bucket, int numOfThreads) {
+        return (int) Math.floorMod(bucket.getFirstKey() >> BITS_TO_DISCARD_FOR_FILE_BUCKETS, (long) numOfThreads);
+    }
+
+    /**
+     * The write threads are created when they are first needed and stop when they are idle
+     */
+
+    private ExecutorService[] getWriteThreads() {
+        synchronized (writeThreadsLock) {
+            if (writeThreads != null) {
+                return writeThreads;
+            }
+            writeThreads = new ExecutorService[settings.getWriteThreads()];
+            for (int i = 0; i < writeThreads.length; i++) {
+                String threadName = "write-" + getName() + "-" + i;
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, threadName);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                executor.allowCoreThreadTimeOut(true);
+                writeThreads[i] = executor;
+            }
+            return writeThreads;
+        }
+    }
+
+    /**
+     * Writes the sorted entries directly to clean files, merged with the values that are already stored. The files are
+     * replaced one at a time, so this data interface can still be used while the entries are loaded.
+     */
+
+    @Override
+    public void bulkLoad(Iterator<KeyValue<T>> sortedEntries) {
+        ensureOpen();
+        flushMemTables(); //values in the mem tables are older than the loaded entries
+        PeekingIterator<KeyValue<T>> entries = Iterators.peekingIterator(sortedEntries);
+        try {
+            while (entries.hasNext()) {
+                FileBucket bucket = getBucket(entries.peek().getKey());
+                bulkLoad(bucket, entries);
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to load sorted entries in " + getName(), exp);
+        }
+        dataWasWritten();
+        writeMetaFile();
+    }
+
+    private void bulkLoad(FileBucket bucket, PeekingIterator<KeyValue<T>> entries) throws IOException {
+        bucket.lockRewrite();
+        try {
+            while (!bucket.isReplaced() && entries.hasNext() && entries.peek().getKey() <= bucket.getLastKey()) {
+                RewritePlan<T> plan = planBulkLoad(bucket, entries.peek().getKey());
+                FileInfo file = plan.getFiles().get(0);
+                long lastKey = plan.getEndKey() == null ? bucket.getLastKey() : plan.getEndKey() - 1;
+                Iterator<KeyValue<T>> values = new BulkLoadIterator(readAllValues(file, plan.getSizes()[0]).iterator(), entries, lastKey);
+                List<FileInfo> newFiles = writeNewFiles(file.getFirstKey(), values, plan.getTargetSize());
+                if (swapNewFiles(bucket, plan, newFiles) == -1) {
+                    throw new RuntimeException("All data of " + getName() + " was dropped while loading sorted entries");
+                }
+            }
+        } finally {
+            bucket.unlockRewrite();
+        }
+    }
+
+    private RewritePlan<T> planBulkLoad(FileBucket bucket, long key) {
+        bucket.lockRead();
+        try {
+            FileInfo file = bucket.getFile(key);
+            int fileInd = bucket.getFileInd(file.getFirstKey());
+            return new RewritePlan<>(fileInd, Collections.singletonList(file), new int[]{file.getWriteSize()}, MAX_FILE_SIZE_READ, null, getEndKey(bucket, file));
+        } finally {
+            bucket.unlockRead();
+        }
+    }
+
+    private boolean useMemTables() {
+        return settings.getMemTableSize() > 0;
+    }
+
+    /**
+     * Estimated number of bytes of a value in a mem table: a boxed primitive or an object of unknown size
+     */
+
+    private int getBytesPerValueInMemTables() {
+        return sizeOfValues == -1 ? BYTES_PER_OBJECT_IN_MEM_TABLE : (OBJECT_HEADER_SIZE + sizeOfValues + 7) / 8 * 8;
+    }
+
+    private MemTable<T> getMemTable(FileBucket bucket) {
+        return asMemTableOfValues(bucket.getMemTable());
+    }
+
+    private MemTable<T> getFlushingMemTable(FileBucket bucket) {
+        return asMemTableOfValues(bucket.getFlushingMemTable());
+    }
+
+    /**
+     * The mem tables of the buckets of this data interface are only created by this data interface, so they always
+     * contain values of type T
+     */
+
+    @SuppressWarnings("unchecked")
+    private MemTable<T> asMemTableOfValues(MemTable<?> memTable) {
+        return (MemTable<T>) memTable;
+    }
+
+    private void writeToMemTable(FileBucket bucket, List<KeyValue<T>> values) {
+        memoryManager.waitForSufficientMemory();
+        boolean memTableIsFull;
+        long logRecord;
+        lockLog();
+        bucket.lockWrite();
+        if (bucket.isReplaced()) {
+            bucket.unlockWrite();
+            unlockLog();
+            MappedLists<FileBucket, KeyValue<T>> valuesToFileBuckets = toCurrentBuckets(values);
+            for (FileBucket currentBucket : valuesToFileBuckets.keySet()) {
+                writeToMemTable(currentBucket, valuesToFileBuckets.get(currentBucket));
+            }
+            return;
+        }
+        try {
+            logRecord = logValues(values);
+            addToKeySketch(bucket, values);
+            MemTable<T> memTable = getMemTable(bucket);
+            for (KeyValue<T> value : values) {
+                memTable.put(value.getKey(), value.getValue(), getCombinator());
+            }
+            memTableIsFull = memTable.size() >= settings.getMemTableSize();
+            dataWasWritten();
+        } finally {
+            bucket.unlockWrite();
+            unlockLog();
+        }
+        waitForLog(logRecord);
+        if (memTableIsFull) {
+            flushMemTable(bucket);
+        }
+    }
+
+    private void addToKeySketch(FileBucket bucket, List<KeyValue<T>> values) {
+        KeySketch keySketch = bucket.getKeySketch();
+        if (keySketch != null) {
+            for (KeyValue<T> value : values) {
+                keySketch.add(value.getKey());
+            }
+        }
+    }
+
+    @Override
+    public CloseableIterator<KeyValue<T>> iterator(final Iterator<Long> keyIterator) {
+        ensureOpen();
+        return new CloseableIterator<KeyValue<T>>() {
+
+            private Iterator<KeyValue<T>> currBatchIterator;
+
+            {
+                readNextBatch(); //constructor
+            }
+
+            private void readNextBatch() {
+                long batchSize = getBatchSize();
+                List<Long> keysInBatch = new ArrayList<>();
+                while (keyIterator.hasNext() && keysInBatch.size() < batchSize) {
+                    keysInBatch.add(keyIterator.next());
+                }
+                Collections.sort(keysInBatch);
+                List<KeyValue<T>> valuesInBatch = new ArrayList<>();
+                FileInfo currentFile = null;
+                Map<Long, T> valuesInCurrentFile = null;
+                for (Long key : keysInBatch) {
+                    FileBucket bucket = lockBucketForRead(key);
+                    FileInfo file = bucket.getFile(key);
+                    if (file != currentFile) {
+                        currentFile = file;
+                        valuesInCurrentFile = readMap(bucket, file);
+                    }
+                    bucket.unlockRead();
+                    T value = valuesInCurrentFile.get(key);
+                    if (value != null) {
+                        valuesInBatch.add(new KeyValue<>(key, value));
+                    }
+                }
+                currBatchIterator = valuesInBatch.iterator();
+            }
+
+            @Override
+            protected void closeInt() {
+                //ok
+            }
+
+            @Override
+            public boolean hasNext() {
+                return currBatchIterator.hasNext();
+            }
+
+            @Override
+            public KeyValue<T> next() {
+                KeyValue<T> next = currBatchIterator.next();
+                if (!currBatchIterator.hasNext()) {
+                    readNextBatch();
+                }
+                return next;
+            }
+        };
+    }
+
+    @Override
+    public CloseableIterator<KeyValue<T>> iterator() {
+        ensureOpen();
+        final FileIterator fileIterator = new FileIterator();
+        return IterableUtils.iterator(new SimpleIterator<KeyValue<T>>() {
+
+            private Iterator<KeyValue<T>> valuesInFileIt;
+
+            @Override
+            public KeyValue<T> next() throws Exception {
+                while ((valuesInFileIt == null || !valuesInFileIt.hasNext())) {
+                    Pair<FileBucket, FileInfo> next = fileIterator.lockCurrentBucketAndGetNextFile();
+                    if (next != null) {
+                        FileBucket bucket = next.getFirst();
+                        FileInfo file = next.getSecond();
+                        List<KeyValue<T>> sortedEntries = readValues(bucket, file);
+                        bucket.unlockRead();
+                        sortedEntries = removeKeysBefore(sortedEntries, fileIterator.getMinKeyOfCurrentFile());
+                        valuesInFileIt = sortedEntries.iterator();
+                    } else {
+                        valuesInFileIt = null;
+                        break;
+                    }
+                }
+                if (valuesInFileIt != null && valuesInFileIt.hasNext()) {
+                    return valuesInFileIt.next();
+                } else {
+                    return null;
+                }
+            }
+
+        });
+    }
+
+    @Override
+    public CloseableIterator<Long> keyIterator() {
+        ensureOpen();
+        final FileIterator fileIterator = new FileIterator();
+        return IterableUtils.iterator(new SimpleIterator<Long>() {
+
+            private Iterator<Long> keysInFileIt;
+
+            @Override
+            public Long next() throws Exception {
+                while ((keysInFileIt == null || !keysInFileIt.hasNext())) {
+                    Pair<FileBucket, FileInfo> next = fileIterator.lockCurrentBucketAndGetNextFile();
+                    if (next != null) {
+                        FileBucket bucket = next.getFirst();
+                        FileInfo file = next.getSecond();
+                        List<Long> sortedKeys = readKeys(bucket, file);
+                        bucket.unlockRead();
+                        int firstInd = 0;
+                        while (firstInd < sortedKeys.size() && sortedKeys.get(firstInd) < fileIterator.getMinKeyOfCurrentFile()) {
+                            firstInd++; //already returned with a previous file
+                        }
+                        sortedKeys = sortedKeys.subList(firstInd, sortedKeys.size());
+                        keysInFileIt = sortedKeys.iterator();
+                    } else {
+                        keysInFileIt = null;
+                        break;
+                    }
+                }
+                if (keysInFileIt != null && keysInFileIt.hasNext()) {
+                    return keysInFileIt.next();
+                } else {
+                    return null;
+                }
+            }
+
+        });
+    }
+
+    @Override
+    public long freeMemory() {
+        MutableLong totalBytesReleased = new MutableLong(0);
+        ifNotClosed(() -> {
+            if (!opened) {
+                return; //nothing was read yet
+            }
+            totalBytesReleased.add(flushMemTables());
+            for (FileBucket bucket : fileBuckets) {
+                bucket.lockRead();
+                for (FileInfo fileInfo : bucket.getFiles()) {
+                    long bytesReleased = fileInfo.discardFileContents();
+                    updateSizeOfCachedFileContents(-bytesReleased);
+                    totalBytesReleased.add(bytesReleased);
+                    totalBytesReleased.add(setBloomFilter(fileInfo, null));
+                }
+                bucket.unlockRead();
+            }
+            RewriteBuffers buffers;
+            while ((buffers = rewriteBuffers.poll()) != null) {
+                totalBytesReleased.add(buffers.getMemoryUsage());
+            }
+            totalBytesReleased.add(closeAppendChannels());
+        });
+        return totalBytesReleased.longValue();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        long result = currentSizeOfCachedFileContents + sizeOfBloomFilters;
+        List<FileBucket> fileBuckets = this.fileBuckets;
+        if (fileBuckets != null) {
+            int bytesPerValue = getBytesPerValueInMemTables();
+            for (FileBucket bucket : fileBuckets) {
+                result += getMemTable(bucket).getMemoryUsage(bytesPerValue);
+                MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+                if (flushingMemTable != null) {
+                    result += flushingMemTable.getMemoryUsage(bytesPerValue);
+                }
+            }
+        }
+        for (RewriteBuffers buffers : rewriteBuffers) {
+            result += buffers.getMemoryUsage();
+        }
+        synchronized (appendChannels) {
+            result += (long) appendChannels.size() * settings.getAppendBufferSize();
+        }
+        return result;
+    }
+
+    /**
+     * Computed from the number of values of the files and the mem tables, without reading any file. Appended values and
+     * values in the mem tables can update or delete existing keys, so for dirty data interfaces this is an upper bound,
+     * unless key sketches are enabled: the number of keys of a dirty bucket is then estimated by its sketch (with a
+     * relative standard error of about 3%). Files without counts (reconstructed from disk and not indexed yet) are
+     * estimated from their size.
+     */
+
+    @Override
+    public long apprSize() {
+        ensureOpen();
+        long numOfValues = 0;
+        long sizeOfCountedFiles = 0;
+        long numOfValuesInCountedFiles = 0;
+        long sizeOfUncountedFiles = 0;
+        for (FileBucket bucket : fileBuckets) {
+            bucket.lockRead();
+            try {
+                KeySketch keySketch = bucket.getKeySketch();
+                if (keySketch != null && !hasExactCounts(bucket)) {
+                    numOfValues += keySketch.estimate();
+                    continue;
+                }
+                for (FileInfo file : bucket.getFiles()) {
+                    if (file.getNumOfValues() >= 0 && file.getNumOfAppendedValues() >= 0) {
+                        numOfValuesInCountedFiles += file.getNumOfValues() + file.getNumOfAppendedValues();
+                        sizeOfCountedFiles += file.getWriteSize();
+                    } else {
+                        sizeOfUncountedFiles += file.getWriteSize();
+                    }
+                }
+                numOfValues += getNumOfValuesInMemTables(bucket);
+            } finally {
+                bucket.unlockRead();
+            }
+        }
+        numOfValues += numOfValuesInCountedFiles;
+        if (sizeOfUncountedFiles > 0) {
+            if (numOfValuesInCountedFiles > 0) {
+                numOfValues += sizeOfUncountedFiles * numOfValuesInCountedFiles / sizeOfCountedFiles;
+            } else {
+                numOfValues += getLowerBoundOnNumberOfValues((int) Math.min(Integer.MAX_VALUE, sizeOfUncountedFiles));
+            }
+        }
+        return numOfValues;
+    }
+
+    /**
+     * Sum of the number of values of the files if all files are clean and the mem tables are empty, otherwise the keys
+     * are counted
+     */
+
+    @Override
+    public long exactSize() {
+        ensureOpen();
+        List<FileBucket> buckets = fileBuckets; //the buckets that are locked, counted and unlocked should be the same
+        readLockAllBuckets(buckets);
+        try {
+            long numOfValues = 0;
+            boolean countsAreExact = true;
+            for (FileBucket bucket : buckets) {
+                countsAreExact &= !bucket.isReplaced() && hasExactCounts(bucket);
+                for (FileInfo file : bucket.getFiles()) {
+                    numOfValues += file.getNumOfValues();
+                }
+            }
+            if (countsAreExact) {
+                return numOfValues;
+            }
+        } finally {
+            readUnlockAllBuckets(buckets);
+        }
+        return super.exactSize();
+    }
+
+    /**
+     * True if the number of values of the files of this bucket is its exact number of keys
+     */
+
+    private boolean hasExactCounts(FileBucket bucket) {
+        for (FileInfo file : bucket.getFiles()) {
+            if (!file.isClean() || file.getNumOfValues() < 0) {
+                return false;
+            }
+        }
+        return getNumOfValuesInMemTables(bucket) == 0;
+    }
+
+    private long getNumOfValuesInMemTables(FileBucket bucket) {
+        MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+        return getMemTable(bucket).size() + (flushingMemTable == null ? 0 : flushingMemTable.size());
+    }
+
+    /**
+     * Number of buckets, changes when buckets are split or merged
+     */
+
+    int getNumOfBuckets() {
+        return fileBuckets.size();
+    }
+
+    @Override
+    public void flush() {
+        //dirty files are read by combining their clean part with the appended values, so we only need to write the buffered values to disk
+        ifNotClosed(() -> {
+            if (opened) {
+                flushMemTables();
+                flushAppendChannels();
+            }
+        });
+    }
+
+
+    @Override
+    public void optimizeForReading() {
+        ensureOpen();
+        flushMemTables();
+        cleanAllFiles();
+    }
+
+    @Override
+    protected void doClose() {
+        if (!opened) {
+            return; //opened lazily and never used
+        }
+        //wait for the background compactions of this interface, they stop after their current file
+        runningCompactionsLock.writeLock().lock();
+        try {
+            flushMemTables();
+            if (metaFileOutOfSync || writeAheadLog != null) {
+                writeMetaFile();
+            }
+            closeAppendChannels();
+            closeWriteAheadLog();
+            for (FileBucket bucket : fileBuckets) {
+                for (FileInfo file : bucket.getFiles()) {
+                    blockCache.removeBlocks(file);
+                }
+            }
+            shutdownWriteThreads();
+            fileBuckets = null;
+            deleteLockFile(); //the files and the meta information are consistent
+        } finally {
+            runningCompactionsLock.writeLock().unlock();
+        }
+    }
+
+    private void shutdownWriteThreads() {
+        synchronized (writeThreadsLock) {
+            if (writeThreads != null) {
+                for (ExecutorService writeThread : writeThreads) {
+                    writeThread.shutdown();
+                }
+                writeThreads = null;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void dropAllData() {
+        ensureOpen();
+        lockLog();
+        List<FileBucket> buckets = fileBuckets;
+        writeLockAllBuckets(buckets);
+        for (FileBucket bucket : buckets) {
+            for (FileInfo file : bucket.getFiles()) {
+                closeAppendChannel(file);
+                discardCachedContents(file);
+                deleteFile(file);
+            }
+            bucket.getFiles().clear();
+            bucket.setMemTable(new MemTable<T>());
+            bucket.setShouldBeCleanedBeforeRead(false);
+        }
+        makeSureAllFileBucketsHaveAtLeastOneFile();
+        initializeKeySketches();
+        metaFileJournal.snapshotRequired();
+        writeUnlockAllBuckets(buckets);
+        unlockLog();
+        writeMetaFile();
+    }
+
+    /**
+     * Rewrites all dirty files with urgent compactions and waits until they are finished. Urgent compactions have their
+     * own threads, so this can also be called from a thread of the compaction pool.
+     */
+
+    private synchronized void cleanAllFiles() {
+        AtomicInteger numOfFilesRewritten = new AtomicInteger(0);
+        List<Future<?>> compactions = new ArrayList<>();
+        for (FileBucket bucket : fileBuckets) {
+            compactions.add(compactionScheduler.submitUrgent(() -> numOfFilesRewritten.addAndGet(rewriteBucket(bucket, true))));
+        }
+        try {
+            for (Future<?> compaction : compactions) {
+                compaction.get();
+            }
+        } catch (InterruptedException | ExecutionException exp) {
+            throw new RuntimeException("Unexpected exception while rewriting files of " + getName(), exp);
+        }
+        if (metaFileOutOfSync) {
+            writeMetaFile();
+        }
+        if (DBUtils.DEBUG && numOfFilesRewritten.get() > 0) {
+            UI.write("Rewritten " + numOfFilesRewritten + " files for " + getName());
+        }
+    }
+
+    /**
+     * Schedules a background compaction for every bucket with files that should be rewritten
+     */
+
+    private void scheduleCompactions() {
+        for (FileBucket bucket : fileBuckets) {
+            double priority = getCompactionPriority(bucket);
+            if (priority > 0) {
+                compactionScheduler.schedule(bucket, priority, () -> compactInBackground(bucket));
+            }
+        }
+    }
+
+    /**
+     * The number of dirty bytes in the files of this bucket that should be rewritten, weighted by the number of reads
+     * of dirty files since the last compaction. 0 if no file should be rewritten.
+     */
+
+    private double getCompactionPriority(FileBucket bucket) {
+        bucket.lockRead();
+        try {
+            long dirtyBytes = 0;
+            for (FileInfo file : bucket.getFiles()) {
+                if (needsRewrite(file, false)) {
+                    dirtyBytes += file.getWriteSize() - file.getReadSize();
+                }
+            }
+            return dirtyBytes * (1.0 + bucket.getReadsOfDirtyFiles());
+        } finally {
+            bucket.unlockRead();
+        }
+    }
+
+    private void compactInBackground(FileBucket bucket) {
+        if (runningCompactionsLock.readLock().tryLock()) {
+            try {
+                if (!closeWasRequested()) {
+                    rewriteBucket(bucket, false);
+                }
+            } finally {
+                runningCompactionsLock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Splits buckets with too many files or with a contended lock in two buckets, and merges neighbouring buckets with
+     * few files. Buckets are split and merged at file boundaries, so no files are rewritten. A bucket never spans more
+     * than one of the ranges of {@link #BITS_TO_DISCARD_FOR_FILE_BUCKETS}.
+     */
+
+    private synchronized void updateBucketLayout() {
+        if (!runningCompactionsLock.readLock().tryLock()) {
+            return; //closing
+        }
+        try {
+            List<FileBucket> buckets = fileBuckets;
+            long[] contendedLocks = new long[buckets.size()];
+            for (int i = 0; i < buckets.size(); i++) {
+                contendedLocks[i] = buckets.get(i).countAndResetContendedLocks();
+            }
+            int ind = 0;
+            while (ind < buckets.size() && !closeWasRequested()) {
+                FileBucket bucket = buckets.get(ind);
+                int numOfFiles = bucket.getFiles().size();
+                if (numOfFiles > settings.getMaxFilesPerBucket() || (numOfFiles > 1 && contendedLocks[ind] >= CONTENDED_LOCKS_TO_SPLIT)) {
+                    splitBucket(bucket);
+                    ind++;
+                } else if (ind + 1 < buckets.size() && canBeMerged(bucket, buckets.get(ind + 1), contendedLocks[ind] + contendedLocks[ind + 1])) {
+                    mergeBuckets(bucket, buckets.get(ind + 1));
+                    ind += 2;
+                } else {
+                    ind++;
+                }
+            }
+        } finally {
+            runningCompactionsLock.readLock().unlock();
+        }
+    }
+
+    private boolean canBeMerged(FileBucket first, FileBucket second, long contendedLocks) {
+        long minTimeOfCreation = System.currentTimeMillis() - MIN_AGE_OF_MERGED_BUCKETS;
+        return contendedLocks == 0
+                && first.getFiles().size() + second.getFiles().size() <= settings.getMaxFilesPerBucket() / 4
+                && first.getFirstKey() >> BITS_TO_DISCARD_FOR_FILE_BUCKETS == second.getFirstKey() >> BITS_TO_DISCARD_FOR_FILE_BUCKETS
+                && first.getTimeOfCreation() < minTimeOfCreation && second.getTimeOfCreation() < minTimeOfCreation;
+    }
+
+    private void splitBucket(FileBucket bucket) {
+        if (!bucket.tryLockRewrite()) {
+            return; //bucket is being rewritten, will try again later
+        }
+        try {
+            bucket.lockWrite();
+            try {
+                List<FileInfo> files = bucket.getFiles();
+                if (files.size() < 2) {
+                    return;
+                }
+                int splitInd = files.size() / 2;
+                long splitKey = files.get(splitInd).getFirstKey();
+                List<FileBucket> oldBuckets = Collections.singletonList(bucket);
+                FileBucket first = createBucket(oldBuckets, bucket.getFirstKey(), splitKey - 1, files.subList(0, splitInd));
+                FileBucket second = createBucket(oldBuckets, splitKey, bucket.getLastKey(), files.subList(splitInd, files.size()));
+                replaceBuckets(oldBuckets, Arrays.asList(first, second));
+            } finally {
+                bucket.unlockWrite();
+            }
+        } finally {
+            bucket.unlockRewrite();
+        }
+    }
+
+    private void mergeBuckets(FileBucket first, FileBucket second) {
+        if (!first.tryLockRewrite()) {
+            return;
+        }
+        try {
+            if (!second.tryLockRewrite()) {
+                return;
+            }
+            try {
+                first.lockWrite();
+                second.lockWrite();
+                try {
+                    List<FileInfo> files = new ArrayList<>(first.getFiles());
+                    files.addAll(second.getFiles());
+                    List<FileBucket> oldBuckets = Arrays.asList(first, second);
+                    replaceBuckets(oldBuckets, Collections.singletonList(createBucket(oldBuckets, first.getFirstKey(), second.getLastKey(), files)));
+                } finally {
+                    second.unlockWrite();
+                    first.unlockWrite();
+                }
+            } finally {
+                second.unlockRewrite();
+            }
+        } finally {
+            first.unlockRewrite();
+        }
+    }
+
+    /**
+     * Creates a bucket with (part of) the files and mem tables of the buckets it will replace. Should be called with
+     * the write and rewrite locks of these buckets, so their mem tables are not being flushed.
+     */
+
+    private FileBucket createBucket(List<FileBucket> oldBuckets, long firstKey, long lastKey, List<FileInfo> files) {
+        FileBucket result = new FileBucket(firstKey, lastKey);
+        result.getFiles().addAll(files);
+        Long endKey = lastKey == Long.MAX_VALUE ? null : lastKey + 1;
+        MemTable<T> memTable = getMemTable(result);
+        for (FileBucket oldBucket : oldBuckets) {
+            memTable.putAll(getMemTable(oldBucket), firstKey, endKey);
+            result.setShouldBeCleanedBeforeRead(result.shouldBeCleanedBeforeRead() || oldBucket.shouldBeCleanedBeforeRead());
+        }
+        if (settings.useKeySketches()) {
+            KeySketch keySketch = createKeySketch(result);
+            if (keySketch == null && oldBuckets.size() > 1 && oldBuckets.stream().allMatch(oldBucket -> oldBucket.getKeySketch() != null)) {
+                //merged buckets with dirty files, the keys of the appended values are only known by the old sketches
+                keySketch = oldBuckets.get(0).getKeySketch().copy();
+                for (FileBucket oldBucket : oldBuckets.subList(1, oldBuckets.size())) {
+                    keySketch.merge(oldBucket.getKeySketch());
+                }
+            }
+            result.setKeySketch(keySketch);
+        }
+        return result;
+    }
+
+    /**
+     * Sketch of the keys of the files and the mem tables of this bucket, null if one of its files is dirty or has no
+     * sketch. Should be called with the write lock of the bucket.
+     */
+
+    private KeySketch createKeySketch(FileBucket bucket) {
+        KeySketch result = new KeySketch();
+        for (FileInfo file : bucket.getFiles()) {
+            if (!file.isClean()) {
+                return null;
+            } else if (file.getKeySketch() != null) {
+                result.merge(file.getKeySketch());
+            } else if (file.getNumOfValues() != 0) {
+                return null;
+            }
+        }
+        MemTable<T> memTable = getMemTable(bucket);
+        MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+        for (MemTable<T> table : Arrays.asList(memTable, flushingMemTable)) {
+            if (table != null) {
+                for (Long key : table.getKeys()) {
+                    result.add(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Buckets with dirty files (or files without a sketch) get a sketch once all their files are rewritten
+     */
+
+    private void initializeKeySketches() {
+        if (settings.useKeySketches()) {
+            for (FileBucket bucket : fileBuckets) {
+                bucket.setKeySketch(createKeySketch(bucket));
+            }
+        }
+    }
+
+    /**
+     * Publishes a new list of buckets. Threads that still hold a reference to one of the old buckets will see that it
+     * was replaced when they lock it, and look up the new bucket of their keys.
+     */
+
+    private void replaceBuckets(List<FileBucket> oldBuckets, List<FileBucket> newBuckets) {
+        List<FileBucket> buckets = new ArrayList<>(fileBuckets);
+        int ind = buckets.indexOf(oldBuckets.get(0));
+        buckets.subList(ind, ind + oldBuckets.size()).clear();
+        buckets.addAll(ind, newBuckets);
+        fileBuckets = buckets;
+        for (FileBucket oldBucket : oldBuckets) {
+            oldBucket.wasReplaced();
+        }
+        metaFileJournal.layoutWasChanged();
+        metaFileOutOfSync = true;
+    }
+
+    /**
+     * Rewrites the dirty files of this bucket. New versions of the files are written without holding the lock of the
+     * bucket, the lock is only taken to take a snapshot of the files and to swap the old and the new versions. The
+     * rewrite lock is taken for one plan at a time. Background compactions only take their budget of bytes once they
+     * hold the rewrite lock, so the budget is not spent on plans that are not executed.
+     */
+
+    private int rewriteBucket(FileBucket bucket, boolean forceClean) {
+        try {
+            int numOfRewrittenFiles = 0;
+            int fileInd = 0;
+            while (!closeWasRequested() || forceClean) {
+                if (forceClean) {
+                    bucket.lockRewrite();
+                } else if (!bucket.tryLockRewrite()) {
+                    break; //will not clean bucket now but continue with other buckets, we'll be back soon.
+                }
+                try {
+                    if (bucket.isReplaced()) {
+                        break; //the files are rewritten by the buckets that replaced this bucket
+                    }
+                    RewritePlan<T> plan = planRewrite(bucket, fileInd, forceClean);
+                    if (plan == null) {
+                        break;
+                    }
+                    if (!forceClean) {
+                        //the old files are read and new files of about the same size are written
+                        compactionScheduler.acquireBytes(2 * plan.getSizeOfFiles());
+                    }
+                    fileInd = swapNewFiles(bucket, plan, writeNewFiles(plan));
+                } finally {
+                    bucket.unlockRewrite();
+                }
+                if (fileInd == -1) {
+                    break; //files of the bucket were changed in the mean time (e.g. all data was dropped)
+                }
+                numOfRewrittenFiles++;
+            }
+            bucket.lockWrite();
+            if (bucket.shouldBeCleanedBeforeRead() && bucket.getFiles().stream().noneMatch(this::needsIndexing)) {
+                bucket.setShouldBeCleanedBeforeRead(false);
+                metaFileJournal.layoutWasChanged();
+                metaFileOutOfSync = true;
+            }
+            if (settings.useKeySketches() && numOfRewrittenFiles > 0 && !bucket.isReplaced()) {
+                KeySketch keySketch = createKeySketch(bucket);
+                if (keySketch != null) {
+                    bucket.setKeySketch(keySketch); //forgets the keys that were deleted
+                }
+            }
+            bucket.unlockWrite();
+            if (numOfRewrittenFiles > 0) {
+                bucket.resetReadsOfDirtyFiles();
+                metaFileOutOfSync = true;
+            }
+            return numOfRewrittenFiles;
+        } catch (Exception exp) {
+            UI.writeError("Unexpected exception while rewriting files", exp);
+            throw new RuntimeException("Unexpected exception while rewriting files", exp);
+        }
+    }
+
+    /**
+     * Returns the estimated number of bytes of the flushed mem tables
+     */
+
+    private long flushMemTables() {
+        long bytesFlushed = 0;
+        for (FileBucket bucket : fileBuckets) {
+            bytesFlushed += flushMemTable(bucket);
+        }
+        return bytesFlushed;
+    }
+
+    /**
+     * Merges the values in the mem table of this bucket with its files, one file at a time. New values are written to a
+     * new mem table in the mean time. Returns the estimated number of bytes of the flushed mem table.
+     */
+
+    private long flushMemTable(FileBucket bucket) {
+        bucket.lockRewrite();
+        try {
+            MemTable<T> memTable;
+            bucket.lockWrite();
+            try {
+                memTable = getMemTable(bucket);
+                if (memTable.isEmpty() || bucket.isReplaced()) {
+                    return 0;
+                }
+                bucket.setFlushingMemTable(memTable);
+                bucket.setMemTable(new MemTable<T>());
+            } finally {
+                bucket.unlockWrite();
+            }
+            long bytesFlushed = memTable.getMemoryUsage(getBytesPerValueInMemTables());
+            while (!memTable.isEmpty()) {
+                RewritePlan<T> plan = planMemTableFlush(bucket, memTable);
+                List<FileInfo> newFiles = writeNewFiles(plan);
+                if (swapNewFiles(bucket, plan, newFiles) == -1) {
+                    break; //all data was dropped in the mean time
+                }
+            }
+            bucket.lockWrite();
+            bucket.setFlushingMemTable(null);
+            bucket.unlockWrite();
+            return bytesFlushed;
+        } catch (IOException exp) {
+            throw new RuntimeException("Unexpected exception while flushing values of " + getName(), exp);
+        } finally {
+            bucket.unlockRewrite();
+        }
+    }
+
+    private RewritePlan<T> planMemTableFlush(FileBucket bucket, MemTable<T> memTable) {
+        bucket.lockRead();
+        try {
+            FileInfo file = bucket.getFile(memTable.getFirstKey());
+            int fileInd = bucket.getFileInd(file.getFirstKey());
+            return new RewritePlan<>(fileInd, Collections.singletonList(file), new int[]{file.getWriteSize()}, MAX_FILE_SIZE_READ, memTable, getEndKey(bucket, file));
+        } finally {
+            bucket.unlockRead();
+        }
+    }
+
+    /**
+     * Finds the next file (starting from fileInd) that should be rewritten and the small files after it that can be
+     * merged with it, and takes a snapshot of their sizes.
+     */
+
+    private RewritePlan<T> planRewrite(FileBucket bucket, int fileInd, boolean forceClean) {
+        bucket.lockRead();
+        try {
+            List<FileInfo> files = bucket.getFiles();
+            for (; fileInd < files.size(); fileInd++) {
+                FileInfo file = files.get(fileInd);
+                long targetSize = MAX_FILE_SIZE_READ;
+                if (needsRewrite(file, forceClean)) {
+                    List<FileInfo> filesToRewrite = new ArrayList<>();
+                    filesToRewrite.add(file);
+                    long combinedSize = file.getWriteSize();
+                    if (!inWritePhase()) {
+                        //merge with the next files if they are too small
+                        int nextFileInd = fileInd + 1;
+                        while (nextFileInd < files.size() && combinedSize + files.get(nextFileInd).getWriteSize() < targetSize) {
+                            combinedSize += files.get(nextFileInd).getWriteSize();
+                            filesToRewrite.add(files.get(nextFileInd++));
+                        }
+                    }
+                    int[] sizes = new int[filesToRewrite.size()];
+                    for (int i = 0; i < sizes.length; i++) {
+                        sizes[i] = filesToRewrite.get(i).getWriteSize();
+                    }
+                    return new RewritePlan<>(fileInd, filesToRewrite, sizes, targetSize, null, null);
+                }
+            }
+            return null;
+        } finally {
+            bucket.unlockRead();
+        }
+    }
+
+    /**
+     * In the read phase all dirty files are rewritten. In the write phase only dirty files that approach the maximum
+     * size are rewritten, the values appended to the other files are combined when these files are read.
+     */
+
+    private boolean needsRewrite(FileInfo file, boolean forceClean) {
+        if (file.isClean()) {
+            return false;
+        } else if (forceClean || inReadPhase()) {
+            return true;
+        } else {
+            return file.getWriteSize() > MAX_FILE_SIZE_WRITE / 4 * 3;
+        }
+    }
+
+    /**
+     * Writes the new versions of the files in the plan to temporary files. Does not hold any lock, so values can be
+     * appended to the old versions in the mean time. These values are handled in {@link #swapNewFiles}.
+     */
+
+    private List<FileInfo> writeNewFiles(RewritePlan<T> plan) throws IOException {
+        if (plan.getMemTable() == null && canRewritePrimitiveValues()) {
+            return writeNewFilesOfPrimitiveValues(plan);
+        }
+        List<KeyValue<T>> values = new ArrayList<>();
+        for (int i = 0; i < plan.getFiles().size(); i++) {
+            values.addAll(readAllValues(plan.getFiles().get(i), plan.getSizes()[i]));
+        }
+        if (plan.getMemTable() != null) {
+            values = plan.getMemTable().merge(values, plan.getFiles().get(0).getFirstKey(), plan.getEndKey(), getCombinator());
+        }
+        return writeNewFiles(plan.getFiles().get(0).getFirstKey(), values.iterator(), plan.getTargetSize());
+    }
+
+    /**
+     * Writes sorted values to new (temporary) files of at most targetSize bytes
+     */
+
+    private List<FileInfo> writeNewFiles(long firstKey, Iterator<KeyValue<T>> values, long targetSize) throws IOException {
+        List<FileInfo> newFiles = new ArrayList<>();
+        FileInfo file = new FileInfo(firstKey, 0, 0);
+        CleanFileWriter writer = createCleanFileWriter(file);
+        try {
+            PrimitiveValues keysInFile = new PrimitiveValues();
+            while (values.hasNext()) {
+                KeyValue<T> entry = values.next();
+                long key = entry.getKey();
+                byte[] objectAsBytes = SerializationUtils.objectToBytesCheckForNull(entry.getValue(), getObjectClass());
+                int lengthOfValue = sizeOfValues == -1 ? INT_SIZE + objectAsBytes.length : objectAsBytes.length;
+                if (writer.getNumOfValues() > 0 && writer.getSize() + LONG_SIZE + lengthOfValue > targetSize) {
+                    //Create new file
+                    finishNewFile(file, writer, keysInFile, 0);
+                    newFiles.add(file);
+                    file = new FileInfo(key, 0, 0);
+                    writer = createCleanFileWriter(file);
+                    keysInFile.clear();
+                }
+                writer.write(key, objectAsBytes, sizeOfValues == -1);
+                if (settings.useBloomFilters() || settings.useKeySketches()) {
+                    keysInFile.add(key, 0);
+                }
+            }
+            finishNewFile(file, writer, keysInFile, 0);
+            newFiles.add(file);
+            return newFiles;
+        } catch (IOException | RuntimeException exp) {
+            //for example unsorted entries in a bulk load, remove the temporary files
+            writer.close();
+            newFiles.add(file);
+            deleteTempFiles(newFiles);
+            throw exp;
+        }
+    }
+
+    /**
+     * Values of type Long, Double, Integer or Float are rewritten without creating objects if the combinator can combine
+     * them in their serialized form.
+     */
+
+    private boolean canRewritePrimitiveValues() {
+        return sizeOfValues != -1 && getCombinator() instanceof PrimitiveCombinator;
+    }
+
+    /**
+     * Same as {@link #writeNewFiles(RewritePlan)}, but reads, sorts and writes the values in reused primitive arrays and
+     * buffers, so a rewrite does not create an object for every value.
+     */
+
+    private List<FileInfo> writeNewFilesOfPrimitiveValues(RewritePlan<T> plan) throws IOException {
+        RewriteBuffers buffers = rewriteBuffers.poll();
+        if (buffers == null) {
+            buffers = new RewriteBuffers();
+        }
+        try {
+            buffers.values.clear();
+            for (int i = 0; i < plan.getFiles().size(); i++) {
+                readPrimitiveValues(plan.getFiles().get(i), plan.getSizes()[i], buffers);
+            }
+            return writeNewFiles(plan.getFiles().get(0).getFirstKey(), buffers.values, plan.getTargetSize());
+        } finally {
+            rewriteBuffers.offer(buffers);
+        }
+    }
+
+    /**
+     * Writes sorted primitive values to new (temporary) files of at most targetSize bytes
+     */
+
+    private List<FileInfo> writeNewFiles(long firstKey, PrimitiveValues values, long targetSize) throws IOException {
+        List<FileInfo> newFiles = new ArrayList<>();
+        FileInfo file = new FileInfo(firstKey, 0, 0);
+        CleanFileWriter writer = createCleanFileWriter(file);
+        try {
+            int startOfFile = 0;
+            for (int i = 0; i < values.size(); i++) {
+                long key = values.getKey(i);
+                if (writer.getNumOfValues() > 0 && writer.getSize() + LONG_SIZE + sizeOfValues > targetSize) {
+                    //Create new file
+                    finishNewFile(file, writer, values, startOfFile);
+                    newFiles.add(file);
+                    file = new FileInfo(key, 0, 0);
+                    writer = createCleanFileWriter(file);
+                    startOfFile = i;
+                }
+                writer.write(key, values.getValue(i), sizeOfValues);
+            }
+            finishNewFile(file, writer, values, startOfFile);
+            newFiles.add(file);
+            return newFiles;
+        } catch (IOException | RuntimeException exp) {
+            writer.close();
+            newFiles.add(file);
+            deleteTempFiles(newFiles);
+            throw exp;
+        }
+    }
+
+    private void deleteTempFiles(List<FileInfo> newFiles) throws IOException {
+        for (FileInfo newFile : newFiles) {
+            Files.deleteIfExists(toTempFile(newFile).toPath());
+        }
+    }
+
+    /**
+     * Replaces the old versions of the files by the new versions. Values that were appended to the old versions while
+     * the new versions were written, are appended to the new versions. Returns the index of the first file after the new
+     * files, or -1 if the files of the bucket were changed by another thread.
+     */
+
+    private int swapNewFiles(FileBucket bucket, RewritePlan<T> plan, List<FileInfo> newFiles) throws IOException {
+        lockLog();
+        bucket.lockWrite();
+        try {
+            List<FileInfo> files = bucket.getFiles();
+            List<FileInfo> oldFiles = plan.getFiles();
+            for (int i = 0; i < oldFiles.size(); i++) {
+                int ind = plan.getStartInd() + i;
+                if (ind >= files.size() || files.get(ind) != oldFiles.get(i)) {
+                    deleteTempFiles(newFiles);
+                    return -1;
+                }
+            }
+            List<KeyValue<T>> appendedValues = new ArrayList<>();
+            for (int i = 0; i < oldFiles.size(); i++) {
+                FileInfo oldFile = oldFiles.get(i);
+                closeAppendChannel(oldFile);
+                if (oldFile.getWriteSize() > plan.getSizes()[i]) {
+                    appendedValues.addAll(readAppendedValues(oldFile, plan.getSizes()[i], oldFile.getWriteSize()));
+                }
+                discardCachedContents(oldFile);
+            }
+            Set<Long> newFirstKeys = new HashSet<>();
+            for (FileInfo newFile : newFiles) {
+                preserveCheckpointVersion(newFile);
+                Files.move(toTempFile(newFile).toPath(), toFile(newFile).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                fileWasChanged(newFile);
+                metaFileJournal.fileWasWritten(newFile);
+                newFirstKeys.add(newFile.getFirstKey());
+            }
+            for (FileInfo oldFile : oldFiles) {
+                if (!newFirstKeys.contains(oldFile.getFirstKey())) {
+                    deleteFile(oldFile);
+                }
+            }
+            files.subList(plan.getStartInd(), plan.getStartInd() + oldFiles.size()).clear();
+            files.addAll(plan.getStartInd(), newFiles);
+            KeySketch keySketch = bucket.getKeySketch();
+            if (keySketch != null) {
+                //values of a bulk load are written to the new files without being written to the bucket
+                for (FileInfo newFile : newFiles) {
+                    keySketch.merge(newFile.getKeySketch());
+                }
+            }
+            if (plan.getMemTable() != null) {
+                //these values are now in the new files
+                plan.getMemTable().remove(oldFiles.get(0).getFirstKey(), plan.getEndKey());
+            }
+            if (!appendedValues.isEmpty()) {
+                MappedLists<FileInfo, KeyValue<T>> appendedValuesToFiles = new MappedLists<>();
+                for (KeyValue<T> value : appendedValues) {
+                    appendedValuesToFiles.get(bucket.getFile(value.getKey())).add(value);
+                }
+                for (FileInfo file : appendedValuesToFiles.keySet()) {
+                    appendValues(file, appendedValuesToFiles.get(file));
+                }
+            }
+            metaFileOutOfSync = true;
+            return plan.getStartInd() + newFiles.size();
+        } finally {
+            bucket.unlockWrite();
+            unlockLog();
+        }
+    }
+
+    private CleanFileWriter createCleanFileWriter(FileInfo file) throws IOException {
+        boolean compressed = settings.useCompression();
+        boolean deltaEncoded = settings.deltaEncodeKeys();
+        //values with a fixed width are found without an index if the file is in the plain format
+        boolean needsIndex = compressed || deltaEncoded || sizeOfValues == -1;
+        FileIndexBuilder index = needsIndex ? new FileIndexBuilder(settings.getIndexBlockSize()) : null;
+        return new CleanFileWriter(toTempFile(file), index, compressed, deltaEncoded, settings.getIndexBlockSize(), file.getFirstKey());
+    }
+
+    /**
+     * @param keys        only used to create the bloom filter and the key sketch of the file
+     * @param startOfFile index of the first key of this file in keys
+     */
+
+    private void finishNewFile(FileInfo file, CleanFileWriter writer, PrimitiveValues keys, int startOfFile) throws IOException {
+        int sizeOfFile = writer.close();
+        file.fileWasRewritten(writer.getIndex(), settings.useCompression(), settings.deltaEncodeKeys(), writer.getNumOfValues(), sizeOfFile, sizeOfFile);
+        if (settings.useBloomFilters()) {
+            LongBloomFilter bloomFilter = new LongBloomFilter(writer.getNumOfValues(), settings.getBloomFilterFpp());
+            for (int i = startOfFile; i < startOfFile + writer.getNumOfValues(); i++) {
+                bloomFilter.put(keys.getKey(i));
+            }
+            setBloomFilter(file, bloomFilter);
+        }
+        if (settings.useKeySketches()) {
+            KeySketch keySketch = new KeySketch();
+            for (int i = startOfFile; i < startOfFile + writer.getNumOfValues(); i++) {
+                keySketch.add(keys.getKey(i));
+            }
+            file.setKeySketch(keySketch);
+        }
+    }
+
+    private void deleteFile(FileInfo file) {
+        metaFileJournal.fileWasRemoved(file);
+        try {
+            if (preserveCheckpointVersion(file)) {
+                return;
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to keep checkpoint of file " + toFile(file).getAbsolutePath(), exp);
+        }
+        boolean success = toFile(file).delete();
+        if (!success) {
+            throw new RuntimeException("Failed to delete file " + toFile(file).getAbsolutePath());
+        }
+    }
+
+    private void dataWasWritten() {
+        timeOfLastWrite = System.currentTimeMillis();
+        metaFileOutOfSync = true;
+    }
+
+    private void dataWasRead() {
+        timeOfLastRead = System.currentTimeMillis();
+    }
+
+    private boolean inReadPhase() {
+        return !inWritePhase();
+    }
+
+    private boolean inWritePhase() {
+        return timeOfLastWrite > timeOfLastRead && System.currentTimeMillis() - timeOfLastRead > 10 * 1000;
+    }
+
+    private void updateSizeOfCachedFileContents(long byteDiff) {
+        synchronized (sizeOfCachedFileContentsLock) {
+            currentSizeOfCachedFileContents += byteDiff;
+        }
+    }
+
+    private void writeLockAllBuckets(List<FileBucket> fileBuckets) {
+        for (FileBucket fileBucket : fileBuckets) {
+            fileBucket.lockWrite();
+        }
+    }
+
+    private void writeUnlockAllBuckets(List<FileBucket> fileBuckets) {
+        for (FileBucket fileBucket : fileBuckets) {
+            fileBucket.unlockWrite();
+        }
+    }
+
+    private void readLockAllBuckets(List<FileBucket> fileBuckets) {
+        for (FileBucket fileBucket : fileBuckets) {
+            fileBucket.lockRead();
+        }
+    }
+
+    private void readUnlockAllBuckets(List<FileBucket> fileBuckets) {
+        for (FileBucket fileBucket : fileBuckets) {
+            fileBucket.unlockRead();
+        }
+    }
+
+    /**
+     * Returns the bucket of this key, locked for reading. If the files of the bucket were reconstructed from disk (and
+     * don't have an index yet), they are indexed first.
+     */
+
+    private FileBucket lockBucketForRead(long key) {
+        while (true) {
+            FileBucket bucket = getBucket(key);
+            bucket.lockRead();
+            while (bucket.shouldBeCleanedBeforeRead() && !bucket.isReplaced()) {
+                bucket.unlockRead();
+                indexRecoveredFiles(bucket);
+                bucket.lockRead();
+            }
+            if (!bucket.isReplaced()) {
+                return bucket;
+            }
+            bucket.unlockRead(); //bucket was split or merged after we looked it up
+        }
+    }
+
+    private void discardCachedContents(FileInfo file) {
+        blockCache.removeBlocks(file);
+        synchronized (file) {
+            long releasedBytes = file.discardFileContents();
+            updateSizeOfCachedFileContents(-releasedBytes);
+            file.discardMappedFileContents();
+        }
+        setBloomFilter(file, null);
+    }
+
+    private int appendValues(FileInfo file, List<KeyValue<T>> values) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        if (file.isCompressed()) {
+            //appended values are written as one extra (unsorted) block
+            ByteArrayOutputStream blockBos = new ByteArrayOutputStream();
+            DataOutputStream blockOutputStream = new DataOutputStream(blockBos);
+            for (KeyValue<T> value : values) {
+                writeValue(blockOutputStream, value.getKey(), value.getValue());
+            }
+            CleanFileWriter.writeCompressedBlock(dos, blockBos.toByteArray());
+        } else {
+            for (KeyValue<T> value : values) {
+                writeValue(dos, value.getKey(), value.getValue());
+            }
+        }
+        byte[] bytes = bos.toByteArray();
+        int attempts = 1;
+        while (!getAppendChannel(file).append(bytes)) {
+            //channel was closed by another thread in the mean time, try again with a new channel
+            if (attempts++ == MAX_APPEND_ATTEMPTS) {
+                throw new IOException("Failed to append values to " + toFile(file).getAbsolutePath() + ", its append channel was closed " + MAX_APPEND_ATTEMPTS + " times");
+            }
+        }
+        file.increaseWriteSize(bytes.length);
+        file.valuesWereAppended(values.size());
+        fileWasChanged(file);
+        metaFileJournal.fileWasAppended(file);
+        return bytes.length;
+    }
+
+    /**
+     * Returns the open append channel of this file or opens a new one. If too many channels are open, the least recently
+     * used channel is closed.
+     */
+
+    private AppendChannel getAppendChannel(FileInfo file) throws IOException {
+        AppendChannel channel;
+        AppendChannel closingChannel;
+        synchronized (appendChannels) {
+            channel = appendChannels.get(file);
+            if (channel != null) {
+                return channel;
+            }
+            closingChannel = closingAppendChannels.get(file);
+        }
+        if (closingChannel != null) {
+            //the values of the evicted channel should be written before the values of the new channel
+            closingChannel.flush();
+        }
+        Map<FileInfo, AppendChannel> evictedChannels = new HashMap<>();
+        synchronized (appendChannels) {
+            channel = appendChannels.get(file);
+            if (channel == null) {
+                channel = new AppendChannel(toFile(file), settings.getAppendBufferSize());
+                appendChannels.put(file, channel);
+                if (appendChannels.size() > settings.getMaxOpenAppendChannels()) {
+                    Iterator<Map.Entry<FileInfo, AppendChannel>> it = appendChannels.entrySet().iterator();
+                    Map.Entry<FileInfo, AppendChannel> leastRecentlyUsed = it.next();
+                    it.remove();
+                    evictedChannels.put(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+                    closingAppendChannels.put(leastRecentlyUsed.getKey(), leastRecentlyUsed.getValue());
+                }
+            }
+        }
+        closeRemovedAppendChannels(evictedChannels);
+        return channel;
+    }
+
+    /**
+     * Closes channels that were moved from the open channels to the closing channels. Closing a channel flushes its
+     * buffer, so this is done outside the monitor of the channels. Until a channel is closed, flushAppendChannel(..)
+     * can still find it and getAppendChannel(..) waits for its values before opening a new channel for the same file.
+     */
+
+    private void closeRemovedAppendChannels(Map<FileInfo, AppendChannel> removedChannels) throws IOException {
+        try {
+            for (AppendChannel channel : removedChannels.values()) {
+                channel.close();
+            }
+        } finally {
+            synchronized (appendChannels) {
+                for (Map.Entry<FileInfo, AppendChannel> removedChannel : removedChannels.entrySet()) {
+                    closingAppendChannels.remove(removedChannel.getKey(), removedChannel.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure all values that were appended to this file can be read from disk
+     */
+
+    private void flushAppendChannel(FileInfo file) throws IOException {
+        AppendChannel channel;
+        synchronized (appendChannels) {
+            channel = appendChannels.get(file);
+            if (channel == null) {
+                channel = closingAppendChannels.get(file);
+            }
+        }
+        if (channel != null) {
+            channel.flush();
+        }
+    }
+
+    private void closeAppendChannel(FileInfo file) {
+        Map<FileInfo, AppendChannel> removedChannels = new HashMap<>();
+        synchronized (appendChannels) {
+            AppendChannel channel = appendChannels.remove(file);
+            if (channel != null) {
+                removedChannels.put(file, channel);
+                closingAppendChannels.put(file, channel);
+            }
+        }
+        try {
+            closeRemovedAppendChannels(removedChannels);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to close appended values of file " + toFile(file).getAbsolutePath(), exp);
+        }
+    }
+
+    private void flushAppendChannels() {
+        List<AppendChannel> channels;
+        synchronized (appendChannels) {
+            channels = new ArrayList<>(appendChannels.values());
+        }
+        try {
+            for (AppendChannel channel : channels) {
+                channel.flush();
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to flush appended values of " + getName(), exp);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the buffers of the closed channels
+     */
+
+    private long closeAppendChannels() {
+        Map<FileInfo, AppendChannel> removedChannels;
+        synchronized (appendChannels) {
+            removedChannels = new HashMap<>(appendChannels);
+            appendChannels.clear();
+            closingAppendChannels.putAll(removedChannels);
+        }
+        try {
+            closeRemovedAppendChannels(removedChannels);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to close appended values of " + getName(), exp);
+        }
+        return (long) removedChannels.size() * settings.getAppendBufferSize();
+    }
+
+    private int writeValue(DataOutputStream dos, long key, T value) throws IOException {
+        dos.writeLong(key);
+        byte[] objectAsBytes = SerializationUtils.objectToBytesCheckForNull(value, getObjectClass());
+        if (sizeOfValues == -1) {
+            dos.writeInt(objectAsBytes.length);
+            dos.write(objectAsBytes);
+            return 8 + 4 + objectAsBytes.length;
+        } else {
+            dos.write(objectAsBytes);
+            return 8 + sizeOfValues;
+        }
+    }
+
+    private ReadValue<T> readValue(ByteBuffer buffer, int position) throws IOException {
+        int lengthOfObject;
+        int lenghtOfLengthValue;
+        if (sizeOfValues == -1) {
+            checkFitsInBuffer(buffer, position, INT_SIZE);
+            lengthOfObject = buffer.getInt(position);
+            lenghtOfLengthValue = INT_SIZE;
+        } else {
+            lengthOfObject = sizeOfValues;
+            lenghtOfLengthValue = 0;
+        }
+        checkFitsInBuffer(buffer, position + lenghtOfLengthValue, lengthOfObject);
+        T value;
+        if (buffer.hasArray()) {
+            value = SerializationUtils.bytesToObjectCheckForNull(buffer.array(), buffer.arrayOffset() + position + lenghtOfLengthValue, lengthOfObject, getObjectClass());
+        } else {
+            //memory mapped buffer, only copy the bytes of this object to the heap
+            byte[] objectAsBytes = new byte[lengthOfObject];
+            ByteBuffer view = buffer.duplicate();
+            view.position(position + lenghtOfLengthValue);
+            view.get(objectAsBytes);
+            value = SerializationUtils.bytesToObjectCheckForNull(objectAsBytes, 0, lengthOfObject, getObjectClass());
+        }
+        return new ReadValue<>(lengthOfObject + lenghtOfLengthValue, value);
+    }
+
+    private List<FileBucket> createEmptyFileBuckets() {
+        List<FileBucket> bucket = new ArrayList<>(1 << (64 - BITS_TO_DISCARD_FOR_FILE_BUCKETS));
+        long start = Long.MIN_VALUE >> BITS_TO_DISCARD_FOR_FILE_BUCKETS;
+        long end = Long.MAX_VALUE >> BITS_TO_DISCARD_FOR_FILE_BUCKETS;
+        for (long val = start; val <= end; val++) {
+            long firstKey = val << BITS_TO_DISCARD_FOR_FILE_BUCKETS;
+            long lastKey = ((val + 1) << BITS_TO_DISCARD_FOR_FILE_BUCKETS) - 1;
+            if (lastKey < firstKey) {
+                //overflow
+                lastKey = Long.MAX_VALUE;
+            }
+            bucket.add(new FileBucket(firstKey, lastKey));
+        }
+        return bucket;
+    }
+
+    private void checkDataDir() {
+        if (!directory.exists()) {
+            boolean success = directory.mkdirs();
+            if (!success) {
+                throw new RuntimeException("Failed to create directory " + directory.getAbsolutePath());
+            }
+        }
+        if (directory.isFile()) {
+            throw new IllegalArgumentException("File should be directory but is file! " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @param skipCheckOfFiles if true, the files on disk are not compared with the meta information (only safe if the
+     *                         data interface was closed cleanly)
+     */
+
+    private void initializeFiles(MetaFile metaFile, boolean skipCheckOfFiles) {
+        String[] filesInDir = skipCheckOfFiles ? null : this.directory.list();
+        if (metaFile != null && metaFileUpToDate(metaFile, filesInDir)) {
+            metaFileOutOfSync = false;
+            timeOfLastRead = metaFile.getLastRead();
+            timeOfLastWrite = metaFile.getLastWrite();
+            fileBuckets = metaFile.getFileBuckets();
+        } else {
+            metaFileOutOfSync = true;
+            metaFileJournal.snapshotRequired();
+            timeOfLastRead = timeOfLastWrite = 0;
+            fileBuckets = createEmptyFileBuckets();
+            if (filesInDir == null) {
+                filesInDir = this.directory.list();
+            }
+            if (filesInDir.length > 0) {
+                UI.write("Missing (up-to-date) meta information for " + getName() + " will reconstruct data structures from files found in directory.");
+                updateBucketsFromFiles(filesInDir);
+            }
+            makeSureAllFileBucketsHaveAtLeastOneFile();
+        }
+    }
+
+    /**
+     * @param filesInDir null if the files on disk should not be checked
+     */
+
+    private boolean metaFileUpToDate(MetaFile metaFile, String[] filesInDir) {
+        List<FileBucket> fileBuckets = metaFile.getFileBuckets();
+        if (fileBuckets == null || fileBuckets.isEmpty() || fileBuckets.get(0).getFirstKey() != Long.MIN_VALUE || fileBuckets.get(fileBuckets.size() - 1).getLastKey() != Long.MAX_VALUE) {
+            return false; //buckets should cover all keys
+        }
+        for (int i = 0; i < fileBuckets.size() - 1; i++) {
+            if (fileBuckets.get(i).getLastKey() + 1 != fileBuckets.get(i + 1).getFirstKey()) {
+                return false; //buckets should be sorted and should not overlap or leave gaps
+            }
+        }
+        for (String file : filesInDir == null ? new String[0] : filesInDir) {
+            if (file.matches("-?[0-9]+")) {
+                long key = Long.parseLong(file);
+                FileBucket bucket = getBucket(metaFile.getFileBuckets(), key);
+                long sizeOnDisk = new File(directory, file).length();
+                FileInfo fileInfo = bucket.getFile(key);
+                if (fileInfo.getFirstKey() != key) {
+                    return false; //the name of the file on disk should be equal to the first key
+                }
+                if (fileInfo.getWriteSize() != sizeOnDisk) {
+                    return false; //the file write size should be equal to the size on disk
+                }
+            }
+        }
+        for (FileBucket fileBucket : metaFile.getFileBuckets()) {
+            if (fileBucket.getFiles().isEmpty()) {
+                return false; //every bucket should contain at least one file
+            }
+            if (fileBucket.getFirstKey() != fileBucket.getFiles().get(0).getFirstKey()) {
+                return false; //the first key of the bucket should match the first key of the first file
+            }
+            for (int i = 0; i < fileBucket.getFiles().size() - 1; i++) {
+                if (fileBucket.getFiles().get(i).getFirstKey() >= fileBucket.getFiles().get(i + 1).getFirstKey()) {
+                    return false; //files should be sorted according to first key
                 }
-                bucket.unlockRead();
-                sizeOfAllFiles += fileSize;
-                next = fileIt.lockCurrentBucketAndGetNextFile();
-            }
-            if (numOfObjects == 0) {
-                return 0;
-            } else {
-                return sizeOfAllFiles * numOfObjects / sizeOfSampledFiles;
             }
-        } catch (IOException exp) {
-            throw new RuntimeException(exp);
         }
+        return true; //all good!
     }
 
-    @Override
-    public void flush() {
-        updateShouldBeCleanedInfo();
-    }
-
+    /**
+     * Adds the files in the directory to their buckets. Files are scanned in parallel and only their size and header
+     * are read, their indexes are built when their bucket is first read (see {@link #indexRecoveredFiles(FileBucket)}).
+     */
 
-    @Override
-    public void optimizeForReading() {
-        rewriteAllFiles(true);
+    private void updateBucketsFromFiles(String[] filesInDir) {
+        List<FileInfo> files = Arrays.stream(filesInDir).parallel()
+                .filter(file -> file.matches("-?[0-9]+"))
+                .map(file -> scanFile(new File(directory, file), Long.parseLong(file)))
+                .collect(Collectors.toList());
+        for (FileInfo fileInfo : files) {
+            FileBucket bucket = getBucket(fileInfo.getFirstKey());
+            bucket.getFiles().add(fileInfo);
+            bucket.setShouldBeCleanedBeforeRead(bucket.shouldBeCleanedBeforeRead() || fileInfo.getWriteSize() > 0);
+        }
     }
 
-    @Override
-    protected void doClose() {
-        updateShouldBeCleanedInfo();
-        if (metaFileOutOfSync) {
-            writeMetaFile();
+    /**
+     * Reads the size and the header of a file that was found on disk. The size of the clean part in the header is only
+     * filled in when a rewritten file is closed, so the clean part of files with a header is known without reading the
+     * file. For files in the plain format it is found when the file is indexed.
+     */
+
+    private FileInfo scanFile(File file, long firstKey) {
+        int sizeOnDisk = (int) file.length();
+        if (sizeOnDisk < CleanFileWriter.FILE_HEADER_SIZE) {
+            return new FileInfo(firstKey, 0, sizeOnDisk);
+        }
+        try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+            if (dis.readLong() != CleanFileWriter.fileHeaderKey(firstKey)) {
+                return new FileInfo(firstKey, 0, sizeOnDisk); //plain format
+            }
+            int formatFlags = dis.readInt();
+            int cleanSize = dis.readInt();
+            if (cleanSize < CleanFileWriter.FILE_HEADER_SIZE || cleanSize > sizeOnDisk) {
+                throw new IOException("Invalid size " + cleanSize + " of the clean part in the header");
+            }
+            FileInfo result = new FileInfo(firstKey, cleanSize, sizeOnDisk);
+            result.setCompressed((formatFlags & CleanFileWriter.FLAG_COMPRESSED) != 0);
+            result.setDeltaEncoded((formatFlags & CleanFileWriter.FLAG_DELTA_ENCODED) != 0);
+            return result;
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to read header of file " + file.getAbsolutePath(), exp);
         }
-        fileBuckets = null;
     }
 
-    @Override
-    public void dropAllData() {
-        writeLockAllBuckets();
-        for (FileBucket bucket : fileBuckets) {
+    /**
+     * Indexes the files of a bucket that were reconstructed from disk. This only reads the files: the clean part of a
+     * file with a header is known from its header, the clean part of a plain file is its longest prefix of increasing
+     * keys. Values after the clean part are read as appended values until the file is rewritten.
+     */
+
+    private void indexRecoveredFiles(FileBucket bucket) {
+        bucket.lockWrite();
+        try {
+            if (!bucket.shouldBeCleanedBeforeRead() || bucket.isReplaced()) {
+                return; //indexed by another thread
+            }
             for (FileInfo file : bucket.getFiles()) {
-                deleteFile(file);
+                if (needsIndexing(file)) {
+                    discardCachedContents(file);
+                    indexRecoveredFile(file);
+                    metaFileJournal.fileWasWritten(file);
+                }
             }
-            bucket.getFiles().clear();
             bucket.setShouldBeCleanedBeforeRead(false);
+            metaFileJournal.layoutWasChanged();
+            metaFileOutOfSync = true;
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to index the files of " + getName() + " in bucket " + bucket, exp);
+        } finally {
+            bucket.unlockWrite();
         }
-        makeSureAllFileBucketsHaveAtLeastOneFile();
-        writeUnlockAllBuckets();
-        writeMetaFile();
     }
 
-    private void updateShouldBeCleanedInfo() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.lockWrite();
-            if (!allFilesClean(fileBucket)) {
-                fileBucket.setShouldBeCleanedBeforeRead(true);
-            }
-            fileBucket.unlockWrite();
-        }
-    }
+    /**
+     * True for files that were reconstructed from disk and were not indexed or rewritten since
+     */
 
-    private synchronized void rewriteAllFiles(boolean forceClean) {
-        int numOfFilesRewritten = fileBuckets.parallelStream().collect(Collectors.summingInt(bucket -> rewriteBucket(bucket, forceClean)));
-        if (metaFileOutOfSync) {
-            writeMetaFile();
+    private boolean needsIndexing(FileInfo file) {
+        if (file.getReadSize() == 0) {
+            return file.getWriteSize() > 0; //clean part of a plain file is not known yet
         }
-        if (DBUtils.DEBUG && numOfFilesRewritten > 0) {
-            UI.write("Rewritten " + numOfFilesRewritten + " files for " + getName());
+        boolean hasIndex = file.getFileLocationsKeys() != null && file.getFileLocationsKeys().length > 0;
+        if (file.hasHeader()) {
+            return !hasIndex && file.getReadSize() > CleanFileWriter.FILE_HEADER_SIZE;
+        } else {
+            return !hasIndex && sizeOfValues == -1;
         }
     }
 
-    private int rewriteBucket(FileBucket bucket, boolean forceClean) {
-        if (forceClean) {
-            bucket.lockWrite();
-        } else {
-            boolean success = bucket.tryLockWrite();
-            if (!success) {
-                return 0; //will not clean bucket now but continue with other buckets, we'll be back soon.
+    private void indexRecoveredFile(FileInfo file) throws IOException {
+        FileIndexBuilder index = new FileIndexBuilder(settings.getIndexBlockSize());
+        if (file.hasHeader()) {
+            int cleanSize = readFromFile(file, 0, CleanFileWriter.FILE_HEADER_SIZE).getInt(CleanFileWriter.FILE_HEADER_SIZE - INT_SIZE);
+            ByteBuffer contents = readFromFile(file, 0, cleanSize);
+            int numOfValues = 0;
+            if (file.isCompressed()) {
+                //every compressed block is one block of the index
+                int position = CleanFileWriter.FILE_HEADER_SIZE;
+                while (position < cleanSize) {
+                    int compressedSize = contents.getInt(position);
+                    numOfValues += indexRecords(ByteBuffer.wrap(decompressBlock(contents, position + INT_SIZE, compressedSize)), 0, position, file.isDeltaEncoded(), index);
+                    position += INT_SIZE + compressedSize;
+                }
+            } else {
+                numOfValues = indexRecords(contents, CleanFileWriter.FILE_HEADER_SIZE, -1, file.isDeltaEncoded(), index);
             }
-        }
-        try {
-            int numOfRewrittenFiles = 0;
-            for (int fileInd = 0; fileInd < bucket.getFiles().size() && (!closeWasRequested() || forceClean); fileInd++) {
-                FileInfo file = bucket.getFiles().get(fileInd);
-                boolean needsRewrite;
-                long targetSize;
-                if (inReadPhase() || forceClean) {
-                    //read phrase
-                    needsRewrite = !file.isClean();
-                    targetSize = MAX_FILE_SIZE_READ;
-                } else {
-                    //write phase
-                    double probOfRewriteForSize = file.getWriteSize() * 4.0 / MAX_FILE_SIZE_WRITE - 3.0;
-                    needsRewrite = !file.isClean() && Math.random() < probOfRewriteForSize;
-                    targetSize = MAX_FILE_SIZE_READ;
-                }
-                if (needsRewrite) {
-//                    UI.write("Will rewrite file " + file.getFirstKey() + " " + getName() + " clean=" + file.isClean() + " force=" + forceClean + " readSize=" + file.getReadSize() + " writeSize=" + file.getWriteSize() + " targetSize=" + targetSize);
-                    List<KeyValue<T>> values = readAllValues(file);
-                    int filesMergedWithThisFile = inWritePhase() ? 0 : mergeFileIfTooSmall(bucket.getFiles(), fileInd, file.getWriteSize(), targetSize, values);
-                    DataOutputStream dos = getOutputStreamToTempFile(file);
-                    List<Pair<Long, Integer>> fileLocations = new ArrayList<>();
-                    int currentSizeOfFile = 0;
-                    for (KeyValue<T> entry : values) {
-                        long key = entry.getKey();
-                        T value = entry.getValue();
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        DataOutputStream tmpOutputStream = new DataOutputStream(bos);
-                        writeValue(tmpOutputStream, key, value);
-                        byte[] dataToWrite = bos.toByteArray();
-                        if (currentSizeOfFile > 0 && currentSizeOfFile + dataToWrite.length > targetSize) {
-                            //Create new file
-                            if (filesMergedWithThisFile > 0) {
-                                throw new RuntimeException("Something went wrong! Merged file and then created new file?");
-                            }
-                            dos.close();
-                            swapTempForReal(file);
-                            file.fileWasRewritten(sample(fileLocations, 100), currentSizeOfFile, currentSizeOfFile);
-                            fileLocations = new ArrayList<>();
-                            file = new FileInfo(key, 0, 0);
-                            currentSizeOfFile = 0;
-                            bucket.getFiles().add(fileInd + 1, file);
-                            fileInd++;
-                            dos = getOutputStreamToTempFile(file);
-                        }
-                        fileLocations.add(new Pair<>(key, currentSizeOfFile));
-                        dos.write(dataToWrite);
-                        currentSizeOfFile += dataToWrite.length;
+            file.fileWasRewritten(index, file.isCompressed(), file.isDeltaEncoded(), numOfValues, cleanSize, file.getWriteSize());
+        } else {
+            ByteBuffer contents = ByteBuffer.wrap(readCompleteFile(file, file.getWriteSize()));
+            int cleanSize = -1;
+            int numOfValues = 0;
+            int numOfAppendedValues = 0;
+            int position = 0;
+            long previousKey = Long.MIN_VALUE;
+            while (position < contents.limit()) {
+                long key = contents.getLong(position);
+                if (cleanSize == -1 && position > 0 && key <= previousKey) {
+                    cleanSize = position; //start of the appended values
+                }
+                if (cleanSize == -1) {
+                    if (sizeOfValues == -1) {
+                        index.addEntry(key, position);
                     }
-                    swapTempForReal(file);
-                    file.fileWasRewritten(sample(fileLocations, 100), currentSizeOfFile, currentSizeOfFile);
-                    dos.close();
-                    numOfRewrittenFiles++;
+                    numOfValues++;
+                } else {
+                    numOfAppendedValues++;
                 }
+                previousKey = key;
+                position += LONG_SIZE + skipValue(contents, position + LONG_SIZE);
             }
-            boolean allFilesClean = allFilesClean(bucket);
-            if (allFilesClean) {
-                bucket.setShouldBeCleanedBeforeRead(false);
-            }
-            if (numOfRewrittenFiles > 0) {
-                metaFileOutOfSync = true;
+            if (cleanSize == -1) {
+                cleanSize = position;
             }
-            return numOfRewrittenFiles;
-        } catch (Exception exp) {
-            UI.writeError("Unexpected exception while rewriting files", exp);
-            throw new RuntimeException("Unexpected exception while rewriting files", exp);
-        } finally {
-            bucket.unlockWrite();
+            file.fileWasRewritten(sizeOfValues == -1 ? index : null, false, false, numOfValues, cleanSize, file.getWriteSize());
+            file.setNumOfAppendedValues(numOfAppendedValues);
         }
     }
 
-    private boolean allFilesClean(FileBucket bucket) {
-        boolean allFilesClean = true;
-        for (FileInfo file : bucket.getFiles()) {
-            allFilesClean &= file.isClean();
+    /**
+     * Adds the blocks of these records to the index and returns the number of records. Blocks of delta encoded records
+     * start at every restart.
+     *
+     * @param positionOfBlock position of the records in the file if they are one (compressed) block, -1 otherwise
+     */
+
+    private int indexRecords(ByteBuffer records, int startPos, int positionOfBlock, boolean deltaEncoded, FileIndexBuilder index) throws IOException {
+        KeyReader keyReader = new KeyReader(records, startPos, deltaEncoded);
+        long firstKeyOfBlock = 0;
+        long lastKey = 0;
+        int startOfBlock = -1;
+        int numOfRecords = 0;
+        while (keyReader.getPosition() < records.limit()) {
+            int position = keyReader.getPosition();
+            boolean restart = positionOfBlock == -1 && deltaEncoded && records.get(position) == 0;
+            long key = keyReader.readKey();
+            if (startOfBlock == -1 || restart) {
+                if (startOfBlock != -1) {
+                    index.addBlock(firstKeyOfBlock, lastKey, startOfBlock);
+                }
+                firstKeyOfBlock = key;
+                startOfBlock = positionOfBlock == -1 ? position : positionOfBlock;
+            }
+            lastKey = key;
+            keyReader.skip(skipValue(records, keyReader.getPosition()));
+            numOfRecords++;
         }
-        return allFilesClean;
+        if (startOfBlock != -1) {
+            index.addBlock(firstKeyOfBlock, lastKey, startOfBlock);
+        }
+        return numOfRecords;
     }
 
-    private void deleteFile(FileInfo file) {
-        boolean success = toFile(file).delete();
-        if (!success) {
-            throw new RuntimeException("Failed to delete file " + toFile(file).getAbsolutePath());
+    private void makeSureAllFileBucketsHaveAtLeastOneFile() {
+        for (FileBucket bucket : fileBuckets) {
+            if (bucket.getFiles().isEmpty()) {
+                //We need at least one file per bucket..
+                FileInfo first = new FileInfo(bucket.getFirstKey(), 0, 0);
+                try {
+                    boolean success = toFile(first).createNewFile();
+                    if (!success) {
+                        throw new RuntimeException("Failed to create new file " + first + " at " + toFile(first).getAbsolutePath());
+                    } else {
+                        bucket.getFiles().add(first);
+                        metaFileJournal.fileWasWritten(first);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            } else {
+                Collections.sort(bucket.getFiles());
+                if (bucket.getFirstKey() != bucket.getFiles().get(0).getFirstKey()) {
+                    throw new RuntimeException("Missing file in " + getName() + " ? Expected file " + new File(directory, Long.toString(bucket.getFirstKey())).getAbsolutePath());
+                }
+            }
         }
     }
 
-    private void dataWasWritten() {
-        timeOfLastWrite = System.currentTimeMillis();
-        metaFileOutOfSync = true;
-    }
+    /**
+     * Reads the binary meta information, or the meta file of the JSON format that was used before
+     */
 
-    private void dataWasRead() {
-        timeOfLastRead = System.currentTimeMillis();
+    private MetaFile readMetaInfo() {
+        try {
+            MetaFile result = metaFileJournal.read();
+            if (result != null) {
+                return result;
+            }
+        } catch (Exception exp) {
+            UI.writeError("Received exception while reading meta information of " + getName(), exp);
+            return null;
+        }
+        File cleanFilesFile = new File(directory, META_FILE);
+        if (cleanFilesFile.exists()) {
+            try {
+                InputStream fis = new BufferedInputStream(new FileInputStream(cleanFilesFile));
+                MetaFile result = SerializationUtils.readObject(MetaFile.class, fis);
+                IOUtils.closeQuietly(fis);
+                return result;
+            } catch (Exception exp) {
+                UI.writeError("Received exception while reading " + cleanFilesFile.getAbsolutePath(), exp);
+            }
+        }
+        return null;
     }
 
-    private boolean inReadPhase() {
-        return !inWritePhase();
-    }
+    /**
+     * Writes the changes to the meta information (see {@link MetaFileJournal}). With a write-ahead log this is a checkpoint: the changed files are synced, a new segment of
+     * the log is started and the log segments and file versions of the previous checkpoint are removed.
+     */
 
-    private boolean inWritePhase() {
-        return timeOfLastWrite > timeOfLastRead && System.currentTimeMillis() - timeOfLastRead > 10 * 1000;
+    private synchronized void writeMetaFile() {
+        boolean checkpoint = writeAheadLog != null;
+        if (checkpoint) {
+            flushAppendChannels();
+            syncChangedFiles(); //most changes are synced before writers are blocked
+            logLock.writeLock().lock();
+        }
+        try {
+            List<FileBucket> buckets = fileBuckets;
+            readLockAllBuckets(buckets);
+            metaFileOutOfSync = false;
+            try {
+                flushAppendChannels(); //the meta file should not refer to values that are not written yet
+                if (checkpoint) {
+                    syncChangedFiles();
+                    checkpointSegment = startLogSegment();
+                }
+                MetaFile metaFile = new MetaFile(buckets, timeOfLastWrite, timeOfLastRead, checkpointSegment);
+                metaFileJournal.write(metaFile, checkpoint);
+                Files.deleteIfExists(new File(directory, META_FILE).toPath()); //meta file of the previous format
+            } catch (Exception exp) {
+                metaFileOutOfSync = true;
+                throw new RuntimeException("Received exception while writing meta information of " + getName(), exp);
+            } finally {
+                readUnlockAllBuckets(buckets);
+            }
+            if (checkpoint) {
+                syncDirectory();
+                deleteFilesBeforeCheckpoint();
+            }
+        } finally {
+            if (checkpoint) {
+                logLock.writeLock().unlock();
+            }
+        }
     }
 
-    private void updateSizeOfCachedFileContents(long byteDiff) {
-        synchronized (sizeOfCachedFileContentsLock) {
-            currentSizeOfCachedFileContents += byteDiff;
+    /**
+     * Replays the segments of the write-ahead log that are not in the last checkpoint and opens the log for new writes
+     */
+
+    private void openWriteAheadLog(List<Long> logSegments) {
+        long lastSegment = checkpointSegment;
+        try {
+            for (Long segment : logSegments) {
+                if (segment >= checkpointSegment) {
+                    replayLogSegment(segment);
+                }
+                lastSegment = Math.max(lastSegment, segment);
+            }
+            writeAheadLog = new WriteAheadLog(directory, lastSegment + 1, settings.getWriteAheadLogSyncDelay());
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to open write-ahead log of " + getName(), exp);
         }
+        writeMetaFile(); //checkpoint with the replayed values, removes the replayed segments
     }
 
-    private void writeLockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.lockWrite();
+    private void replayLogSegment(long segment) throws IOException {
+        List<byte[]> records = WriteAheadLog.readRecords(WriteAheadLog.getSegmentFile(directory, segment));
+        if (!records.isEmpty()) {
+            UI.write("Replaying " + records.size() + " records of the write-ahead log of " + getName());
+        }
+        for (byte[] record : records) {
+            writeEntries(readValues(ByteBuffer.wrap(record)).iterator()); //not logged again, the log is opened after replaying
         }
     }
 
-    private void writeUnlockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.unlockWrite();
+    /**
+     * After a crash, restores the files of the last checkpoint: replaced versions are moved back, files that were
+     * created later are removed and values that were appended later are truncated. These changes are replayed from the
+     * write-ahead log.
+     */
+
+    private void restoreCheckpoint(MetaFile metaFile, List<Long> logSegments) {
+        String[] filesInDir = directory.list();
+        boolean changedAfterCheckpoint = !logSegments.isEmpty();
+        for (String file : filesInDir) {
+            changedAfterCheckpoint |= file.startsWith(CHECKPOINT_FILE_PREFIX);
+        }
+        if (!changedAfterCheckpoint || metaFile.getFileBuckets() == null) {
+            return; //closed normally
+        }
+        UI.write("Restoring the last checkpoint of " + getName());
+        try {
+            String prefixOfCheckpoint = CHECKPOINT_FILE_PREFIX + metaFile.getLogSegment() + ".";
+            for (String file : filesInDir) {
+                File path = new File(directory, file);
+                if (file.startsWith(prefixOfCheckpoint)) {
+                    Files.move(path.toPath(), new File(directory, file.substring(prefixOfCheckpoint.length())).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } else if (file.startsWith(CHECKPOINT_FILE_PREFIX) || file.startsWith(TEMP_FILE_PREFIX)) {
+                    Files.delete(path.toPath());
+                }
+            }
+            Map<Long, FileInfo> filesOfCheckpoint = new HashMap<>();
+            for (FileBucket bucket : metaFile.getFileBuckets()) {
+                for (FileInfo file : bucket.getFiles()) {
+                    filesOfCheckpoint.put(file.getFirstKey(), file);
+                }
+            }
+            for (String file : directory.list()) {
+                if (file.matches("-?[0-9]+")) {
+                    FileInfo fileInfo = filesOfCheckpoint.get(Long.parseLong(file));
+                    File path = new File(directory, file);
+                    if (fileInfo == null) {
+                        Files.delete(path.toPath());
+                    } else if (path.length() > fileInfo.getWriteSize()) {
+                        try (FileChannel channel = FileChannel.open(path.toPath(), StandardOpenOption.WRITE)) {
+                            channel.truncate(fileInfo.getWriteSize());
+                        }
+                    }
+                }
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to restore the last checkpoint of " + getName(), exp);
         }
     }
 
-    private void readLockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.lockRead();
+    /**
+     * Starts a new segment of the write-ahead log, with the values that are still in the mem tables as its first
+     * records. Should be called with the log locked for the checkpoint and all buckets locked.
+     */
+
+    private long startLogSegment() throws IOException {
+        long segment = writeAheadLog.startNewSegment();
+        for (FileBucket bucket : fileBuckets) {
+            List<KeyValue<T>> values = new ArrayList<>();
+            MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+            if (flushingMemTable != null) {
+                values.addAll(flushingMemTable.getWrites());
+            }
+            MemTable<T> memTable = getMemTable(bucket);
+            values.addAll(memTable.getWrites());
+            if (!values.isEmpty()) {
+                writeAheadLog.append(serializeValues(values));
+            }
         }
+        writeAheadLog.sync();
+        return segment;
     }
 
-    private void readUnlockAllBuckets() {
-        for (FileBucket fileBucket : fileBuckets) {
-            fileBucket.unlockRead();
+    private void deleteFilesBeforeCheckpoint() {
+        try {
+            synchronized (preservedFiles) {
+                for (File file : preservedFiles) {
+                    Files.deleteIfExists(file.toPath());
+                }
+                preservedFiles.clear();
+            }
+            WriteAheadLog.deleteSegmentsBefore(directory, checkpointSegment);
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to remove files of the previous checkpoint of " + getName(), exp);
         }
     }
 
-    private void lockForRead(FileBucket bucket) {
-        bucket.lockRead();
-        while (bucket.shouldBeCleanedBeforeRead()) {
-            bucket.unlockRead();
-            rewriteBucket(bucket, true);
-            bucket.lockRead();
+    /**
+     * Before a file is replaced or deleted, its version of the last checkpoint is kept until the next checkpoint, so it
+     * can be restored after a crash. Returns true if the file was moved.
+     */
+
+    private boolean preserveCheckpointVersion(FileInfo file) throws IOException {
+        if (!settings.useWriteAheadLog()) {
+            return false;
         }
+        File path = toFile(file);
+        if (!path.exists()) {
+            return false;
+        }
+        File checkpointVersion = new File(directory, CHECKPOINT_FILE_PREFIX + checkpointSegment + "." + file.getFirstKey());
+        if (checkpointVersion.exists()) {
+            return false; //already replaced after the last checkpoint
+        }
+        Files.move(path.toPath(), checkpointVersion.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        synchronized (preservedFiles) {
+            preservedFiles.add(checkpointVersion);
+        }
+        return true;
     }
 
-    private void swapTempForReal(FileInfo file) throws IOException {
-        synchronized (file) {
-            long releasedBytes = file.discardFileContents();
-            updateSizeOfCachedFileContents(-releasedBytes);
+    private void fileWasChanged(FileInfo file) {
+        if (settings.useWriteAheadLog()) {
+            synchronized (filesToSync) {
+                filesToSync.add(toFile(file));
+            }
         }
-        Files.move(toTempFile(file).toPath(), toFile(file).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
     }
 
-    private int mergeFileIfTooSmall(List<FileInfo> fileList, int currentFileInd, long combinedSize, long maxFileSize, List<KeyValue<T>> values) {
-        int nextFileInd = currentFileInd + 1;
-        while (nextFileInd < fileList.size() && combinedSize + fileList.get(nextFileInd).getWriteSize() < maxFileSize) {
-            //Combine the files
-            FileInfo nextFile = fileList.remove(nextFileInd);
-            values.addAll(readAllValues(nextFile));
-            combinedSize += nextFile.getWriteSize();
-            deleteFile(nextFile);
+    /**
+     * Syncs the files that were changed since the last call to disk
+     */
+
+    private void syncChangedFiles() {
+        List<File> files;
+        synchronized (filesToSync) {
+            files = new ArrayList<>(filesToSync);
+            filesToSync.clear();
+        }
+        try {
+            for (File file : files) {
+                try {
+                    syncFile(file);
+                } catch (NoSuchFileException exp) {
+                    //file was replaced in the mean time, the new version will be synced
+                }
+            }
+        } catch (IOException exp) {
+            throw new RuntimeException("Failed to sync files of " + getName(), exp);
         }
-        return nextFileInd - currentFileInd - 1;
+        syncDirectory();
     }
 
-    private int writeValue(DataOutputStream dos, long key, T value) throws IOException {
-        dos.writeLong(key);
-        byte[] objectAsBytes = SerializationUtils.objectToBytesCheckForNull(value, getObjectClass());
-        if (sizeOfValues == -1) {
-            dos.writeInt(objectAsBytes.length);
-            dos.write(objectAsBytes);
-            return 8 + 4 + objectAsBytes.length;
-        } else {
-            dos.write(objectAsBytes);
-            return 8 + sizeOfValues;
+    private void syncFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
         }
     }
 
-    private ReadValue<T> readValue(byte[] buffer, int position) throws IOException {
-        int lengthOfObject;
-        int lenghtOfLengthValue;
-        if (sizeOfValues == -1) {
-            lengthOfObject = SerializationUtils.bytesToInt(buffer, position);
-            lenghtOfLengthValue = INT_SIZE;
-        } else {
-            lengthOfObject = sizeOfValues;
-            lenghtOfLengthValue = 0;
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException exp) {
+            //directories can not be synced on all platforms
         }
-        T value = SerializationUtils.bytesToObjectCheckForNull(buffer, position + lenghtOfLengthValue, lengthOfObject, getObjectClass());
-        return new ReadValue<>(lengthOfObject + lenghtOfLengthValue, value);
     }
 
-    private List<FileBucket> createEmptyFileBuckets() {
-        List<FileBucket> bucket = new ArrayList<>(1 << (64 - BITS_TO_DISCARD_FOR_FILE_BUCKETS));
-        long start = Long.MIN_VALUE >> BITS_TO_DISCARD_FOR_FILE_BUCKETS;
-        long end = Long.MAX_VALUE >> BITS_TO_DISCARD_FOR_FILE_BUCKETS;
-        for (long val = start; val <= end; val++) {
-            long firstKey = val << BITS_TO_DISCARD_FOR_FILE_BUCKETS;
-            long lastKey = ((val + 1) << BITS_TO_DISCARD_FOR_FILE_BUCKETS) - 1;
-            if (lastKey < firstKey) {
-                //overflow
-                lastKey = Long.MAX_VALUE;
-            }
-            bucket.add(new FileBucket(firstKey, lastKey));
+    /**
+     * Writes and swaps of files hold the read lock of the log, so a checkpoint contains all or none of their changes
+     */
+
+    private void lockLog() {
+        if (settings.useWriteAheadLog()) {
+            logLock.readLock().lock();
         }
-        return bucket;
     }
 
-    private void checkDataDir() {
-        if (!directory.exists()) {
-            boolean success = directory.mkdirs();
-            if (!success) {
-                throw new RuntimeException("Failed to create directory " + directory.getAbsolutePath());
-            }
-        }
-        if (directory.isFile()) {
-            throw new IllegalArgumentException("File should be directory but is file! " + directory.getAbsolutePath());
+    private void unlockLog() {
+        if (settings.useWriteAheadLog()) {
+            logLock.readLock().unlock();
         }
     }
 
-    private void initializeFiles(MetaFile metaFile) {
-        String[] filesInDir = this.directory.list();
-        if (metaFile != null && metaFileUpToDate(metaFile, filesInDir)) {
-            metaFileOutOfSync = false;
-            timeOfLastRead = metaFile.getLastRead();
-            timeOfLastWrite = metaFile.getLastWrite();
-            fileBuckets = metaFile.getFileBuckets();
-        } else {
-            metaFileOutOfSync = true;
-            timeOfLastRead = timeOfLastWrite = 0;
-            fileBuckets = createEmptyFileBuckets();
-            if (filesInDir.length > 0) {
-                UI.write("Missing (up-to-date) meta information for " + getName() + " will reconstruct data structures from files found in directory.");
-                updateBucketsFromFiles(filesInDir);
+    /**
+     * Adds the values to the write-ahead log. Should be called with the write lock of their bucket, so values of the
+     * same key are logged in the order in which they are written. Returns the number of the log record, 0 if there is
+     * no log.
+     */
+
+    private long logValues(List<KeyValue<T>> values) {
+        return writeAheadLog == null ? 0 : writeAheadLog.append(serializeValues(values));
+    }
+
+    private void waitForLog(long logRecord) {
+        if (logRecord > 0) {
+            try {
+                writeAheadLog.waitForSync(logRecord);
+            } catch (IOException exp) {
+                throw new RuntimeException("Failed to sync the write-ahead log of " + getName(), exp);
             }
-            makeSureAllFileBucketsHaveAtLeastOneFile();
         }
     }
 
-    private boolean metaFileUpToDate(MetaFile metaFile, String[] filesInDir) {
-        for (String file : filesInDir) {
-            if (file.matches("-?[0-9]+")) {
-                long key = Long.parseLong(file);
-                FileBucket bucket = getBucket(metaFile.getFileBuckets(), key);
-                long sizeOnDisk = new File(directory, file).length();
-                FileInfo fileInfo = bucket.getFile(key);
-                if (fileInfo.getFirstKey() != key) {
-                    return false; //the name of the file on disk should be equal to the first key
-                }
-                if (fileInfo.getWriteSize() != sizeOnDisk) {
-                    return false; //the file write size should be equal to the size on disk
-                }
-                if (!fileInfo.isClean() && !bucket.shouldBeCleanedBeforeRead()) {
-                    return false; //if the file is dirty, the bucket should be marked as 'shouldBeCleanedBeforeRead'
-                }
+    private void syncWriteAheadLog() {
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.sync();
+            } catch (IOException exp) {
+                throw new RuntimeException("Failed to sync the write-ahead log of " + getName(), exp);
             }
         }
-        for (FileBucket fileBucket : metaFile.getFileBuckets()) {
-            if (fileBucket.getFiles().isEmpty()) {
-                return false; //every bucket should contain at least one file
-            }
-            if (fileBucket.getFirstKey() != fileBucket.getFiles().get(0).getFirstKey()) {
-                return false; //the first key of the bucket should match the first key of the first file
+    }
+
+    /**
+     * Called after the last checkpoint, all values are in the files so the log is no longer needed
+     */
+
+    private void closeWriteAheadLog() {
+        if (writeAheadLog != null) {
+            try {
+                writeAheadLog.close();
+                WriteAheadLog.deleteSegmentsBefore(directory, Long.MAX_VALUE);
+            } catch (IOException exp) {
+                throw new RuntimeException("Failed to close the write-ahead log of " + getName(), exp);
             }
-            for (int i = 0; i < fileBucket.getFiles().size() - 1; i++) {
-                if (fileBucket.getFiles().get(i).getFirstKey() >= fileBucket.getFiles().get(i + 1).getFirstKey()) {
-                    return false; //files should be sorted according to first key
-                }
+        }
+    }
+
+    private byte[] serializeValues(List<KeyValue<T>> values) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        try {
+            for (KeyValue<T> value : values) {
+                writeValue(dos, value.getKey(), value.getValue());
             }
+        } catch (IOException exp) {
+            throw new RuntimeException("Unexpected exception while writing to a byte array", exp);
         }
-        return true; //all good!
+        return bos.toByteArray();
     }
 
-    private void updateBucketsFromFiles(String[] filesInDir) {
-        for (String file : filesInDir) {
-            if (file.matches("-?[0-9]+")) {
-                long key = Long.parseLong(file);
-                FileBucket bucket = getBucket(key);
-                long sizeOnDisk = new File(directory, file).length();
-                FileInfo fileInfo = new FileInfo(key, 0, (int) sizeOnDisk);
-                bucket.getFiles().add(fileInfo);
-                bucket.setShouldBeCleanedBeforeRead(bucket.shouldBeCleanedBeforeRead() || sizeOnDisk > 0);
+    private FileBucket getBucket(long key) {
+        return getBucket(fileBuckets, key);
+    }
+
+    /**
+     * Binary search for the last bucket that starts before or at this key
+     */
+
+    private FileBucket getBucket(List<FileBucket> fileBuckets, long key) {
+        int low = 0;
+        int high = fileBuckets.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (fileBuckets.get(mid).getFirstKey() <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
             }
         }
+        return fileBuckets.get(low);
     }
 
-    private void makeSureAllFileBucketsHaveAtLeastOneFile() {
-        for (FileBucket bucket : fileBuckets) {
-            if (bucket.getFiles().isEmpty()) {
-                //We need at least one file per bucket..
-                FileInfo first = new FileInfo(bucket.getFirstKey(), 0, 0);
-                try {
-                    boolean success = toFile(first).createNewFile();
-                    if (!success) {
-                        throw new RuntimeException("Failed to create new file " + first + " at " + toFile(first).getAbsolutePath());
-                    } else {
-                        bucket.getFiles().add(first);
-                    }
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+    /**
+     * Returns the (uncompressed) records in one block of the clean part of a file. Blocks are read through the block cache,
+     * except for uncompressed blocks of memory mapped files.
+     */
+
+    private ByteBuffer getCleanBlock(FileInfo file, int startPos, int endPos) throws IOException {
+        ByteBuffer block = blockCache.get(file, startPos);
+        if (block == null) {
+            if (settings.useMemoryMappedFiles()) {
+                block = getRecords(getMappedFileContents(file), startPos, endPos, file.isCompressed());
+                if (!file.isCompressed()) {
+                    return block;
                 }
             } else {
-                Collections.sort(bucket.getFiles());
-                if (bucket.getFirstKey() != bucket.getFiles().get(0).getFirstKey()) {
-                    throw new RuntimeException("Missing file in " + getName() + " ? Expected file " + new File(directory, Long.toString(bucket.getFirstKey())).getAbsolutePath());
+                block = readFromFile(file, startPos, endPos);
+                if (file.isCompressed()) {
+                    //the index points to exactly one compressed block
+                    block = decompressBlocks(block, 0, block.limit());
                 }
             }
+            blockCache.put(file, startPos, block.array());
         }
+        return block;
     }
 
-    private MetaFile readMetaInfo() {
-        File cleanFilesFile = new File(directory, META_FILE);
-        if (cleanFilesFile.exists()) {
-            try {
-                InputStream fis = new BufferedInputStream(new FileInputStream(cleanFilesFile));
-                MetaFile result = SerializationUtils.readObject(MetaFile.class, fis);
-                IOUtils.closeQuietly(fis);
-                return result;
-            } catch (Exception exp) {
-                UI.writeError("Received exception while reading " + cleanFilesFile.getAbsolutePath(), exp);
-            }
+    /**
+     * Returns the complete clean part of the file, without adding it to the block cache
+     */
+
+    private ByteBuffer getCleanFileContents(FileInfo file) throws IOException {
+        if (settings.useMemoryMappedFiles()) {
+            return getMappedFileContents(file);
+        } else {
+            return readFromFile(file, 0, file.getReadSize());
         }
-        return null;
     }
 
-    private synchronized void writeMetaFile() {
-        readLockAllBuckets();
-        metaFileOutOfSync = false;
-        File outputFile = new File(directory, META_FILE);
-        try {
-            MetaFile metaFile = new MetaFile(fileBuckets, timeOfLastWrite, timeOfLastRead);
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            SerializationUtils.writeObject(metaFile, fos);
-            IOUtils.closeQuietly(fos);
-        } catch (Exception exp) {
-            metaFileOutOfSync = true;
-            throw new RuntimeException("Received exception while writing list of clean files to " + outputFile.getAbsolutePath(), exp);
-        } finally {
-            readUnlockAllBuckets();
+    private ByteBuffer readFromFile(FileInfo file, int startPos, int endPos) throws IOException {
+        ByteBuffer result = ByteBuffer.allocate(endPos - startPos);
+        try (FileChannel channel = FileChannel.open(toFile(file).toPath(), StandardOpenOption.READ)) {
+            readFully(channel, result, startPos);
         }
+        result.flip();
+        return result;
     }
 
-    private FileBucket getBucket(long key) {
-        return getBucket(fileBuckets, key);
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position + buffer.position());
+            if (bytesRead < 0) {
+                throw new EOFException("Unexpected end of file at position " + (position + buffer.position()));
+            }
+        }
     }
 
-    private FileBucket getBucket(List<FileBucket> fileBuckets, long key) {
-        int ind = (int) ((key >> BITS_TO_DISCARD_FOR_FILE_BUCKETS) + fileBuckets.size() / 2);
-        return fileBuckets.get(ind);
-    }
-
-    private ReadBuffer getReadBuffer(FileInfo file, int requestedStartPos, int requestedEndPos) throws IOException {
-        byte[] fileContents = file.getCachedFileContents();
-        if (fileContents == null) {
-            if (memoryManager.getMemoryStatus() == MemoryStatus.FREE && currentSizeOfCachedFileContents < maxSizeOfCachedFileContents) {
-                //cache file contents. Lock on file object to make sure we don't read the content in parallel (this messes up the currentSizeOfCachedFileContents variable and is not very efficient)
-                synchronized (file) {
-                    fileContents = file.getCachedFileContents();
-                    if (fileContents == null) {
-                        fileContents = new byte[file.getReadSize()];
-                        FileInputStream fis = new FileInputStream(toFile(file));
-                        int bytesRead = fis.read(fileContents);
-                        if (bytesRead != file.getReadSize()) {
-                            throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + file.getReadSize() + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+    private ByteBuffer getMappedFileContents(FileInfo file) throws IOException {
+        MappedByteBuffer mappedContents = file.getMappedFileContents();
+        if (mappedContents == null) {
+            synchronized (file) {
+                mappedContents = file.getMappedFileContents();
+                if (mappedContents == null) {
+                    //Only the clean part of the file is mapped. Values that are appended later are never read from this buffer.
+                    try (FileChannel channel = FileChannel.open(toFile(file).toPath(), StandardOpenOption.READ)) {
+                        if (channel.size() < file.getReadSize()) {
+                            throw new RuntimeException("Can not map " + file.getReadSize() + " bytes of file " + toFile(file).getAbsolutePath() + " which currently has size " + channel.size());
                         }
-                        updateSizeOfCachedFileContents(fileContents.length);
-                        IOUtils.closeQuietly(fis);
+                        mappedContents = channel.map(FileChannel.MapMode.READ_ONLY, 0, file.getReadSize());
                     }
-                    file.setCachedFileContents(fileContents);
-                }
-                return new ReadBuffer(fileContents, 0);
-            } else {
-                FileInputStream fis = new FileInputStream(toFile(file));
-                long bytesSkipped = fis.skip(requestedStartPos);
-                if (bytesSkipped != requestedStartPos) {
-                    throw new RuntimeException("Skipped " + bytesSkipped + " bytes, while we expected to skip " + requestedStartPos + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+                    file.setMappedFileContents(mappedContents);
                 }
-                byte[] buffer = new byte[requestedEndPos - requestedStartPos];
-                int bytesRead = fis.read(buffer);
-                if (bytesRead != buffer.length) {
-                    throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + file.getReadSize() + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
-                }
-                IOUtils.closeQuietly(fis);
-                return new ReadBuffer(buffer, requestedStartPos);
-            }
-        } else {
-            if (fileContents.length != file.getReadSize()) {
-                throw new RuntimeException("Buffer and file size don't match!");
             }
-            return new ReadBuffer(fileContents, 0);
         }
+        return mappedContents;
     }
 
-    private int skipValue(byte[] buffer, int position) throws IOException {
+    private int skipValue(ByteBuffer buffer, int position) throws IOException {
         //Skip some bytes
         Class<T> objectClass = getObjectClass();
         if (objectClass == Long.class || objectClass == Double.class) {
@@ -839,17 +2930,22 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         } else if (objectClass == Integer.class || objectClass == Float.class) {
             return INT_SIZE;
         } else {
-            int length = SerializationUtils.bytesToInt(buffer, position);
+            checkFitsInBuffer(buffer, position, INT_SIZE);
+            int length = buffer.getInt(position);
+            checkFitsInBuffer(buffer, position + INT_SIZE, length);
             return INT_SIZE + length;
         }
     }
 
-    private DataOutputStream getAppendingOutputStream(FileInfo fileInfo) throws FileNotFoundException {
-        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(toFile(fileInfo), true)));
-    }
+    /**
+     * A key or value that does not fit in its buffer means that the file is corrupt, or that it was replaced while it
+     * was read without a lock
+     */
 
-    private DataOutputStream getOutputStreamToTempFile(FileInfo fileInfo) throws FileNotFoundException {
-        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(toTempFile(fileInfo), false)));
+    private void checkFitsInBuffer(ByteBuffer buffer, int position, int length) throws IOException {
+        if (length < 0 || position < 0 || length > buffer.limit() - position) {
+            throw new IOException(length + " bytes at position " + position + " do not fit in buffer of size " + buffer.limit());
+        }
     }
 
     private File toFile(FileInfo fileInfo) {
@@ -863,11 +2959,11 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         if (directory == null) {
             throw new RuntimeException("Directory is null, probably the data interface was closed already!");
         }
-        return new File(directory, "tmp." + Long.toString(fileInfo.getFirstKey()));
+        return new File(directory, TEMP_FILE_PREFIX + Long.toString(fileInfo.getFirstKey()));
     }
 
-    private Map<Long, T> readMap(FileInfo file) {
-        List<KeyValue<T>> values = readCleanValues(file);
+    private Map<Long, T> readMap(FileBucket bucket, FileInfo file) {
+        List<KeyValue<T>> values = readValues(bucket, file);
         Map<Long, T> result = new HashMap<>(values.size());
         for (KeyValue<T> value : values) {
             result.put(value.getKey(), value.getValue());
@@ -875,17 +2971,60 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return result;
     }
 
+    private List<KeyValue<T>> removeKeysBefore(List<KeyValue<T>> sortedValues, long minKey) {
+        int ind = 0;
+        while (ind < sortedValues.size() && sortedValues.get(ind).getKey() < minKey) {
+            ind++;
+        }
+        return ind == 0 ? sortedValues : sortedValues.subList(ind, sortedValues.size());
+    }
+
+    /**
+     * Reads the values of this file, combined with the values in the mem tables of its bucket. Should be called while
+     * holding the read lock of the bucket.
+     */
+
+    private List<KeyValue<T>> readValues(FileBucket bucket, FileInfo file) {
+        List<KeyValue<T>> values;
+        if (file.isClean()) {
+            values = readCleanValues(file);
+        } else {
+            values = readAllValues(file);
+        }
+        Long endKey = getEndKey(bucket, file);
+        MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+        if (flushingMemTable != null) {
+            values = flushingMemTable.merge(values, file.getFirstKey(), endKey, getCombinator());
+        }
+        MemTable<T> memTable = getMemTable(bucket);
+        return memTable.merge(values, file.getFirstKey(), endKey, getCombinator());
+    }
+
+    private boolean memTablesHaveValues(FileBucket bucket, FileInfo file) {
+        Long endKey = getEndKey(bucket, file);
+        MemTable<T> flushingMemTable = getFlushingMemTable(bucket);
+        return getMemTable(bucket).hasValues(file.getFirstKey(), endKey) || (flushingMemTable != null && flushingMemTable.hasValues(file.getFirstKey(), endKey));
+    }
+
+    /**
+     * First key of the next file in the bucket (exclusive end of the keys of this file), null for the last file
+     */
+
+    private Long getEndKey(FileBucket bucket, FileInfo file) {
+        int fileInd = bucket.getFileInd(file.getFirstKey());
+        return fileInd + 1 < bucket.getFiles().size() ? bucket.getFiles().get(fileInd + 1).getFirstKey() : null;
+    }
+
     private List<KeyValue<T>> readCleanValues(FileInfo file) {
         try {
-            byte[] buffer = getReadBuffer(file, 0, file.getReadSize()).getBuffer();
-            int expectedNumberOfValues = getLowerBoundOnNumberOfValues(file.getReadSize());
+            ByteBuffer buffer = getCleanRecords(file);
+            int expectedNumberOfValues = getLowerBoundOnNumberOfValues(buffer.limit());
             List<KeyValue<T>> result = new ArrayList<>(expectedNumberOfValues);
-            int position = 0;
-            while (position < buffer.length) {
-                long key = SerializationUtils.bytesToLong(buffer, position);
-                position += LONG_SIZE;
-                ReadValue<T> readValue = readValue(buffer, position);
-                position += readValue.getSize();
+            KeyReader keyReader = new KeyReader(buffer, 0, file.isDeltaEncoded());
+            while (keyReader.getPosition() < buffer.limit()) {
+                long key = keyReader.readKey();
+                ReadValue<T> readValue = readValue(buffer, keyReader.getPosition());
+                keyReader.skip(readValue.getSize());
                 result.add(new KeyValue<>(key, readValue.getValue()));
             }
             dataWasRead();
@@ -896,36 +3035,38 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
     }
 
     private List<KeyValue<T>> readAllValues(FileInfo file) {
+        return readAllValues(file, file.getWriteSize());
+    }
+
+    /**
+     * Reads and combines all values in the first sizeOfFile bytes of the file
+     */
+
+    private List<KeyValue<T>> readAllValues(FileInfo file, int sizeOfFile) {
         try {
-            byte[] buffer = readCompleteFile(file);
-            if (buffer.length > 0) {
-                int expectedNumberOfValues = getLowerBoundOnNumberOfValues(file.getWriteSize());
-                List<KeyValue<T>> result = new ArrayList<>(expectedNumberOfValues);
-                //read values in buckets
-                int numberOfBuckets = Math.max(1, expectedNumberOfValues / 1000);
-                List[] buckets = new List[numberOfBuckets];
-                for (int i = 0; i < buckets.length; i++) {
-                    buckets[i] = new ArrayList(expectedNumberOfValues / numberOfBuckets);
-                }
-                long start = file.getFirstKey();
-                long density = (1l << BITS_TO_DISCARD_FOR_FILE_BUCKETS) / numberOfBuckets;
-                int position = 0;
-                while (position < buffer.length) {
-                    long key = SerializationUtils.bytesToLong(buffer, position);
-                    position += LONG_SIZE;
-                    ReadValue<T> readValue = readValue(buffer, position);
-                    position += readValue.getSize();
-                    int bucketInd = (int) ((key - start) / density);
-                    if (bucketInd == buckets.length) {
-                        bucketInd--; //rounding error?
-                    }
-                    buckets[bucketInd].add(new KeyValue<>(key, readValue.getValue()));
-                }
-                for (int bucketInd = 0; bucketInd < buckets.length; bucketInd++) {
-                    List<KeyValue<T>> currentBucket = buckets[bucketInd];
-                    DBUtils.mergeValues(result, currentBucket, getCombinator());
-                    buckets[bucketInd] = null; //Free some memory
-                }
+            ByteBuffer fileContents = ByteBuffer.wrap(readCompleteFile(file, sizeOfFile));
+            ByteBuffer cleanRecords;
+            ByteBuffer appendedRecords;
+            if (file.hasHeader()) {
+                //use the size of the clean part from the header, the file info is not up-to-date when the files are reconstructed from disk
+                int cleanSize = fileContents.getInt(CleanFileWriter.FILE_HEADER_SIZE - INT_SIZE);
+                cleanRecords = getRecords(fileContents, CleanFileWriter.FILE_HEADER_SIZE, cleanSize, file.isCompressed());
+                appendedRecords = getRecords(fileContents, cleanSize, fileContents.limit(), file.isCompressed());
+            } else {
+                //the clean part and the appended values are in the same format
+                cleanRecords = ByteBuffer.allocate(0);
+                appendedRecords = fileContents;
+            }
+            int totalSize = cleanRecords.limit() + appendedRecords.limit();
+            if (totalSize > 0) {
+                int expectedNumberOfValues = getLowerBoundOnNumberOfValues(totalSize);
+                //keys in a primitive array, so they can be radix sorted
+                long[] keys = new long[Math.max(16, expectedNumberOfValues)];
+                List<T> values = new ArrayList<>(expectedNumberOfValues);
+                keys = addValues(cleanRecords, file.isDeltaEncoded(), keys, values);
+                keys = addValues(appendedRecords, false, keys, values);
+                List<KeyValue<T>> result = new ArrayList<>(values.size());
+                DBUtils.mergeValues(result, keys, values, getCombinator());
                 return result;
             } else {
                 return Collections.emptyList();
@@ -935,16 +3076,148 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
-    private byte[] readCompleteFile(FileInfo file) throws IOException {
-        FileInputStream fis = new FileInputStream(toFile(file));
-        byte[] buffer = new byte[file.getWriteSize()];
-        int bytesRead = fis.read(buffer);
-        if (bytesRead != buffer.length) {
-            if (!(buffer.length == 0 && bytesRead == -1)) {
-                throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + buffer.length + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+    /**
+     * Adds the keys and values of the records to keys and values. Returns the keys array, which is replaced by a larger
+     * array when it is full.
+     */
+
+    private long[] addValues(ByteBuffer records, boolean deltaEncoded, long[] keys, List<T> values) throws IOException {
+        KeyReader keyReader = new KeyReader(records, 0, deltaEncoded);
+        while (keyReader.getPosition() < records.limit()) {
+            long key = keyReader.readKey();
+            ReadValue<T> readValue = readValue(records, keyReader.getPosition());
+            keyReader.skip(readValue.getSize());
+            if (values.size() == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[values.size()] = key;
+            values.add(readValue.getValue());
+        }
+        return keys;
+    }
+
+    /**
+     * Adds the sorted and combined values in the first sizeOfFile bytes of the file to the primitive values of the buffers
+     */
+
+    private void readPrimitiveValues(FileInfo file, int sizeOfFile, RewriteBuffers buffers) {
+        try {
+            ByteBuffer fileContents = ByteBuffer.wrap(readCompleteFile(file, sizeOfFile, buffers.getFileContents(sizeOfFile)), 0, sizeOfFile);
+            PrimitiveValues values = buffers.values;
+            int start = values.size();
+            if (file.hasHeader()) {
+                int cleanSize = fileContents.getInt(CleanFileWriter.FILE_HEADER_SIZE - INT_SIZE);
+                addPrimitiveValues(getRecords(fileContents, CleanFileWriter.FILE_HEADER_SIZE, cleanSize, file.isCompressed()), file.isDeltaEncoded(), values);
+                addPrimitiveValues(getRecords(fileContents, cleanSize, fileContents.limit(), file.isCompressed()), false, values);
+            } else {
+                addPrimitiveValues(fileContents, false, values);
             }
+            values.sortAndCombine(start, (PrimitiveCombinator) getCombinator(), primitiveNullValue);
+        } catch (Exception ex) {
+            throw new RuntimeException("Unexpected exception while reading values from file " + toFile(file).getAbsolutePath(), ex);
+        }
+    }
+
+    private void addPrimitiveValues(ByteBuffer records, boolean deltaEncoded, PrimitiveValues values) throws IOException {
+        KeyReader keyReader = new KeyReader(records, 0, deltaEncoded);
+        while (keyReader.getPosition() < records.limit()) {
+            long key = keyReader.readKey();
+            values.add(key, readPrimitiveValue(records, keyReader.getPosition()));
+            keyReader.skip(sizeOfValues);
+        }
+    }
+
+    /**
+     * Reads a value of type Long, Double, Integer or Float in its serialized form (see {@link PrimitiveCombinator})
+     */
+
+    private long readPrimitiveValue(ByteBuffer buffer, int position) {
+        return sizeOfValues == LONG_SIZE ? buffer.getLong(position) : buffer.getInt(position);
+    }
+
+    /**
+     * Returns the (uncompressed) keys and values of the clean part of the file. The keys can still be delta encoded.
+     */
+
+    private ByteBuffer getCleanRecords(FileInfo file) throws IOException {
+        ByteBuffer buffer = getCleanFileContents(file);
+        if (file.hasHeader()) {
+            return getRecords(buffer, Math.min(CleanFileWriter.FILE_HEADER_SIZE, file.getReadSize()), file.getReadSize(), file.isCompressed());
+        } else {
+            return buffer;
+        }
+    }
+
+    private ByteBuffer getRecords(ByteBuffer fileContents, int startPos, int endPos, boolean compressed) throws IOException {
+        if (compressed) {
+            return decompressBlocks(fileContents, startPos, endPos);
+        } else {
+            ByteBuffer result = fileContents.duplicate();
+            result.limit(endPos);
+            result.position(startPos);
+            return result.slice();
+        }
+    }
+
+    private ByteBuffer decompressBlocks(ByteBuffer buffer, int startPos, int endPos) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        int totalSize = 0;
+        int position = startPos;
+        while (position < endPos) {
+            int compressedSize = buffer.getInt(position);
+            position += INT_SIZE;
+            byte[] block = decompressBlock(buffer, position, compressedSize);
+            blocks.add(block);
+            totalSize += block.length;
+            position += compressedSize;
+        }
+        if (blocks.size() == 1) {
+            return ByteBuffer.wrap(blocks.get(0));
+        }
+        byte[] result = new byte[totalSize];
+        int offset = 0;
+        for (byte[] block : blocks) {
+            System.arraycopy(block, 0, result, offset, block.length);
+            offset += block.length;
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    private byte[] decompressBlock(ByteBuffer buffer, int position, int compressedSize) throws IOException {
+        byte[] compressed;
+        int offset;
+        if (buffer.hasArray()) {
+            compressed = buffer.array();
+            offset = buffer.arrayOffset() + position;
+        } else {
+            //memory mapped buffer, only copy this block to the heap
+            compressed = new byte[compressedSize];
+            offset = 0;
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            view.get(compressed);
         }
+        byte[] result = new byte[Snappy.uncompressedLength(compressed, offset, compressedSize)];
+        Snappy.uncompress(compressed, offset, compressedSize, result, 0);
+        return result;
+    }
+
+    private byte[] readCompleteFile(FileInfo file, int sizeOfFile) throws IOException {
+        return readCompleteFile(file, sizeOfFile, new byte[sizeOfFile]);
+    }
+
+    /**
+     * Reads the first sizeOfFile bytes of the file into the given buffer, which can be larger than the file
+     */
+
+    private byte[] readCompleteFile(FileInfo file, int sizeOfFile, byte[] buffer) throws IOException {
+        flushAppendChannel(file);
+        FileInputStream fis = new FileInputStream(toFile(file));
+        int bytesRead = IOUtils.read(fis, buffer, 0, sizeOfFile);
         IOUtils.closeQuietly(fis);
+        if (bytesRead != sizeOfFile) {
+            throw new RuntimeException("Read " + bytesRead + " bytes, while we expected " + sizeOfFile + " bytes in file " + toFile(file).getAbsolutePath() + " which currently has size " + toFile(file).length());
+        }
         return buffer;
     }
 
@@ -956,26 +3229,28 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         return sizeOfFile / (8 + width);
     }
 
-    private List<Long> readKeys(FileInfo file) throws IOException {
-        List<Long> result = new ArrayList<>();
-        byte[] buffer = getReadBuffer(file, 0, file.getReadSize()).getBuffer();
-        int position = 0;
-        while (position < buffer.length) {
-            result.add(SerializationUtils.bytesToLong(buffer, position));
-            position += LONG_SIZE;
-            position += skipValue(buffer, position);
+    private List<Long> readKeys(FileBucket bucket, FileInfo file) throws IOException {
+        if (file.isClean() && !memTablesHaveValues(bucket, file)) {
+            return readCleanKeys(file);
+        } else {
+            List<KeyValue<T>> values = readValues(bucket, file);
+            List<Long> result = new ArrayList<>(values.size());
+            for (KeyValue<T> value : values) {
+                result.add(value.getKey());
+            }
+            return result;
         }
-        dataWasRead();
-        return result;
     }
 
-    private List<Pair<Long, Integer>> sample(List<Pair<Long, Integer>> fileLocations, int invSampleRate) {
-        List<Pair<Long, Integer>> result = new ArrayList<>(fileLocations.size() / invSampleRate);
-        for (int i = 0; i < fileLocations.size(); i++) {
-            if (i % invSampleRate == 0) {
-                result.add(fileLocations.get(i));
-            }
+    private List<Long> readCleanKeys(FileInfo file) throws IOException {
+        List<Long> result = new ArrayList<>();
+        ByteBuffer buffer = getCleanRecords(file);
+        KeyReader keyReader = new KeyReader(buffer, 0, file.isDeltaEncoded());
+        while (keyReader.getPosition() < buffer.limit()) {
+            result.add(keyReader.readKey());
+            keyReader.skip(skipValue(buffer, keyReader.getPosition()));
         }
+        dataWasRead();
         return result;
     }
 
@@ -1006,25 +3281,76 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         }
     }
 
+    private void deleteLockFile() {
+        try {
+            Files.deleteIfExists(new File(directory, LOCK_FILE).toPath());
+        } catch (IOException exp) {
+            throw new RuntimeException("Unexpected exception while trying to delete lock file of " + getName(), exp);
+        }
+    }
+
     private long getBatchSize() {
         return SerializationUtils.getWidth(getObjectClass()) == -1 ? BATCH_SIZE_NON_PRIMITIVE_VALUES : BATCH_SIZE_PRIMITIVE_VALUES;
     }
 
-    private static class ReadBuffer {
-        private final byte[] buffer;
-        private final int offset;
+    /**
+     * Buffers of a rewrite of primitive values, reused by later rewrites
+     */
+
+    private static class RewriteBuffers {
+        private final PrimitiveValues values = new PrimitiveValues();
+        private byte[] fileContents = new byte[0];
+
+        private byte[] getFileContents(int minSize) {
+            if (fileContents.length < minSize) {
+                fileContents = new byte[minSize];
+            }
+            return fileContents;
+        }
+
+        private long getMemoryUsage() {
+            return fileContents.length + values.getMemoryUsage();
+        }
+    }
+
+    /**
+     * Position of a serialized value in a block of a file
+     */
 
-        private ReadBuffer(byte[] buffer, int offset) {
+    private static class ValueLocation {
+        private final ByteBuffer buffer;
+        private final int position;
+
+        private ValueLocation(ByteBuffer buffer, int position) {
             this.buffer = buffer;
-            this.offset = offset;
+            this.position = position;
         }
 
-        public byte[] getBuffer() {
+        public ByteBuffer getBuffer() {
             return buffer;
         }
 
-        public int getOffset() {
-            return offset;
+        public int getPosition() {
+            return position;
+        }
+    }
+
+    /**
+     * Thrown when a value can not be read without a lock because its block is not cached. This happens on every cache
+     * miss, so a single instance without a stack trace is used.
+     */
+
+    private static class NotCachedException extends IOException {
+
+        private static final NotCachedException INSTANCE = new NotCachedException();
+
+        private NotCachedException() {
+            super("Block is not cached");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
         }
     }
 
@@ -1048,40 +3374,177 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
 
     private class FileIterator {
 
-        private int currentBucketInd = 0;
-        private int fileInd = 0;
+        private boolean finished = false;
+        private long nextKey = Long.MIN_VALUE; //all keys that are smaller than this key were already returned
+        private long minKeyOfCurrentFile;
 
         public Pair<FileBucket, FileInfo> lockCurrentBucketAndGetNextFile() {
-            if (currentBucketInd < fileBuckets.size()) {
-                FileBucket bucket = fileBuckets.get(currentBucketInd);
-                lockForRead(bucket);
-                while (currentBucketInd < fileBuckets.size() && fileInd >= bucket.getFiles().size()) {
-                    fileInd = 0;
-                    bucket.unlockRead();
-                    currentBucketInd++;
-                    if (currentBucketInd < fileBuckets.size()) {
-                        bucket = fileBuckets.get(currentBucketInd);
-                        lockForRead(bucket);
-                    }
+            if (finished) {
+                return null;
+            }
+            //files and buckets can be split or merged while we are iterating, so we find the next file by key instead of by index
+            FileBucket bucket = lockBucketForRead(nextKey);
+            int fileInd = bucket.getFileInd(nextKey);
+            FileInfo file = bucket.getFiles().get(fileInd);
+            minKeyOfCurrentFile = nextKey;
+            if (fileInd + 1 < bucket.getFiles().size()) {
+                nextKey = bucket.getFiles().get(fileInd + 1).getFirstKey();
+            } else if (bucket.getLastKey() == Long.MAX_VALUE) {
+                finished = true;
+            } else {
+                nextKey = bucket.getLastKey() + 1;
+            }
+            return new Pair<>(bucket, file);
+        }
+
+        /**
+         * Keys of the last returned file that are smaller than this key were already returned with a previous file
+         */
+
+        public long getMinKeyOfCurrentFile() {
+            return minKeyOfCurrentFile;
+        }
+
+    }
+
+    /**
+     * Merges the values of a file with the sorted entries that are loaded in its key range
+     */
+
+    private class BulkLoadIterator implements Iterator<KeyValue<T>> {
+
+        private final PeekingIterator<KeyValue<T>> fileValues;
+        private final PeekingIterator<KeyValue<T>> entries;
+        private final long lastKey; //inclusive
+        private KeyValue<T> next;
+
+        private BulkLoadIterator(Iterator<KeyValue<T>> fileValues, PeekingIterator<KeyValue<T>> entries, long lastKey) {
+            this.fileValues = Iterators.peekingIterator(fileValues);
+            this.entries = entries;
+            this.lastKey = lastKey;
+            findNext();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public KeyValue<T> next() {
+            KeyValue<T> result = next;
+            findNext();
+            return result;
+        }
+
+        private void findNext() {
+            next = null;
+            while (next == null) {
+                boolean hasEntry = entries.hasNext() && entries.peek().getKey() <= lastKey;
+                if (!hasEntry && !fileValues.hasNext()) {
+                    return;
                 }
-                if (currentBucketInd < fileBuckets.size()) {
-                    return new Pair<>(bucket, bucket.getFiles().get(fileInd++));
+                long key;
+                if (!hasEntry) {
+                    key = fileValues.peek().getKey();
+                } else if (!fileValues.hasNext()) {
+                    key = entries.peek().getKey();
+                } else {
+                    key = Math.min(fileValues.peek().getKey(), entries.peek().getKey());
+                }
+                T value = null;
+                if (fileValues.hasNext() && fileValues.peek().getKey() == key) {
+                    value = fileValues.next().getValue();
+                }
+                while (entries.hasNext() && entries.peek().getKey() == key) {
+                    T entryValue = entries.next().getValue();
+                    //a null value deletes the previous values of this key
+                    value = value == null || entryValue == null ? entryValue : getCombinator().combine(value, entryValue);
+                }
+                if (entries.hasNext() && entries.peek().getKey() < key) {
+                    throw new IllegalArgumentException("Entries are not sorted, found key " + entries.peek().getKey() + " after key " + key);
+                }
+                if (value != null) {
+                    next = new KeyValue<>(key, value);
                 }
             }
-            return null;
+        }
+    }
+
+    private static class RewritePlan<T> {
+
+        private final int startInd;
+        private final List<FileInfo> files;
+        private final int[] sizes;
+        private final long targetSize;
+        private final MemTable<T> memTable;
+        private final Long endKey;
+
+        private RewritePlan(int startInd, List<FileInfo> files, int[] sizes, long targetSize, MemTable<T> memTable, Long endKey) {
+            this.startInd = startInd;
+            this.files = files;
+            this.sizes = sizes;
+            this.targetSize = targetSize;
+            this.memTable = memTable;
+            this.endKey = endKey;
+        }
+
+        public int getStartInd() {
+            return startInd;
+        }
+
+        public List<FileInfo> getFiles() {
+            return files;
+        }
+
+        /**
+         * Sizes of the files when the plan was made
+         */
+
+        public int[] getSizes() {
+            return sizes;
         }
 
+        public long getSizeOfFiles() {
+            long result = 0;
+            for (int size : sizes) {
+                result += size;
+            }
+            return result;
+        }
+
+        public long getTargetSize() {
+            return targetSize;
+        }
+
+        /**
+         * Mem table with the values that should be merged with the files, null if the files are only rewritten
+         */
+
+        public MemTable<T> getMemTable() {
+            return memTable;
+        }
+
+        /**
+         * First key after the files, null if the files are the last files of their bucket
+         */
+
+        public Long getEndKey() {
+            return endKey;
+        }
     }
 
     public static class MetaFile {
         private List<FileBucket> fileBuckets;
         private long lastWrite;
         private long lastRead;
+        private long logSegment;
 
-        public MetaFile(List<FileBucket> fileBuckets, long lastWrite, long lastRead) {
+        public MetaFile(List<FileBucket> fileBuckets, long lastWrite, long lastRead, long logSegment) {
             this.fileBuckets = fileBuckets;
             this.lastRead = lastRead;
             this.lastWrite = lastWrite;
+            this.logSegment = logSegment;
         }
 
         //Constructor used in serialization
@@ -1111,6 +3574,19 @@ public class FileDataInterface<T extends Object> extends CoreDataInterface<T> im
         public void setLastRead(long lastRead) {
             this.lastRead = lastRead;
         }
+
+        /**
+         * First segment of the write-ahead log whose values are not in the files of this meta file, 0 if the data
+         * interface does not use a write-ahead log
+         */
+
+        public long getLogSegment() {
+            return logSegment;
+        }
+
+        public void setLogSegment(long logSegment) {
+            this.logSegment = logSegment;
+        }
     }
 
 }
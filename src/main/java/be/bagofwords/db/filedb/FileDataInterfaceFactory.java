@@ -6,22 +6,66 @@ import be.bagofwords.db.DataInterface;
 import be.bagofwords.db.DataInterfaceFactory;
 import be.bagofwords.db.combinator.Combinator;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class FileDataInterfaceFactory extends DataInterfaceFactory {
 
     private final MemoryManager memoryManager;
     private final String directory;
+    private volatile FileDataInterfaceSettings settings;
+    private final Map<String, FileDataInterfaceSettings> settingsPerInterface;
+    private final BlockCache blockCache;
+    private final CompactionScheduler compactionScheduler;
 
     public FileDataInterfaceFactory(ApplicationContext context) {
         super(context);
         this.memoryManager = context.getBean(MemoryManager.class);
         this.directory = context.getConfig("data_directory");
+        this.settings = FileDataInterfaceSettings.fromConfig(context);
+        this.settingsPerInterface = new ConcurrentHashMap<>();
+        this.blockCache = new BlockCache(memoryManager, memoryManager.getAvailableMemoryInBytes() / 3);
+        this.memoryManager.registerMemoryGobbler(blockCache);
+        int compactionThreads = Integer.parseInt(context.getConfig("compaction_threads", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))));
+        long compactionBytesPerSecond = Long.parseLong(context.getConfig("compaction_bytes_per_second", "0"));
+        this.compactionScheduler = new CompactionScheduler(compactionThreads, compactionBytesPerSecond);
     }
 
     @Override
     public <T extends Object> DataInterface<T> createBaseDataInterface(final String nameOfSubset, final Class<T> objectClass, final Combinator<T> combinator, boolean isTemporaryDataInterface) {
-        FileDataInterface<T> result = new FileDataInterface<>(memoryManager, combinator, objectClass, directory, nameOfSubset, isTemporaryDataInterface, taskScheduler);
+        FileDataInterface<T> result = new FileDataInterface<>(memoryManager, combinator, objectClass, directory, nameOfSubset, isTemporaryDataInterface, taskScheduler, getSettings(nameOfSubset), blockCache, compactionScheduler);
         memoryManager.registerMemoryGobbler(result);
         return result;
     }
 
+    @Override
+    public synchronized void terminate() {
+        super.terminate();
+        compactionScheduler.close();
+    }
+
+    /**
+     * Returns (a copy of) the settings that will be used for the data interface with the given name
+     */
+
+    public FileDataInterfaceSettings getSettings(String nameOfSubset) {
+        return settingsPerInterface.getOrDefault(nameOfSubset, settings).copy();
+    }
+
+    /**
+     * Overrides the default settings, for all data interfaces that are created later and have no settings of their own
+     */
+
+    public void setSettings(FileDataInterfaceSettings settings) {
+        this.settings = settings.copy();
+    }
+
+    /**
+     * Overrides the default settings for the data interface with the given name. Only has an effect if called before that interface is created.
+     */
+
+    public void setSettings(String nameOfSubset, FileDataInterfaceSettings settings) {
+        settingsPerInterface.put(nameOfSubset, settings.copy());
+    }
+
 }
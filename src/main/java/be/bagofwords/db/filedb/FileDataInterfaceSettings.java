@@ -0,0 +1,301 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.application.ApplicationContext;
+
+/**
+ * Settings of a {@link FileDataInterface}. The default values can be overridden in the application config.
+ */
+
+public class FileDataInterfaceSettings {
+
+    private boolean useMemoryMappedFiles;
+    private int indexBlockSize;
+    private boolean useCompression;
+    private boolean deltaEncodeKeys;
+    private boolean useBloomFilters;
+    private double bloomFilterFpp;
+    private int appendBufferSize;
+    private int maxOpenAppendChannels;
+    private int memTableSize;
+    private int writeThreads;
+    private int maxFilesPerBucket;
+    private boolean useWriteAheadLog;
+    private int writeAheadLogSyncDelay;
+    private boolean lazyOpen;
+    private boolean useKeySketches;
+
+    public FileDataInterfaceSettings() {
+        this.useMemoryMappedFiles = false;
+        this.indexBlockSize = 4 * 1024;
+        this.useCompression = false;
+        this.deltaEncodeKeys = false;
+        this.useBloomFilters = false;
+        this.bloomFilterFpp = 0.01;
+        this.appendBufferSize = 64 * 1024;
+        this.maxOpenAppendChannels = 100;
+        this.memTableSize = 0;
+        this.writeThreads = 1;
+        this.maxFilesPerBucket = 32;
+        this.useWriteAheadLog = false;
+        this.writeAheadLogSyncDelay = 0;
+        this.lazyOpen = false;
+        this.useKeySketches = false;
+    }
+
+    public static FileDataInterfaceSettings fromConfig(ApplicationContext context) {
+        FileDataInterfaceSettings result = new FileDataInterfaceSettings();
+        result.setUseMemoryMappedFiles(Boolean.parseBoolean(context.getConfig("memory_mapped_files", Boolean.toString(result.useMemoryMappedFiles()))));
+        result.setIndexBlockSize(Integer.parseInt(context.getConfig("index_block_size", Integer.toString(result.getIndexBlockSize()))));
+        result.setUseCompression(Boolean.parseBoolean(context.getConfig("compress_files", Boolean.toString(result.useCompression()))));
+        result.setDeltaEncodeKeys(Boolean.parseBoolean(context.getConfig("delta_encode_keys", Boolean.toString(result.deltaEncodeKeys()))));
+        result.setUseBloomFilters(Boolean.parseBoolean(context.getConfig("file_bloom_filters", Boolean.toString(result.useBloomFilters()))));
+        result.setBloomFilterFpp(Double.parseDouble(context.getConfig("file_bloom_filter_fpp", Double.toString(result.getBloomFilterFpp()))));
+        result.setAppendBufferSize(Integer.parseInt(context.getConfig("append_buffer_size", Integer.toString(result.getAppendBufferSize()))));
+        result.setMaxOpenAppendChannels(Integer.parseInt(context.getConfig("max_open_append_channels", Integer.toString(result.getMaxOpenAppendChannels()))));
+        result.setMemTableSize(Integer.parseInt(context.getConfig("memtable_size", Integer.toString(result.getMemTableSize()))));
+        result.setWriteThreads(Integer.parseInt(context.getConfig("write_threads", Integer.toString(result.getWriteThreads()))));
+        result.setMaxFilesPerBucket(Integer.parseInt(context.getConfig("max_files_per_bucket", Integer.toString(result.getMaxFilesPerBucket()))));
+        result.setUseWriteAheadLog(Boolean.parseBoolean(context.getConfig("write_ahead_log", Boolean.toString(result.useWriteAheadLog()))));
+        result.setWriteAheadLogSyncDelay(Integer.parseInt(context.getConfig("write_ahead_log_sync_delay", Integer.toString(result.getWriteAheadLogSyncDelay()))));
+        result.setLazyOpen(Boolean.parseBoolean(context.getConfig("lazy_open", Boolean.toString(result.lazyOpen()))));
+        result.setUseKeySketches(Boolean.parseBoolean(context.getConfig("key_sketches", Boolean.toString(result.useKeySketches()))));
+        return result;
+    }
+
+    public FileDataInterfaceSettings copy() {
+        FileDataInterfaceSettings result = new FileDataInterfaceSettings();
+        result.setUseMemoryMappedFiles(useMemoryMappedFiles);
+        result.setIndexBlockSize(indexBlockSize);
+        result.setUseCompression(useCompression);
+        result.setDeltaEncodeKeys(deltaEncodeKeys);
+        result.setUseBloomFilters(useBloomFilters);
+        result.setBloomFilterFpp(bloomFilterFpp);
+        result.setAppendBufferSize(appendBufferSize);
+        result.setMaxOpenAppendChannels(maxOpenAppendChannels);
+        result.setMemTableSize(memTableSize);
+        result.setWriteThreads(writeThreads);
+        result.setMaxFilesPerBucket(maxFilesPerBucket);
+        result.setUseWriteAheadLog(useWriteAheadLog);
+        result.setWriteAheadLogSyncDelay(writeAheadLogSyncDelay);
+        result.setLazyOpen(lazyOpen);
+        result.setUseKeySketches(useKeySketches);
+        return result;
+    }
+
+    /**
+     * If true, clean files are read through memory mapped buffers instead of being copied to the heap
+     */
+
+    public boolean useMemoryMappedFiles() {
+        return useMemoryMappedFiles;
+    }
+
+    public void setUseMemoryMappedFiles(boolean useMemoryMappedFiles) {
+        this.useMemoryMappedFiles = useMemoryMappedFiles;
+    }
+
+    /**
+     * Approximate size (in bytes) of the blocks of the sparse file index. A point read scans at most one block.
+     */
+
+    public int getIndexBlockSize() {
+        return indexBlockSize;
+    }
+
+    public void setIndexBlockSize(int indexBlockSize) {
+        if (indexBlockSize <= 0) {
+            throw new IllegalArgumentException("Index block size should be positive, found " + indexBlockSize);
+        }
+        this.indexBlockSize = indexBlockSize;
+    }
+
+    /**
+     * If true, files are rewritten as blocks of (index block size) values that are compressed independently. Files that
+     * were written with another setting are converted the next time they are rewritten.
+     */
+
+    public boolean useCompression() {
+        return useCompression;
+    }
+
+    public void setUseCompression(boolean useCompression) {
+        this.useCompression = useCompression;
+    }
+
+    /**
+     * If true, the keys in rewritten files are stored as the (varint encoded) difference with the previous key
+     */
+
+    public boolean deltaEncodeKeys() {
+        return deltaEncodeKeys;
+    }
+
+    public void setDeltaEncodeKeys(boolean deltaEncodeKeys) {
+        this.deltaEncodeKeys = deltaEncodeKeys;
+    }
+
+    /**
+     * If true, a bloom filter is kept in memory for every clean file, so reads of absent keys don't need to read the file
+     */
+
+    public boolean useBloomFilters() {
+        return useBloomFilters;
+    }
+
+    public void setUseBloomFilters(boolean useBloomFilters) {
+        this.useBloomFilters = useBloomFilters;
+    }
+
+    /**
+     * Expected false positive probability of the bloom filters of the files
+     */
+
+    public double getBloomFilterFpp() {
+        return bloomFilterFpp;
+    }
+
+    public void setBloomFilterFpp(double bloomFilterFpp) {
+        this.bloomFilterFpp = bloomFilterFpp;
+    }
+
+    /**
+     * Size (in bytes) of the buffer of every open append channel. Appended values are written to disk when this buffer
+     * is full, when the data interface is flushed, and at least every second.
+     */
+
+    public int getAppendBufferSize() {
+        return appendBufferSize;
+    }
+
+    public void setAppendBufferSize(int appendBufferSize) {
+        if (appendBufferSize <= 0) {
+            throw new IllegalArgumentException("Append buffer size should be positive, found " + appendBufferSize);
+        }
+        this.appendBufferSize = appendBufferSize;
+    }
+
+    /**
+     * Maximum number of files that are kept open for appending values. The least recently used channel is closed first.
+     */
+
+    public int getMaxOpenAppendChannels() {
+        return maxOpenAppendChannels;
+    }
+
+    public void setMaxOpenAppendChannels(int maxOpenAppendChannels) {
+        if (maxOpenAppendChannels <= 0) {
+            throw new IllegalArgumentException("Maximum number of open append channels should be positive, found " + maxOpenAppendChannels);
+        }
+        this.maxOpenAppendChannels = maxOpenAppendChannels;
+    }
+
+    /**
+     * Maximum number of values in the sorted in-memory table of a bucket. Written values are collected in this table and
+     * merged with the files of the bucket when it is full, instead of being appended to the files. 0 disables the
+     * in-memory tables.
+     */
+
+    public int getMemTableSize() {
+        return memTableSize;
+    }
+
+    public void setMemTableSize(int memTableSize) {
+        if (memTableSize < 0) {
+            throw new IllegalArgumentException("Size of mem tables should not be negative, found " + memTableSize);
+        }
+        this.memTableSize = memTableSize;
+    }
+
+    /**
+     * Number of threads that write the values of a batch of writes in parallel, every thread writes to its own buckets.
+     * With 1 thread, values are written by the calling thread.
+     */
+
+    public int getWriteThreads() {
+        return writeThreads;
+    }
+
+    public void setWriteThreads(int writeThreads) {
+        if (writeThreads <= 0) {
+            throw new IllegalArgumentException("Number of write threads should be positive, found " + writeThreads);
+        }
+        this.writeThreads = writeThreads;
+    }
+
+    /**
+     * A bucket with more files is split in two buckets, so lookups stay fast and writes to different parts of the key
+     * range do not wait for the same lock. Buckets are also split when their lock is contended, and small neighbouring
+     * buckets are merged again.
+     */
+
+    public int getMaxFilesPerBucket() {
+        return maxFilesPerBucket;
+    }
+
+    public void setMaxFilesPerBucket(int maxFilesPerBucket) {
+        if (maxFilesPerBucket < 2) {
+            throw new IllegalArgumentException("Maximum number of files per bucket should be at least 2, found " + maxFilesPerBucket);
+        }
+        this.maxFilesPerBucket = maxFilesPerBucket;
+    }
+
+    /**
+     * If true, written values are logged in a write-ahead log before they are written, and the log is replayed when the
+     * data interface is opened after a crash. The files and the meta file are checkpointed (synced to disk) every second
+     * while values are written.
+     */
+
+    public boolean useWriteAheadLog() {
+        return useWriteAheadLog;
+    }
+
+    public void setUseWriteAheadLog(boolean useWriteAheadLog) {
+        this.useWriteAheadLog = useWriteAheadLog;
+    }
+
+    /**
+     * Milliseconds a write waits before it syncs the write-ahead log, so the writes of other threads are synced with the
+     * same fsync. 0 syncs immediately (concurrent writes still share an fsync), -1 does not wait for the sync at all: the
+     * log is then synced every second and values written in the last second can be lost.
+     */
+
+    public int getWriteAheadLogSyncDelay() {
+        return writeAheadLogSyncDelay;
+    }
+
+    public void setWriteAheadLogSyncDelay(int writeAheadLogSyncDelay) {
+        if (writeAheadLogSyncDelay < -1) {
+            throw new IllegalArgumentException("Sync delay of the write-ahead log should be at least -1, found " + writeAheadLogSyncDelay);
+        }
+        this.writeAheadLogSyncDelay = writeAheadLogSyncDelay;
+    }
+
+    /**
+     * If true, a data interface only reads its meta information and starts its periodic task when it is first used, so
+     * data interfaces that are opened but never used cost almost nothing. The files on disk are then only compared with
+     * the meta information if the data interface was not closed cleanly.
+     */
+
+    public boolean lazyOpen() {
+        return lazyOpen;
+    }
+
+    public void setLazyOpen(boolean lazyOpen) {
+        this.lazyOpen = lazyOpen;
+    }
+
+    /**
+     * If true, a HyperLogLog sketch of the keys is kept for every bucket (1 KB) and every clean file (1 KB, stored in
+     * the meta file). The sketches of dirty buckets estimate their number of distinct keys for {@link
+     * FileDataInterface#apprSize()} within a few percent, where the number of values in the files would count every
+     * update of a key again. Deleted keys are counted until the bucket is clean again.
+     */
+
+    public boolean useKeySketches() {
+        return useKeySketches;
+    }
+
+    public void setUseKeySketches(boolean useKeySketches) {
+        this.useKeySketches = useKeySketches;
+    }
+}
@@ -0,0 +1,75 @@
+package be.bagofwords.db.filedb;
+
+import java.util.Arrays;
+
+/**
+ * Builds the sparse index of a file while it is being written. The file is divided in blocks of approximately
+ * blockSize bytes and for every block we keep its position and its first and last key. A point read therefore never
+ * has to scan more than one block.
+ */
+
+class FileIndexBuilder {
+
+    private final int blockSize;
+    private long[] firstKeys;
+    private long[] lastKeys;
+    private int[] positions;
+    private int numOfBlocks;
+
+    public FileIndexBuilder(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size should be positive, found " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.firstKeys = new long[16];
+        this.lastKeys = new long[16];
+        this.positions = new int[16];
+        this.numOfBlocks = 0;
+    }
+
+    /**
+     * @return true if this entry starts a new block
+     */
+
+    public boolean addEntry(long key, int position) {
+        boolean startOfBlock = numOfBlocks == 0 || position - positions[numOfBlocks - 1] >= blockSize;
+        if (startOfBlock) {
+            startBlock(key, position);
+        }
+        lastKeys[numOfBlocks - 1] = key;
+        return startOfBlock;
+    }
+
+    /**
+     * Adds a block with explicit boundaries (used for compressed files, where every compressed block is one block of the index)
+     */
+
+    public void addBlock(long firstKey, long lastKey, int position) {
+        startBlock(firstKey, position);
+        lastKeys[numOfBlocks - 1] = lastKey;
+    }
+
+    private void startBlock(long firstKey, int position) {
+        if (numOfBlocks == positions.length) {
+            int newLength = positions.length * 2;
+            firstKeys = Arrays.copyOf(firstKeys, newLength);
+            lastKeys = Arrays.copyOf(lastKeys, newLength);
+            positions = Arrays.copyOf(positions, newLength);
+        }
+        firstKeys[numOfBlocks] = firstKey;
+        positions[numOfBlocks] = position;
+        numOfBlocks++;
+    }
+
+    public long[] getFirstKeys() {
+        return Arrays.copyOf(firstKeys, numOfBlocks);
+    }
+
+    public long[] getLastKeys() {
+        return Arrays.copyOf(lastKeys, numOfBlocks);
+    }
+
+    public int[] getPositions() {
+        return Arrays.copyOf(positions, numOfBlocks);
+    }
+}
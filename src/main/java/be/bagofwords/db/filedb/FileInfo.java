@@ -1,26 +1,37 @@
 package be.bagofwords.db.filedb;
 
-import be.bagofwords.util.Pair;
+import be.bagofwords.db.bloomfilter.LongBloomFilter;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
-import java.util.List;
+import java.nio.MappedByteBuffer;
 
 class FileInfo implements Comparable {
 
     private long firstKey;
     private int readSize;
     private int writeSize;
-    private byte[] cachedFileContents;
+    private boolean compressed;
+    private boolean deltaEncoded;
+    private int numOfValues; //values in the clean part, -1 if unknown
+    private int numOfAppendedValues; //values appended after the clean part, -1 if unknown
+    private MappedByteBuffer mappedFileContents;
+    private LongBloomFilter bloomFilter;
+    private KeySketch keySketch;
+    private FileTail tail;
     //This field is only filled in when the file is clean (i.e. not isDirty)
     private long[] fileLocationsKeys;
+    private long[] fileLocationsLastKeys;
     private int[] fileLocationsValues;
 
     public FileInfo(long firstKey, int readSize, int writeSize) {
         this.firstKey = firstKey;
         this.readSize = readSize;
         this.writeSize = writeSize;
+        this.numOfValues = readSize == 0 ? 0 : -1;
+        this.numOfAppendedValues = readSize == writeSize ? 0 : -1;
         if (readSize == 0) {
             fileLocationsKeys = new long[0];
+            fileLocationsLastKeys = new long[0];
             fileLocationsValues = new int[0];
         }
     }
@@ -33,14 +44,27 @@ class FileInfo implements Comparable {
         return readSize;
     }
 
-    public void fileWasRewritten(List<Pair<Long, Integer>> fileLocations, int newReadSize, int newWriteSize) {
+    /**
+     * @param index null if the file has no index (uncompressed files with values of fixed width)
+     */
+
+    public void fileWasRewritten(FileIndexBuilder index, boolean compressed, boolean deltaEncoded, int numOfValues, int newReadSize, int newWriteSize) {
+        this.bloomFilter = null;
+        this.keySketch = null;
+        this.compressed = compressed;
+        this.deltaEncoded = deltaEncoded;
+        this.numOfValues = numOfValues;
+        this.numOfAppendedValues = newReadSize == newWriteSize ? 0 : -1;
         this.readSize = newReadSize;
         this.writeSize = newWriteSize;
-        this.fileLocationsKeys = new long[fileLocations.size()];
-        this.fileLocationsValues = new int[fileLocations.size()];
-        for (int i = 0; i < fileLocations.size(); i++) {
-            fileLocationsKeys[i] = fileLocations.get(i).getFirst();
-            fileLocationsValues[i] = fileLocations.get(i).getSecond();
+        if (index != null) {
+            this.fileLocationsKeys = index.getFirstKeys();
+            this.fileLocationsLastKeys = index.getLastKeys();
+            this.fileLocationsValues = index.getPositions();
+        } else {
+            this.fileLocationsKeys = new long[0];
+            this.fileLocationsLastKeys = new long[0];
+            this.fileLocationsValues = new int[0];
         }
     }
 
@@ -63,37 +87,141 @@ class FileInfo implements Comparable {
         this.writeSize += diff;
     }
 
+    public void valuesWereAppended(int numOfValues) {
+        if (numOfAppendedValues >= 0) {
+            numOfAppendedValues += numOfValues;
+        }
+    }
+
+    /**
+     * Exact number of values in the clean part of this file, -1 if unknown (for files that were reconstructed from disk
+     * and not indexed yet)
+     */
+
+    public int getNumOfValues() {
+        return numOfValues;
+    }
+
+    /**
+     * Number of values that were appended to this file after it was last rewritten, -1 if unknown. Appended values can
+     * update or delete values of the clean part, so the file contains at most numOfValues + numOfAppendedValues keys.
+     */
+
+    public int getNumOfAppendedValues() {
+        return numOfAppendedValues;
+    }
+
     public long[] getFileLocationsKeys() {
         return fileLocationsKeys;
     }
 
+    /**
+     * Last key of every block of the index. Can be null for files that were indexed before we kept track of these keys.
+     */
+
+    public long[] getFileLocationsLastKeys() {
+        return fileLocationsLastKeys;
+    }
+
     public int[] getFileLocationsValues() {
         return fileLocationsValues;
     }
 
     public long discardFileContents() {
         int bytesReleased = 0;
-        if (cachedFileContents != null) {
-            bytesReleased = cachedFileContents.length;
-            cachedFileContents = null;
+        if (tail != null) {
+            bytesReleased += tail.getSizeInFile();
+            tail = null;
         }
         return bytesReleased;
     }
 
     @JsonIgnore
-    public byte[] getCachedFileContents() {
-        return cachedFileContents;
+    public MappedByteBuffer getMappedFileContents() {
+        return mappedFileContents;
+    }
+
+    @JsonIgnore
+    public void setMappedFileContents(MappedByteBuffer mappedFileContents) {
+        this.mappedFileContents = mappedFileContents;
     }
 
+    public void discardMappedFileContents() {
+        mappedFileContents = null;
+    }
+
+    /**
+     * Bloom filter of the keys in the clean part of this file. Not stored in the meta file.
+     */
+
+    @JsonIgnore
+    public LongBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    @JsonIgnore
+    public void setBloomFilter(LongBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * Sketch of the keys in the clean part of this file, null if unknown (if key sketches are disabled, or for files that
+     * were reconstructed from disk). Stored in the meta file.
+     */
+
     @JsonIgnore
-    public void setCachedFileContents(byte[] cachedFileContents) {
-        this.cachedFileContents = cachedFileContents;
+    public KeySketch getKeySketch() {
+        return keySketch;
+    }
+
+    @JsonIgnore
+    public void setKeySketch(KeySketch keySketch) {
+        this.keySketch = keySketch;
+    }
+
+    /**
+     * Values appended to this file after its clean part, only used for dirty files. Not stored in the meta file.
+     */
+
+    @JsonIgnore
+    public FileTail getTail() {
+        return tail;
+    }
+
+    @JsonIgnore
+    public void setTail(FileTail tail) {
+        this.tail = tail;
     }
 
     public int getWriteSize() {
         return writeSize;
     }
 
+    /**
+     * True if this file is written in the block compressed format (see {@link CleanFileWriter})
+     */
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * True if the keys in the clean part of this file are delta encoded (see {@link CleanFileWriter})
+     */
+
+    public boolean isDeltaEncoded() {
+        return deltaEncoded;
+    }
+
+    /**
+     * True if this file starts with a header (see {@link CleanFileWriter#FILE_HEADER_SIZE})
+     */
+
+    @JsonIgnore
+    public boolean hasHeader() {
+        return compressed || deltaEncoded;
+    }
+
     @JsonIgnore
     public boolean isClean() {
         return readSize == writeSize;
@@ -105,6 +233,8 @@ class FileInfo implements Comparable {
      */
 
     public FileInfo() {
+        this.numOfValues = -1;
+        this.numOfAppendedValues = -1;
     }
 
     public void setFirstKey(long firstKey) {
@@ -119,10 +249,30 @@ class FileInfo implements Comparable {
         this.writeSize = writeSize;
     }
 
+    public void setCompressed(boolean compressed) {
+        this.compressed = compressed;
+    }
+
+    public void setDeltaEncoded(boolean deltaEncoded) {
+        this.deltaEncoded = deltaEncoded;
+    }
+
+    public void setNumOfValues(int numOfValues) {
+        this.numOfValues = numOfValues;
+    }
+
+    public void setNumOfAppendedValues(int numOfAppendedValues) {
+        this.numOfAppendedValues = numOfAppendedValues;
+    }
+
     public void setFileLocationsKeys(long[] fileLocationsKeys) {
         this.fileLocationsKeys = fileLocationsKeys;
     }
 
+    public void setFileLocationsLastKeys(long[] fileLocationsLastKeys) {
+        this.fileLocationsLastKeys = fileLocationsLastKeys;
+    }
+
     public void setFileLocationsValues(int[] fileLocationsValues) {
         this.fileLocationsValues = fileLocationsValues;
     }
@@ -0,0 +1,74 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.combinator.Combinator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values that were appended to a dirty file (after its clean part), combined per key. This allows to read values
+ * from dirty files without rewriting them first.
+ */
+
+class FileTail<T> {
+
+    private final Map<Long, T> values;
+    private final Set<Long> keysWithDeletes;
+    private final int startPos;
+    private int endPos;
+
+    public FileTail(int startPos) {
+        this.values = new HashMap<>();
+        this.keysWithDeletes = new HashSet<>();
+        this.startPos = startPos;
+        this.endPos = startPos;
+    }
+
+    /**
+     * Values should be added in the order they were appended to the file
+     */
+
+    public void add(long key, T value, Combinator<T> combinator) {
+        if (value == null) {
+            //the value was deleted, all previous values (including the value in the clean part of the file) are discarded
+            values.remove(key);
+            keysWithDeletes.add(key);
+        } else {
+            T currentValue = values.get(key);
+            values.put(key, currentValue == null ? value : combinator.combine(currentValue, value));
+        }
+    }
+
+    public T combineWithCleanValue(long key, T cleanValue, Combinator<T> combinator) {
+        T appendedValue = values.get(key);
+        if (keysWithDeletes.contains(key) || cleanValue == null) {
+            return appendedValue;
+        } else if (appendedValue == null) {
+            return cleanValue;
+        } else {
+            return combinator.combine(cleanValue, appendedValue);
+        }
+    }
+
+    /**
+     * Position in the file up to which the appended values were added to this tail
+     */
+
+    public int getEndPos() {
+        return endPos;
+    }
+
+    public void setEndPos(int endPos) {
+        this.endPos = endPos;
+    }
+
+    /**
+     * Number of bytes in the file that are represented by this tail, used as an approximation of its memory usage
+     */
+
+    public int getSizeInFile() {
+        return endPos - startPos;
+    }
+}
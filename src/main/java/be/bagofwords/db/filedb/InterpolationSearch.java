@@ -0,0 +1,158 @@
+package be.bagofwords.db.filedb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Search in sorted keys. Our keys are almost always hashes, so they are close to uniformly distributed and interpolating
+ * the position of a key takes far fewer comparisons than a binary search. Whenever an interpolation step fails to halve
+ * the search range (skewed keys), the next step is a binary step, so the worst case remains O(log n).
+ */
+
+class InterpolationSearch {
+
+    /**
+     * Same contract as {@link java.util.Arrays#binarySearch(long[], long)}
+     */
+
+    public static int search(long[] keys, long key) {
+        return search(keys, 0, keys.length, key);
+    }
+
+    /**
+     * Same contract as {@link java.util.Arrays#binarySearch(long[], int, int, long)}
+     */
+
+    public static int search(long[] keys, int fromIndex, int toIndex, long key) {
+        int low = fromIndex;
+        int high = toIndex - 1;
+        boolean interpolate = true;
+        while (low <= high) {
+            long lowKey = keys[low];
+            long highKey = keys[high];
+            if (key < lowKey) {
+                return -(low + 1);
+            } else if (key > highKey) {
+                return -(high + 2);
+            }
+            int mid = interpolate ? interpolate(low, high, lowKey, highKey, key) : (low + high) >>> 1;
+            long midKey = keys[mid];
+            int rangeBefore = high - low;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+            interpolate = !interpolate || high - low < rangeBefore / 2;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Searches a sequence of fixed width records that each start with a (big endian) long key. Returns the index of the
+     * record with the given key or -(insertion point) - 1 if there is no such record.
+     */
+
+    public static int searchFixedWidth(ByteBuffer buffer, int start, int numOfRecords, int recordSize, long key) {
+        int low = 0;
+        int high = numOfRecords - 1;
+        boolean interpolate = true;
+        while (low <= high) {
+            long lowKey = buffer.getLong(start + low * recordSize);
+            long highKey = buffer.getLong(start + high * recordSize);
+            if (key < lowKey) {
+                return -(low + 1);
+            } else if (key > highKey) {
+                return -(high + 2);
+            }
+            int mid = interpolate ? interpolate(low, high, lowKey, highKey, key) : (low + high) >>> 1;
+            long midKey = buffer.getLong(start + mid * recordSize);
+            int rangeBefore = high - low;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+            interpolate = !interpolate || high - low < rangeBefore / 2;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Same as {@link #searchFixedWidth(ByteBuffer, int, int, int, long)}, but reads the keys directly from the file.
+     */
+
+    public static int searchFixedWidth(FileChannel channel, long start, int numOfRecords, int recordSize, long key) throws IOException {
+        ByteBuffer keyBuffer = ByteBuffer.allocate(8);
+        return search(ind -> readKey(channel, start + (long) ind * recordSize, keyBuffer), numOfRecords, key);
+    }
+
+    /**
+     * Searches a sequence of records with sorted keys. Returns the index of the record with the given key or
+     * -(insertion point) - 1 if there is no such record.
+     */
+
+    public static int search(RecordKeys keys, int numOfRecords, long key) throws IOException {
+        int low = 0;
+        int high = numOfRecords - 1;
+        boolean interpolate = true;
+        while (low <= high) {
+            long lowKey = keys.getKey(low);
+            long highKey = keys.getKey(high);
+            if (key < lowKey) {
+                return -(low + 1);
+            } else if (key > highKey) {
+                return -(high + 2);
+            }
+            int mid = interpolate ? interpolate(low, high, lowKey, highKey, key) : (low + high) >>> 1;
+            long midKey = keys.getKey(mid);
+            int rangeBefore = high - low;
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+            interpolate = !interpolate || high - low < rangeBefore / 2;
+        }
+        return -(low + 1);
+    }
+
+    private static long readKey(FileChannel channel, long position, ByteBuffer keyBuffer) throws IOException {
+        keyBuffer.clear();
+        while (keyBuffer.hasRemaining()) {
+            if (channel.read(keyBuffer, position + keyBuffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at position " + (position + keyBuffer.position()));
+            }
+        }
+        return keyBuffer.getLong(0);
+    }
+
+    private static int interpolate(int low, int high, long lowKey, long highKey, long key) {
+        if (highKey == lowKey) {
+            return low;
+        }
+        //computed with doubles because highKey - lowKey can overflow
+        double fraction = ((double) key - (double) lowKey) / ((double) highKey - (double) lowKey);
+        int mid = low + (int) (fraction * (high - low));
+        return Math.max(low, Math.min(high, mid));
+    }
+
+    /**
+     * Gives access to the key of the i-th record
+     */
+
+    public interface RecordKeys {
+
+        long getKey(int ind) throws IOException;
+
+    }
+
+}
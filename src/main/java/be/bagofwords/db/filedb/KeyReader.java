@@ -0,0 +1,59 @@
+package be.bagofwords.db.filedb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the keys of a sequence of keys and values, which can be delta encoded (see {@link CleanFileWriter}). After
+ * reading a key, the caller reads (or skips) the value at {@link #getPosition()} and calls {@link #skip(int)}.
+ */
+
+class KeyReader {
+
+    private final ByteBuffer buffer;
+    private final boolean deltaEncoded;
+    private int position;
+    private long key;
+
+    public KeyReader(ByteBuffer buffer, int position, boolean deltaEncoded) {
+        this.buffer = buffer;
+        this.position = position;
+        this.deltaEncoded = deltaEncoded;
+    }
+
+    public long readKey() {
+        if (!deltaEncoded) {
+            key = buffer.getLong(position);
+            position += 8;
+        } else {
+            long delta = readUnsignedVarLong();
+            if (delta == 0) {
+                //restart
+                key = buffer.getLong(position);
+                position += 8;
+            } else {
+                key += delta;
+            }
+        }
+        return key;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public void skip(int numOfBytes) {
+        position += numOfBytes;
+    }
+
+    private long readUnsignedVarLong() {
+        long result = 0;
+        int shift = 0;
+        byte currentByte;
+        do {
+            currentByte = buffer.get(position++);
+            result |= (long) (currentByte & 0x7F) << shift;
+            shift += 7;
+        } while ((currentByte & 0x80) != 0);
+        return result;
+    }
+}
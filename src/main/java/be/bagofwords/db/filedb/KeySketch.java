@@ -0,0 +1,121 @@
+package be.bagofwords.db.filedb;
+
+/**
+ * HyperLogLog sketch of a set of keys. Estimates the number of distinct keys that were added with a relative standard
+ * error of 1.04 / sqrt(2^precision), about 3% with the default precision. Sketches of two sets can be merged into the
+ * sketch of their union, but keys can not be removed. Not thread-safe.
+ */
+
+class KeySketch {
+
+    public static final int DEFAULT_PRECISION = 10;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public KeySketch() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public KeySketch(int precision) {
+        this(precision, new byte[1 << precision]);
+    }
+
+    private KeySketch(int precision, byte[] registers) {
+        if (precision < 4 || precision > 16) {
+            throw new IllegalArgumentException("Precision of a key sketch should be between 4 and 16, found " + precision);
+        }
+        this.precision = precision;
+        this.registers = registers;
+    }
+
+    public void add(long key) {
+        long hash = hash(key);
+        int register = (int) (hash >>> (64 - precision));
+        //number of leading zeros of the remaining bits, the last bit is set so the rank is at most 64 - precision + 1
+        int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+        if (registers[register] < rank) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    /**
+     * Adds the keys of the other sketch to this sketch
+     */
+
+    public void merge(KeySketch other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Can not merge key sketches with precision " + precision + " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < other.registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int emptyRegisters = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                emptyRegisters++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && emptyRegisters > 0) {
+            //small cardinalities: linear counting of the empty registers is more accurate
+            estimate = m * Math.log((double) m / emptyRegisters);
+        }
+        return Math.round(estimate);
+    }
+
+    public KeySketch copy() {
+        return new KeySketch(precision, registers.clone());
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Serialization:
+     */
+
+    public byte[] getRegisters() {
+        return registers;
+    }
+
+    public static KeySketch fromRegisters(byte[] registers) {
+        int precision = Integer.numberOfTrailingZeros(registers.length);
+        if (registers.length != 1 << precision) {
+            throw new IllegalArgumentException("Number of registers of a key sketch should be a power of 2, found " + registers.length);
+        }
+        return new KeySketch(precision, registers);
+    }
+
+    private static double alpha(int m) {
+        if (m == 16) {
+            return 0.673;
+        } else if (m == 32) {
+            return 0.697;
+        } else if (m == 64) {
+            return 0.709;
+        } else {
+            return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+
+    /**
+     * Keys are often not uniformly distributed (e.g. hashes of strings with a small range), so they are mixed first
+     */
+
+    private static long hash(long key) {
+        key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+        key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+        return key ^ (key >>> 31);
+    }
+
+}
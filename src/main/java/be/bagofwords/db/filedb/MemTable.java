@@ -0,0 +1,176 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.combinator.Combinator;
+import be.bagofwords.util.KeyValue;
+
+import java.util.*;
+
+/**
+ * Values that were written to a bucket but not yet to its files, sorted and combined per key. Like in a {@link FileTail},
+ * a delete discards all values of that key in the files. Flushing a mem table merges it with the files of the bucket.
+ */
+
+class MemTable<T> {
+
+    private static final int BYTES_PER_ENTRY = 56; //entry of the tree map and the boxed key
+    private static final int BYTES_PER_DELETE = 56; //entry of the hash set and the boxed key
+
+    private final TreeMap<Long, T> values; //value is null if the last write of this key was a delete
+    private final Set<Long> keysWithDeletes;
+
+    public MemTable() {
+        this.values = new TreeMap<>();
+        this.keysWithDeletes = new HashSet<>();
+    }
+
+    /**
+     * Values should be added in the order they were written
+     */
+
+    public void put(long key, T value, Combinator<T> combinator) {
+        if (value == null) {
+            values.put(key, null);
+            keysWithDeletes.add(key);
+        } else {
+            T currentValue = values.get(key);
+            values.put(key, currentValue == null ? value : combinator.combine(currentValue, value));
+        }
+    }
+
+    public T combineWithFileValue(long key, T fileValue, Combinator<T> combinator) {
+        T memTableValue = values.get(key);
+        if (keysWithDeletes.contains(key) || fileValue == null) {
+            return memTableValue;
+        } else if (memTableValue == null) {
+            return fileValue;
+        } else {
+            return combinator.combine(fileValue, memTableValue);
+        }
+    }
+
+    /**
+     * @param endKey exclusive, null if the range has no upper bound
+     */
+
+    public boolean hasValues(long startKey, Long endKey) {
+        return !getRange(startKey, endKey).isEmpty();
+    }
+
+    /**
+     * Merges the sorted values of a file with the values in this mem table between startKey and endKey (exclusive, can
+     * be null). The result is sorted and does not contain deleted keys.
+     */
+
+    public List<KeyValue<T>> merge(List<KeyValue<T>> sortedValues, long startKey, Long endKey, Combinator<T> combinator) {
+        NavigableMap<Long, T> range = getRange(startKey, endKey);
+        if (range.isEmpty()) {
+            return sortedValues;
+        }
+        List<KeyValue<T>> result = new ArrayList<>(sortedValues.size() + range.size());
+        Iterator<Long> memTableKeys = range.keySet().iterator();
+        Long memTableKey = memTableKeys.hasNext() ? memTableKeys.next() : null;
+        for (KeyValue<T> value : sortedValues) {
+            while (memTableKey != null && memTableKey < value.getKey()) {
+                addIfNotNull(result, memTableKey, combineWithFileValue(memTableKey, null, combinator));
+                memTableKey = memTableKeys.hasNext() ? memTableKeys.next() : null;
+            }
+            if (memTableKey != null && memTableKey.longValue() == value.getKey()) {
+                addIfNotNull(result, memTableKey, combineWithFileValue(memTableKey, value.getValue(), combinator));
+                memTableKey = memTableKeys.hasNext() ? memTableKeys.next() : null;
+            } else {
+                result.add(value);
+            }
+        }
+        while (memTableKey != null) {
+            addIfNotNull(result, memTableKey, combineWithFileValue(memTableKey, null, combinator));
+            memTableKey = memTableKeys.hasNext() ? memTableKeys.next() : null;
+        }
+        return result;
+    }
+
+    /**
+     * @param endKey exclusive, null if the range has no upper bound
+     */
+
+    public void remove(long startKey, Long endKey) {
+        NavigableMap<Long, T> range = getRange(startKey, endKey);
+        keysWithDeletes.removeAll(range.keySet());
+        range.clear();
+    }
+
+    /**
+     * Copies the values and deletes of another mem table between startKey and endKey (exclusive, can be null). Used
+     * when buckets are split or merged, the keys should not occur in this mem table.
+     */
+
+    public void putAll(MemTable<T> other, long startKey, Long endKey) {
+        NavigableMap<Long, T> range = other.getRange(startKey, endKey);
+        values.putAll(range);
+        for (Long key : range.keySet()) {
+            if (other.keysWithDeletes.contains(key)) {
+                keysWithDeletes.add(key);
+            }
+        }
+    }
+
+    /**
+     * Writes that reproduce this mem table when they are put in an empty mem table: a delete (null value) for every key
+     * with deletes, followed by its value if it was written after the delete
+     */
+
+    public List<KeyValue<T>> getWrites() {
+        List<KeyValue<T>> result = new ArrayList<>(values.size());
+        for (Map.Entry<Long, T> entry : values.entrySet()) {
+            if (keysWithDeletes.contains(entry.getKey())) {
+                result.add(new KeyValue<>(entry.getKey(), null));
+            }
+            if (entry.getValue() != null) {
+                result.add(new KeyValue<>(entry.getKey(), entry.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Keys with values or deletes in this mem table, in ascending order
+     */
+
+    public Set<Long> getKeys() {
+        return values.keySet();
+    }
+
+    public long getFirstKey() {
+        return values.firstKey();
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * Estimated number of bytes used by this mem table if every value uses bytesPerValue bytes
+     */
+
+    public long getMemoryUsage(int bytesPerValue) {
+        return (long) values.size() * (BYTES_PER_ENTRY + bytesPerValue) + (long) keysWithDeletes.size() * BYTES_PER_DELETE;
+    }
+
+    private NavigableMap<Long, T> getRange(long startKey, Long endKey) {
+        if (endKey == null) {
+            return values.tailMap(startKey, true);
+        } else {
+            return values.subMap(startKey, true, endKey, false);
+        }
+    }
+
+    private void addIfNotNull(List<KeyValue<T>> result, long key, T value) {
+        if (value != null) {
+            result.add(new KeyValue<>(key, value));
+        }
+    }
+
+}
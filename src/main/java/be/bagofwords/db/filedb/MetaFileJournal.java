@@ -0,0 +1,399 @@
+package be.bagofwords.db.filedb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Meta information of a {@link FileDataInterface} in a binary format: a snapshot of all buckets and files, followed by a
+ * journal with the changes since the snapshot. Every write appends one record to the journal with the bucket layout (if
+ * buckets were split or merged) and the files that were rewritten, appended to or deleted since the previous write, so
+ * writing the meta information costs time in the number of changed files instead of the total number of files. When the
+ * journal grows larger than the snapshot, a new snapshot is written and the journal is started again.
+ * <p>
+ * Snapshot and journal are written as records of the {@link WriteAheadLog} format, so a record that was not written
+ * completely (because of a crash) ends the journal. Both start with the id of the snapshot, a journal of another
+ * snapshot is ignored.
+ */
+
+class MetaFileJournal {
+
+    private static final String SNAPSHOT_FILE = "META_SNAPSHOT";
+    private static final String JOURNAL_FILE = "META_JOURNAL";
+    private static final String TEMP_FILE_PREFIX = "tmp.";
+    private static final int VERSION = 1;
+    private static final long MIN_JOURNAL_SIZE_FOR_SNAPSHOT = 64 * 1024;
+
+    private static final byte ENTRY_HEADER = 1;
+    private static final byte ENTRY_LAYOUT = 2;
+    private static final byte ENTRY_FILE = 3;
+    private static final byte ENTRY_WRITE_SIZE = 4;
+    private static final byte ENTRY_FILE_REMOVED = 5;
+
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_DELTA_ENCODED = 2;
+    private static final int FLAG_HAS_LAST_KEYS = 4;
+    private static final int FLAG_HAS_KEY_SKETCH = 8;
+
+    private final File directory;
+    private final Map<Long, FileInfo> changedFiles; //new versions of files since the last write, null for removed files
+    private final Map<Long, FileInfo> appendedFiles; //files with values appended since the last write
+    private boolean layoutChanged;
+    private boolean snapshotRequired;
+    private long snapshotId;
+    private long snapshotSize;
+    private long journalSize;
+
+    public MetaFileJournal(File directory) {
+        this.directory = directory;
+        this.changedFiles = new HashMap<>();
+        this.appendedFiles = new HashMap<>();
+        this.layoutChanged = false;
+        this.snapshotRequired = true;
+    }
+
+    /**
+     * Reads the snapshot and applies the complete records of its journal. Returns null if there is no snapshot.
+     */
+
+    public synchronized FileDataInterface.MetaFile read() throws IOException {
+        snapshotRequired = true;
+        File snapshotFile = new File(directory, SNAPSHOT_FILE);
+        if (!snapshotFile.exists()) {
+            return null;
+        }
+        List<byte[]> snapshot = WriteAheadLog.readRecords(snapshotFile);
+        if (snapshot.isEmpty()) {
+            throw new IOException("Incomplete snapshot " + snapshotFile.getAbsolutePath());
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(snapshot.get(0)));
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unknown version " + version + " of " + snapshotFile.getAbsolutePath());
+        }
+        MetaState state = new MetaState();
+        snapshotId = dis.readLong();
+        state.applyEntries(dis);
+        snapshotSize = snapshotFile.length();
+        File journalFile = new File(directory, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(journalFile.toPath()));
+            if (journal.remaining() >= 8 && journal.getLong() == snapshotId) {
+                long sizeOfCompleteRecords = 8;
+                for (byte[] record : WriteAheadLog.readRecords(journal)) {
+                    state.applyEntries(new DataInputStream(new ByteArrayInputStream(record)));
+                    sizeOfCompleteRecords += WriteAheadLog.RECORD_HEADER_SIZE + record.length;
+                }
+                journalSize = journal.capacity();
+                //records appended after an incomplete record would not be read
+                snapshotRequired = sizeOfCompleteRecords != journalSize;
+            }
+        }
+        return state.toMetaFile();
+    }
+
+    /**
+     * Writes the changes since the last write, or a new snapshot. Should be called while the files can not be changed.
+     *
+     * @param sync if true, the meta information is synced to disk before this method returns
+     */
+
+    public synchronized void write(FileDataInterface.MetaFile metaFile, boolean sync) throws IOException {
+        try {
+            if (snapshotRequired || journalSize > Math.max(MIN_JOURNAL_SIZE_FOR_SNAPSHOT, snapshotSize)) {
+                writeSnapshot(metaFile, sync);
+            } else {
+                appendChanges(metaFile, sync);
+            }
+        } catch (IOException | RuntimeException exp) {
+            snapshotRequired = true; //part of a record might have been written
+            throw exp;
+        }
+        changedFiles.clear();
+        appendedFiles.clear();
+        layoutChanged = false;
+        snapshotRequired = false;
+    }
+
+    /**
+     * A new version of this file was created (or the file was created)
+     */
+
+    public synchronized void fileWasWritten(FileInfo file) {
+        changedFiles.put(file.getFirstKey(), file);
+    }
+
+    public synchronized void fileWasAppended(FileInfo file) {
+        appendedFiles.put(file.getFirstKey(), file);
+    }
+
+    public synchronized void fileWasRemoved(FileInfo file) {
+        changedFiles.put(file.getFirstKey(), null);
+    }
+
+    /**
+     * Buckets were split or merged, or the flag that they should be cleaned before they are read was changed
+     */
+
+    public synchronized void layoutWasChanged() {
+        layoutChanged = true;
+    }
+
+    /**
+     * The next write writes all buckets and files, e.g. because they were reconstructed from the files on disk
+     */
+
+    public synchronized void snapshotRequired() {
+        snapshotRequired = true;
+    }
+
+    private void appendChanges(FileDataInterface.MetaFile metaFile, boolean sync) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeHeader(dos, metaFile);
+        if (layoutChanged) {
+            writeLayout(dos, metaFile.getFileBuckets());
+        }
+        for (Map.Entry<Long, FileInfo> entry : changedFiles.entrySet()) {
+            if (entry.getValue() == null) {
+                dos.writeByte(ENTRY_FILE_REMOVED);
+                dos.writeLong(entry.getKey());
+            } else {
+                writeFile(dos, entry.getValue());
+            }
+        }
+        for (Map.Entry<Long, FileInfo> entry : appendedFiles.entrySet()) {
+            if (!changedFiles.containsKey(entry.getKey())) {
+                dos.writeByte(ENTRY_WRITE_SIZE);
+                dos.writeLong(entry.getKey());
+                dos.writeInt(entry.getValue().getWriteSize());
+                dos.writeInt(entry.getValue().getNumOfAppendedValues());
+            }
+        }
+        byte[] record = toRecord(bos.toByteArray());
+        try (FileChannel channel = FileChannel.open(new File(directory, JOURNAL_FILE).toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, record);
+            if (sync) {
+                channel.force(false);
+            }
+        }
+        journalSize += record.length;
+    }
+
+    private void writeSnapshot(FileDataInterface.MetaFile metaFile, boolean sync) throws IOException {
+        long newSnapshotId = new Random().nextLong();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(VERSION);
+        dos.writeLong(newSnapshotId);
+        writeHeader(dos, metaFile);
+        writeLayout(dos, metaFile.getFileBuckets());
+        for (FileBucket bucket : metaFile.getFileBuckets()) {
+            for (FileInfo file : bucket.getFiles()) {
+                writeFile(dos, file);
+            }
+        }
+        byte[] snapshot = toRecord(bos.toByteArray());
+        replaceFile(SNAPSHOT_FILE, snapshot, sync);
+        //a crash at this point leaves the journal of the previous snapshot, which is ignored because of its id
+        replaceFile(JOURNAL_FILE, ByteBuffer.allocate(8).putLong(newSnapshotId).array(), sync);
+        snapshotId = newSnapshotId;
+        snapshotSize = snapshot.length;
+        journalSize = 8;
+    }
+
+    private void replaceFile(String name, byte[] contents, boolean sync) throws IOException {
+        File tempFile = new File(directory, TEMP_FILE_PREFIX + name);
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, contents);
+            if (sync) {
+                channel.force(false);
+            }
+        }
+        Files.move(tempFile.toPath(), new File(directory, name).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void writeFully(FileChannel channel, byte[] contents) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private byte[] toRecord(byte[] entries) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        WriteAheadLog.writeRecord(new DataOutputStream(bos), entries);
+        return bos.toByteArray();
+    }
+
+    private void writeHeader(DataOutputStream dos, FileDataInterface.MetaFile metaFile) throws IOException {
+        dos.writeByte(ENTRY_HEADER);
+        dos.writeLong(metaFile.getLastWrite());
+        dos.writeLong(metaFile.getLastRead());
+        dos.writeLong(metaFile.getLogSegment());
+    }
+
+    /**
+     * Buckets cover all keys, so only their first keys are written
+     */
+
+    private void writeLayout(DataOutputStream dos, List<FileBucket> buckets) throws IOException {
+        dos.writeByte(ENTRY_LAYOUT);
+        dos.writeInt(buckets.size());
+        for (FileBucket bucket : buckets) {
+            dos.writeLong(bucket.getFirstKey());
+            dos.writeBoolean(bucket.shouldBeCleanedBeforeRead());
+        }
+    }
+
+    private void writeFile(DataOutputStream dos, FileInfo file) throws IOException {
+        dos.writeByte(ENTRY_FILE);
+        dos.writeLong(file.getFirstKey());
+        dos.writeInt(file.getReadSize());
+        dos.writeInt(file.getWriteSize());
+        dos.writeInt(file.getNumOfValues());
+        dos.writeInt(file.getNumOfAppendedValues());
+        long[] keys = file.getFileLocationsKeys();
+        long[] lastKeys = file.getFileLocationsLastKeys();
+        int[] positions = file.getFileLocationsValues();
+        KeySketch keySketch = file.getKeySketch();
+        int flags = (file.isCompressed() ? FLAG_COMPRESSED : 0) | (file.isDeltaEncoded() ? FLAG_DELTA_ENCODED : 0) | (lastKeys != null ? FLAG_HAS_LAST_KEYS : 0) | (keySketch != null ? FLAG_HAS_KEY_SKETCH : 0);
+        dos.writeByte(flags);
+        int numOfBlocks = keys == null ? 0 : keys.length;
+        dos.writeInt(numOfBlocks);
+        for (int i = 0; i < numOfBlocks; i++) {
+            dos.writeLong(keys[i]);
+            if (lastKeys != null) {
+                dos.writeLong(lastKeys[i]);
+            }
+            dos.writeInt(positions[i]);
+        }
+        if (keySketch != null) {
+            dos.writeInt(keySketch.getRegisters().length);
+            dos.write(keySketch.getRegisters());
+        }
+    }
+
+    /**
+     * Buckets and files while the snapshot and the journal are read
+     */
+
+    private static class MetaState {
+
+        private long lastWrite;
+        private long lastRead;
+        private long logSegment;
+        private long[] firstKeysOfBuckets;
+        private boolean[] shouldBeCleanedBeforeRead;
+        private final TreeMap<Long, FileInfo> files = new TreeMap<>();
+
+        private void applyEntries(DataInputStream dis) throws IOException {
+            while (dis.available() > 0) {
+                byte type = dis.readByte();
+                if (type == ENTRY_HEADER) {
+                    lastWrite = dis.readLong();
+                    lastRead = dis.readLong();
+                    logSegment = dis.readLong();
+                } else if (type == ENTRY_LAYOUT) {
+                    int numOfBuckets = dis.readInt();
+                    firstKeysOfBuckets = new long[numOfBuckets];
+                    shouldBeCleanedBeforeRead = new boolean[numOfBuckets];
+                    for (int i = 0; i < numOfBuckets; i++) {
+                        firstKeysOfBuckets[i] = dis.readLong();
+                        shouldBeCleanedBeforeRead[i] = dis.readBoolean();
+                    }
+                } else if (type == ENTRY_FILE) {
+                    FileInfo file = readFile(dis);
+                    files.put(file.getFirstKey(), file);
+                } else if (type == ENTRY_WRITE_SIZE) {
+                    long firstKey = dis.readLong();
+                    int writeSize = dis.readInt();
+                    int numOfAppendedValues = dis.readInt();
+                    FileInfo file = files.get(firstKey);
+                    if (file == null) {
+                        throw new IOException("Journal refers to unknown file " + firstKey);
+                    }
+                    file.setWriteSize(writeSize);
+                    file.setNumOfAppendedValues(numOfAppendedValues);
+                } else if (type == ENTRY_FILE_REMOVED) {
+                    files.remove(dis.readLong());
+                } else {
+                    throw new IOException("Unknown entry " + type + " in meta journal");
+                }
+            }
+        }
+
+        private FileInfo readFile(DataInputStream dis) throws IOException {
+            FileInfo file = new FileInfo();
+            file.setFirstKey(dis.readLong());
+            file.setReadSize(dis.readInt());
+            file.setWriteSize(dis.readInt());
+            file.setNumOfValues(dis.readInt());
+            file.setNumOfAppendedValues(dis.readInt());
+            int flags = dis.readByte();
+            file.setCompressed((flags & FLAG_COMPRESSED) != 0);
+            file.setDeltaEncoded((flags & FLAG_DELTA_ENCODED) != 0);
+            boolean hasLastKeys = (flags & FLAG_HAS_LAST_KEYS) != 0;
+            int numOfBlocks = dis.readInt();
+            long[] keys = new long[numOfBlocks];
+            long[] lastKeys = hasLastKeys ? new long[numOfBlocks] : null;
+            int[] positions = new int[numOfBlocks];
+            for (int i = 0; i < numOfBlocks; i++) {
+                keys[i] = dis.readLong();
+                if (hasLastKeys) {
+                    lastKeys[i] = dis.readLong();
+                }
+                positions[i] = dis.readInt();
+            }
+            file.setFileLocationsKeys(keys);
+            file.setFileLocationsLastKeys(lastKeys);
+            file.setFileLocationsValues(positions);
+            if ((flags & FLAG_HAS_KEY_SKETCH) != 0) {
+                byte[] registers = new byte[dis.readInt()];
+                dis.readFully(registers);
+                file.setKeySketch(KeySketch.fromRegisters(registers));
+            }
+            return file;
+        }
+
+        private FileDataInterface.MetaFile toMetaFile() throws IOException {
+            if (firstKeysOfBuckets == null) {
+                throw new IOException("Meta journal does not contain the layout of the buckets");
+            }
+            List<FileBucket> buckets = new ArrayList<>(firstKeysOfBuckets.length);
+            for (int i = 0; i < firstKeysOfBuckets.length; i++) {
+                long lastKey = i + 1 < firstKeysOfBuckets.length ? firstKeysOfBuckets[i + 1] - 1 : Long.MAX_VALUE;
+                FileBucket bucket = new FileBucket(firstKeysOfBuckets[i], lastKey);
+                bucket.setShouldBeCleanedBeforeRead(shouldBeCleanedBeforeRead[i]);
+                buckets.add(bucket);
+            }
+            for (FileInfo file : files.values()) {
+                //files are sorted, so the files of every bucket are added in order
+                int ind = Arrays.binarySearch(firstKeysOfBuckets, file.getFirstKey());
+                if (ind < 0) {
+                    ind = -ind - 2;
+                }
+                if (ind < 0) {
+                    throw new IOException("File " + file.getFirstKey() + " is before the first bucket");
+                }
+                buckets.get(ind).getFiles().add(file);
+            }
+            return new FileDataInterface.MetaFile(buckets, lastWrite, lastRead, logSegment);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.RadixSort;
+import be.bagofwords.db.combinator.PrimitiveCombinator;
+
+import java.util.Arrays;
+
+/**
+ * Parallel arrays of keys and values of a primitive type (see {@link PrimitiveCombinator} for how values are
+ * represented), used to rewrite files without creating an object for every value. The arrays only grow, so one
+ * instance can be reused for many rewrites.
+ */
+
+class PrimitiveValues {
+
+    private long[] keys;
+    private long[] values;
+    private long[] sortKeys; //scratch space for sorting
+    private long[] sortValues;
+    private int size;
+
+    public PrimitiveValues() {
+        this.keys = new long[1024];
+        this.values = new long[1024];
+        this.sortKeys = new long[0];
+        this.sortValues = new long[0];
+        this.size = 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(long key, long value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getKey(int ind) {
+        return keys[ind];
+    }
+
+    public long getValue(int ind) {
+        return values[ind];
+    }
+
+    /**
+     * Sorts the values from start on by their key (see {@link RadixSort}). The sort is stable, values with the same key are then combined in
+     * the order they were added. Like in {@link be.bagofwords.db.DBUtils#mergeValues}, the value nullValue marks a
+     * delete: it discards all previous values of its key and is removed from the result.
+     */
+
+    public void sortAndCombine(int start, PrimitiveCombinator combinator, long nullValue) {
+        if (sortKeys.length < size - start) {
+            sortKeys = new long[keys.length];
+            sortValues = new long[keys.length];
+        }
+        RadixSort.sort(keys, values, start, size, sortKeys, sortValues);
+        int end = size;
+        size = start;
+        int ind = start;
+        while (ind < end) {
+            long key = keys[ind];
+            long value = values[ind];
+            ind++;
+            while (ind < end && keys[ind] == key) {
+                long nextValue = values[ind];
+                if (value == nullValue || nextValue == nullValue) {
+                    value = nextValue;
+                } else {
+                    value = combinator.combinePrimitive(value, nextValue);
+                }
+                ind++;
+            }
+            if (value != nullValue) {
+                keys[size] = key;
+                values[size] = value;
+                size++;
+            }
+        }
+    }
+
+    /**
+     * Size in bytes of the arrays of this object
+     */
+
+    public long getMemoryUsage() {
+        return 8L * (keys.length + values.length + sortKeys.length + sortValues.length);
+    }
+
+}
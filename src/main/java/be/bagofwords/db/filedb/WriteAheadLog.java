@@ -0,0 +1,258 @@
+package be.bagofwords.db.filedb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Log of the values that were written to a {@link FileDataInterface} but are not yet in a checkpoint of its files. The
+ * log is split in numbered segments, a new segment is started at every checkpoint and the older segments are deleted
+ * when the checkpoint is complete.
+ * <p>
+ * Records are collected in memory and written with one write and fsync for all writers that are waiting (group commit).
+ * The sync delay trades latency for throughput: the thread that syncs first waits this number of milliseconds, so
+ * records of other threads can join the same fsync. With a negative delay writers do not wait for the fsync at all, the
+ * records are then synced by {@link #sync()}.
+ * <p>
+ * Every record is written as its length, the CRC32 checksum of its bytes and its bytes. A record that was not written
+ * completely (because of a crash) ends the segment when it is read.
+ */
+
+class WriteAheadLog {
+
+    private static final String SEGMENT_PREFIX = "WAL.";
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private final File directory;
+    private final int syncDelay;
+    private long segment;
+    private FileChannel channel;
+    private ByteArrayOutputStream pendingRecords; //guarded by this
+    private long appendedRecords; //guarded by this
+    private long syncedRecords; //guarded by this
+    private boolean syncing; //true while a thread writes the pending records, guarded by this
+
+    public WriteAheadLog(File directory, long segment, int syncDelay) throws IOException {
+        this.directory = directory;
+        this.syncDelay = syncDelay;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+        this.pendingRecords = new ByteArrayOutputStream();
+        this.appendedRecords = 0;
+        this.syncedRecords = 0;
+        this.syncing = false;
+    }
+
+    /**
+     * Adds a record to the log and returns its number. The record is only durable after {@link #waitForSync(long)}
+     * returned.
+     */
+
+    public synchronized long append(byte[] record) {
+        try {
+            writeRecord(new DataOutputStream(pendingRecords), record);
+        } catch (IOException exp) {
+            throw new RuntimeException("Unexpected exception while writing to a byte array", exp);
+        }
+        return ++appendedRecords;
+    }
+
+    /**
+     * Blocks until the record (and all records before it) is synced to disk, unless the sync delay is negative
+     */
+
+    public void waitForSync(long record) throws IOException {
+        if (syncDelay < 0) {
+            return;
+        }
+        if (!startSyncing(record)) {
+            return; //synced by another thread
+        }
+        try {
+            if (syncDelay > 0) {
+                Thread.sleep(syncDelay);
+            }
+            writePendingRecords();
+        } catch (InterruptedException exp) {
+            throw new IOException("Interrupted while syncing " + getSegmentFile(directory, segment).getAbsolutePath(), exp);
+        } finally {
+            stopSyncing();
+        }
+    }
+
+    /**
+     * Syncs all records that were appended so far
+     */
+
+    public void sync() throws IOException {
+        long lastRecord;
+        synchronized (this) {
+            lastRecord = appendedRecords;
+        }
+        if (startSyncing(lastRecord)) {
+            try {
+                writePendingRecords();
+            } finally {
+                stopSyncing();
+            }
+        }
+    }
+
+    /**
+     * Syncs all appended records to the current segment and starts a new segment. Returns the number of the new segment.
+     */
+
+    public long startNewSegment() throws IOException {
+        startSyncing(Long.MAX_VALUE);
+        try {
+            writePendingRecords();
+            channel.close();
+            channel = openSegment(segment + 1);
+            segment++;
+            return segment;
+        } finally {
+            stopSyncing();
+        }
+    }
+
+    public void close() throws IOException {
+        sync();
+        channel.close();
+    }
+
+    /**
+     * Waits until no other thread is syncing. Returns false if the record was synced in the mean time, true if the
+     * calling thread should sync the pending records.
+     */
+
+    private synchronized boolean startSyncing(long record) throws IOException {
+        while (syncing && syncedRecords < record) {
+            try {
+                wait();
+            } catch (InterruptedException exp) {
+                throw new IOException("Interrupted while waiting for sync of " + getSegmentFile(directory, segment).getAbsolutePath(), exp);
+            }
+        }
+        if (syncedRecords >= record) {
+            return false;
+        }
+        syncing = true;
+        return true;
+    }
+
+    private synchronized void stopSyncing() {
+        syncing = false;
+        notifyAll();
+    }
+
+    /**
+     * Writes and syncs the pending records. Only called by the thread that is syncing, records that are appended in the
+     * mean time are synced by the next thread.
+     */
+
+    private void writePendingRecords() throws IOException {
+        byte[] records;
+        long lastRecord;
+        synchronized (this) {
+            records = pendingRecords.toByteArray();
+            lastRecord = appendedRecords;
+            pendingRecords = new ByteArrayOutputStream();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(records);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        synchronized (this) {
+            syncedRecords = lastRecord;
+        }
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(getSegmentFile(directory, segment).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public static File getSegmentFile(File directory, long segment) {
+        return new File(directory, SEGMENT_PREFIX + segment);
+    }
+
+    /**
+     * Numbers of the segments in this directory, sorted
+     */
+
+    public static List<Long> findSegments(File directory) {
+        List<Long> result = new ArrayList<>();
+        String[] files = directory.list();
+        if (files != null) {
+            for (String file : files) {
+                if (file.startsWith(SEGMENT_PREFIX) && file.substring(SEGMENT_PREFIX.length()).matches("[0-9]+")) {
+                    result.add(Long.parseLong(file.substring(SEGMENT_PREFIX.length())));
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    public static void deleteSegmentsBefore(File directory, long segment) throws IOException {
+        for (Long currSegment : findSegments(directory)) {
+            if (currSegment < segment) {
+                Files.deleteIfExists(getSegmentFile(directory, currSegment).toPath());
+            }
+        }
+    }
+
+    /**
+     * Writes the record with its length and checksum
+     */
+
+    public static void writeRecord(DataOutputStream dos, byte[] record) throws IOException {
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+        dos.writeInt(record.length);
+        dos.writeInt((int) checksum.getValue());
+        dos.write(record);
+    }
+
+    /**
+     * Reads the complete records of a segment, in the order they were appended
+     */
+
+    public static List<byte[]> readRecords(File segmentFile) throws IOException {
+        return readRecords(ByteBuffer.wrap(Files.readAllBytes(segmentFile.toPath())));
+    }
+
+    /**
+     * Reads the complete records from the position of the buffer
+     */
+
+    public static List<byte[]> readRecords(ByteBuffer contents) {
+        List<byte[]> result = new ArrayList<>();
+        while (contents.remaining() >= RECORD_HEADER_SIZE) {
+            int length = contents.getInt();
+            int expectedChecksum = contents.getInt();
+            if (length < 0 || length > contents.remaining()) {
+                break; //last record was not written completely
+            }
+            byte[] record = new byte[length];
+            contents.get(record);
+            CRC32 checksum = new CRC32();
+            checksum.update(record);
+            if ((int) checksum.getValue() != expectedChecksum) {
+                break;
+            }
+            result.add(record);
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,105 @@
+package be.bagofwords.main.tests.sort;
+
+import be.bagofwords.db.DBUtils;
+import be.bagofwords.db.RadixSort;
+import be.bagofwords.db.combinator.LongCombinator;
+import be.bagofwords.ui.UI;
+import be.bagofwords.util.KeyValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the ways to sort and combine the values of a file when it is rewritten: sorting KeyValue objects in buckets
+ * of key ranges, radix sorting the keys with a permutation of the values and radix sorting primitive keys and values.
+ */
+
+public class TestSortAndCombineSpeed {
+
+    private static final int NUM_OF_VALUES = 2000000;
+    private static final int NUM_OF_ITERATIONS = 5;
+
+    public static void main(String[] args) {
+        Random random = new Random(1204);
+        long[] keys = new long[NUM_OF_VALUES];
+        long[] values = new long[NUM_OF_VALUES];
+        for (int i = 0; i < NUM_OF_VALUES; i++) {
+            //keys are hashes, about a third of the values are written to a key that was already written
+            keys[i] = i > 0 && i % 3 == 0 ? keys[random.nextInt(i)] : random.nextLong();
+            values[i] = random.nextInt(100);
+        }
+        for (int iteration = 0; iteration < NUM_OF_ITERATIONS; iteration++) {
+            UI.write("Iteration " + iteration);
+            UI.write("Sorting KeyValue objects in buckets took " + sortObjectsInBuckets(keys, values) + " ms");
+            UI.write("Radix sorting keys with a permutation of the values took " + radixSortWithPermutation(keys, values) + " ms");
+            UI.write("Radix sorting primitive keys and values took " + radixSortPrimitives(keys, values) + " ms");
+        }
+    }
+
+    private static long sortObjectsInBuckets(long[] keys, long[] values) {
+        long start = System.currentTimeMillis();
+        int numberOfBuckets = Math.max(1, NUM_OF_VALUES / 1000);
+        List[] buckets = new List[numberOfBuckets];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayList(NUM_OF_VALUES / numberOfBuckets);
+        }
+        long density = Long.MAX_VALUE / numberOfBuckets * 2;
+        for (int i = 0; i < NUM_OF_VALUES; i++) {
+            int bucketInd = (int) ((keys[i] / density) + numberOfBuckets / 2);
+            bucketInd = Math.max(0, Math.min(numberOfBuckets - 1, bucketInd));
+            buckets[bucketInd].add(new KeyValue<>(keys[i], values[i]));
+        }
+        List<KeyValue<Long>> result = new ArrayList<>(NUM_OF_VALUES);
+        for (List bucket : buckets) {
+            DBUtils.mergeValues(result, (List<KeyValue<Long>>) bucket, new LongCombinator());
+        }
+        checkResult(result.size(), result.get(result.size() - 1).getKey());
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long radixSortWithPermutation(long[] keys, long[] values) {
+        long start = System.currentTimeMillis();
+        List<Long> boxedValues = new ArrayList<>(NUM_OF_VALUES);
+        for (int i = 0; i < NUM_OF_VALUES; i++) {
+            boxedValues.add(values[i]);
+        }
+        List<KeyValue<Long>> result = new ArrayList<>(NUM_OF_VALUES);
+        DBUtils.mergeValues(result, keys, boxedValues, new LongCombinator());
+        checkResult(result.size(), result.get(result.size() - 1).getKey());
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long radixSortPrimitives(long[] keys, long[] values) {
+        long start = System.currentTimeMillis();
+        long[] sortedKeys = keys.clone();
+        long[] sortedValues = values.clone();
+        RadixSort.sort(sortedKeys, sortedValues, 0, NUM_OF_VALUES, new long[NUM_OF_VALUES], new long[NUM_OF_VALUES]);
+        LongCombinator combinator = new LongCombinator();
+        int numOfResults = 0;
+        for (int i = 0; i < NUM_OF_VALUES; i++) {
+            if (numOfResults > 0 && sortedKeys[numOfResults - 1] == sortedKeys[i]) {
+                sortedValues[numOfResults - 1] = combinator.combinePrimitive(sortedValues[numOfResults - 1], sortedValues[i]);
+            } else {
+                sortedKeys[numOfResults] = sortedKeys[i];
+                sortedValues[numOfResults] = sortedValues[i];
+                numOfResults++;
+            }
+        }
+        checkResult(numOfResults, sortedKeys[numOfResults - 1]);
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long expectedSize = -1;
+    private static long expectedLastKey;
+
+    private static void checkResult(long size, long lastKey) {
+        if (expectedSize == -1) {
+            expectedSize = size;
+            expectedLastKey = lastKey;
+        } else if (expectedSize != size || expectedLastKey != lastKey) {
+            throw new RuntimeException("Sorting methods have different results: " + size + " " + lastKey + " versus " + expectedSize + " " + expectedLastKey);
+        }
+    }
+
+}
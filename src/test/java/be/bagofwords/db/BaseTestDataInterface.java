@@ -4,6 +4,7 @@ import be.bagofwords.application.ApplicationContext;
 import be.bagofwords.application.MinimalApplicationContextFactory;
 import be.bagofwords.db.combinator.LongCombinator;
 import be.bagofwords.db.filedb.FileDataInterfaceFactory;
+import be.bagofwords.db.filedb.FileDataInterfaceSettings;
 import be.bagofwords.db.helper.DataInterfaceFactoryFactory;
 import be.bagofwords.db.remote.RemoteDataInterfaceServer;
 import org.junit.After;
@@ -13,14 +14,18 @@ import org.junit.runners.Parameterized;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Koen Deschacht (koendeschacht@gmail.com) on 9/11/14.
  */
 public class BaseTestDataInterface {
 
-    @Parameterized.Parameters(name = "{0} {1}")
+    private static final String DEFAULT_SETTINGS = "default";
+
+    @Parameterized.Parameters(name = "{0} {1} {2}")
     public static List<Object[]> getManagers() throws IOException {
         List<Object[]> result = new ArrayList<>();
 
@@ -34,22 +39,70 @@ public class BaseTestDataInterface {
         backendTypes.add(DatabaseBackendType.ROCKSDB);
 
         for (DatabaseBackendType backendType : backendTypes) {
-            result.add(new Object[]{DatabaseCachingType.CACHED_AND_BLOOM, backendType});
-            result.add(new Object[]{DatabaseCachingType.CACHED, backendType});
-            result.add(new Object[]{DatabaseCachingType.DIRECT, backendType});
+            result.add(new Object[]{DatabaseCachingType.CACHED_AND_BLOOM, backendType, DEFAULT_SETTINGS});
+            result.add(new Object[]{DatabaseCachingType.CACHED, backendType, DEFAULT_SETTINGS});
+            result.add(new Object[]{DatabaseCachingType.DIRECT, backendType, DEFAULT_SETTINGS});
+        }
+        for (String fileSettings : getSettingsOfFileBackend().keySet()) {
+            result.add(new Object[]{DatabaseCachingType.CACHED_AND_BLOOM, DatabaseBackendType.FILE, fileSettings});
+            result.add(new Object[]{DatabaseCachingType.CACHED, DatabaseBackendType.FILE, fileSettings});
+            result.add(new Object[]{DatabaseCachingType.DIRECT, DatabaseBackendType.FILE, fileSettings});
         }
         return result;
     }
 
+    /**
+     * Settings of the file backend that are tested besides the default settings
+     */
+
+    private static Map<String, FileDataInterfaceSettings> getSettingsOfFileBackend() {
+        Map<String, FileDataInterfaceSettings> result = new LinkedHashMap<>();
+        FileDataInterfaceSettings memoryMappedFiles = new FileDataInterfaceSettings();
+        memoryMappedFiles.setUseMemoryMappedFiles(true);
+        result.put("memory_mapped_files", memoryMappedFiles);
+        FileDataInterfaceSettings compression = new FileDataInterfaceSettings();
+        compression.setUseCompression(true);
+        compression.setIndexBlockSize(256);
+        result.put("compression", compression);
+        FileDataInterfaceSettings deltaEncoding = new FileDataInterfaceSettings();
+        deltaEncoding.setDeltaEncodeKeys(true);
+        deltaEncoding.setIndexBlockSize(256);
+        result.put("delta_encoding", deltaEncoding);
+        FileDataInterfaceSettings fileBloomFilters = new FileDataInterfaceSettings();
+        fileBloomFilters.setUseBloomFilters(true);
+        result.put("file_bloom_filters", fileBloomFilters);
+        FileDataInterfaceSettings memTables = new FileDataInterfaceSettings();
+        memTables.setMemTableSize(100);
+        result.put("mem_tables", memTables);
+        FileDataInterfaceSettings writeThreads = new FileDataInterfaceSettings();
+        writeThreads.setWriteThreads(4);
+        result.put("write_threads", writeThreads);
+        FileDataInterfaceSettings bucketSplits = new FileDataInterfaceSettings();
+        bucketSplits.setMaxFilesPerBucket(2);
+        result.put("bucket_splits", bucketSplits);
+        FileDataInterfaceSettings writeAheadLog = new FileDataInterfaceSettings();
+        writeAheadLog.setUseWriteAheadLog(true);
+        result.put("write_ahead_log", writeAheadLog);
+        FileDataInterfaceSettings lazyOpen = new FileDataInterfaceSettings();
+        lazyOpen.setLazyOpen(true);
+        result.put("lazy_open", lazyOpen);
+        FileDataInterfaceSettings keySketches = new FileDataInterfaceSettings();
+        keySketches.setUseKeySketches(true);
+        result.put("key_sketches", keySketches);
+        return result;
+    }
+
     private DatabaseBackendType backendType;
+    private String fileSettings;
     protected DatabaseCachingType type;
     protected DataInterfaceFactory dataInterfaceFactory;
 
     private RemoteDataInterfaceServer remoteDataInterfaceServer; //only created for remote backend
     private FileDataInterfaceFactory dataInterfaceServerFactory; //only created for remote backend
 
-    public BaseTestDataInterface(DatabaseCachingType type, DatabaseBackendType backendType) throws Exception {
+    public BaseTestDataInterface(DatabaseCachingType type, DatabaseBackendType backendType, String fileSettings) throws Exception {
         this.backendType = backendType;
+        this.fileSettings = fileSettings;
         this.type = type;
     }
 
@@ -63,6 +116,9 @@ public class BaseTestDataInterface {
         ApplicationContext context = new MinimalApplicationContextFactory().createApplicationContext(config);
         DataInterfaceFactoryFactory dataInterfaceFactoryFactory = new DataInterfaceFactoryFactory(context);
         dataInterfaceFactory = dataInterfaceFactoryFactory.createFactory(backendType);
+        if (!fileSettings.equals(DEFAULT_SETTINGS)) {
+            ((FileDataInterfaceFactory) dataInterfaceFactory).setSettings(getSettingsOfFileBackend().get(fileSettings));
+        }
         if (backendType == DatabaseBackendType.REMOTE) {
             dataInterfaceServerFactory = new FileDataInterfaceFactory(context);
             context.registerBean(dataInterfaceServerFactory);
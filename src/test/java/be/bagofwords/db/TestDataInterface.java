@@ -15,8 +15,8 @@ import java.util.*;
 @RunWith(Parameterized.class)
 public class TestDataInterface extends BaseTestDataInterface {
 
-    public TestDataInterface(DatabaseCachingType type, DatabaseBackendType backendType) throws Exception {
-        super(type, backendType);
+    public TestDataInterface(DatabaseCachingType type, DatabaseBackendType backendType, String fileSettings) throws Exception {
+        super(type, backendType, fileSettings);
     }
 
     @Test
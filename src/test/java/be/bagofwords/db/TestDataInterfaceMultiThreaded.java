@@ -17,8 +17,8 @@ import java.util.Random;
 @RunWith(Parameterized.class)
 public class TestDataInterfaceMultiThreaded extends BaseTestDataInterface {
 
-    public TestDataInterfaceMultiThreaded(DatabaseCachingType type, DatabaseBackendType backendType) throws Exception {
-        super(type, backendType);
+    public TestDataInterfaceMultiThreaded(DatabaseCachingType type, DatabaseBackendType backendType, String fileSettings) throws Exception {
+        super(type, backendType, fileSettings);
     }
 
     @Test
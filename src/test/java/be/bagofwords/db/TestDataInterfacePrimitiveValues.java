@@ -16,8 +16,8 @@ import org.junit.runners.Parameterized;
 @RunWith(Parameterized.class)
 public class TestDataInterfacePrimitiveValues extends BaseTestDataInterface {
 
-    public TestDataInterfacePrimitiveValues(DatabaseCachingType type, DatabaseBackendType backendType) throws Exception {
-        super(type, backendType);
+    public TestDataInterfacePrimitiveValues(DatabaseCachingType type, DatabaseBackendType backendType, String fileSettings) throws Exception {
+        super(type, backendType, fileSettings);
     }
 
     @Test
@@ -0,0 +1,43 @@
+package be.bagofwords.db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestRadixSort {
+
+    @Test
+    public void testSameResultAsArraysSort() {
+        Random random = new Random(1204);
+        for (int size : new int[]{0, 1, 10, 64, 65, 1000, 100000}) {
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = i % 4 == 0 ? random.nextInt(100) - 50 : random.nextLong();
+            }
+            long[] expected = keys.clone();
+            Arrays.sort(expected);
+            long[] values = new long[size];
+            RadixSort.sort(keys, values, 0, size, new long[size], new long[size]);
+            Assert.assertArrayEquals(expected, keys);
+        }
+    }
+
+    @Test
+    public void testStableOrder() {
+        Random random = new Random(1204);
+        long[] keys = new long[10000];
+        for (int i = 0; i < keys.length; i++) {
+            //keys with the same first bytes, like the keys of one file
+            keys[i] = (7L << 50) + random.nextInt(500);
+        }
+        int[] order = RadixSort.sortedOrder(keys, keys.length);
+        for (int i = 1; i < order.length; i++) {
+            long previousKey = keys[order[i - 1]];
+            long key = keys[order[i]];
+            Assert.assertTrue(previousKey < key || (previousKey == key && order[i - 1] < order[i]));
+        }
+    }
+
+}
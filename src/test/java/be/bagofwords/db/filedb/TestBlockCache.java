@@ -0,0 +1,119 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.application.MinimalApplicationContextFactory;
+import be.bagofwords.application.memory.MemoryManager;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+public class TestBlockCache {
+
+    private static final int BLOCK_SIZE = 100;
+
+    private MemoryManager memoryManager;
+
+    @Before
+    public void setUp() {
+        memoryManager = new MinimalApplicationContextFactory().createApplicationContext(new HashMap<>()).getBean(MemoryManager.class);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        BlockCache blockCache = new BlockCache(memoryManager, 10 * BLOCK_SIZE);
+        FileInfo file = new FileInfo(0, 0, 0);
+        blockCache.put(file, 0, createBlock(1));
+        blockCache.put(file, BLOCK_SIZE, createBlock(2));
+        blockCache.put(file, 0, createBlock(3)); //already cached
+        assertCached(blockCache, file, 0, 1);
+        assertCached(blockCache, file, BLOCK_SIZE, 2);
+        Assert.assertNull(blockCache.get(file, 2 * BLOCK_SIZE));
+        Assert.assertNull(blockCache.get(new FileInfo(0, 0, 0), 0));
+        Assert.assertEquals(2 * BLOCK_SIZE, blockCache.getMemoryUsage());
+    }
+
+    @Test
+    public void testEviction() {
+        BlockCache blockCache = new BlockCache(memoryManager, 3 * BLOCK_SIZE);
+        FileInfo file = new FileInfo(0, 0, 0);
+        for (int i = 0; i < 3; i++) {
+            blockCache.put(file, i * BLOCK_SIZE, createBlock(i));
+        }
+        blockCache.get(file, 0);
+        //the first block was read, so it gets a second chance and the second block is evicted
+        blockCache.put(file, 3 * BLOCK_SIZE, createBlock(3));
+        assertCached(blockCache, file, 0, 0);
+        Assert.assertNull(blockCache.get(file, BLOCK_SIZE));
+        assertCached(blockCache, file, 2 * BLOCK_SIZE, 2);
+        assertCached(blockCache, file, 3 * BLOCK_SIZE, 3);
+        Assert.assertEquals(3 * BLOCK_SIZE, blockCache.getMemoryUsage());
+        //blocks that are larger than the cache are not cached
+        blockCache.put(file, 4 * BLOCK_SIZE, new byte[4 * BLOCK_SIZE]);
+        Assert.assertNull(blockCache.get(file, 4 * BLOCK_SIZE));
+        Assert.assertEquals(3 * BLOCK_SIZE, blockCache.getMemoryUsage());
+    }
+
+    @Test
+    public void testRemoveBlocks() {
+        BlockCache blockCache = new BlockCache(memoryManager, 4 * BLOCK_SIZE);
+        FileInfo removedFile = new FileInfo(0, 0, 0);
+        FileInfo otherFile = new FileInfo(1000, 0, 0);
+        for (int i = 0; i < 2; i++) {
+            blockCache.put(removedFile, i * BLOCK_SIZE, createBlock(i));
+            blockCache.put(otherFile, i * BLOCK_SIZE, createBlock(10 + i));
+        }
+        blockCache.removeBlocks(removedFile);
+        Assert.assertNull(blockCache.get(removedFile, 0));
+        Assert.assertNull(blockCache.get(removedFile, BLOCK_SIZE));
+        assertCached(blockCache, otherFile, 0, 10);
+        assertCached(blockCache, otherFile, BLOCK_SIZE, 11);
+        Assert.assertEquals(2 * BLOCK_SIZE, blockCache.getMemoryUsage());
+        //the removed blocks no longer take up room, so two new blocks fit without evicting the other blocks
+        blockCache.put(removedFile, 0, createBlock(20));
+        blockCache.put(removedFile, BLOCK_SIZE, createBlock(21));
+        assertCached(blockCache, otherFile, 0, 10);
+        assertCached(blockCache, otherFile, BLOCK_SIZE, 11);
+        assertCached(blockCache, removedFile, 0, 20);
+        Assert.assertEquals(4 * BLOCK_SIZE, blockCache.getMemoryUsage());
+        blockCache.removeBlocks(otherFile);
+        blockCache.removeBlocks(removedFile);
+        Assert.assertEquals(0, blockCache.getMemoryUsage());
+        Assert.assertEquals(0, blockCache.freeMemory());
+        blockCache.put(otherFile, 0, createBlock(30));
+        assertCached(blockCache, otherFile, 0, 30);
+    }
+
+    @Test
+    public void testFreeMemory() {
+        BlockCache blockCache = new BlockCache(memoryManager, 10 * BLOCK_SIZE);
+        FileInfo file = new FileInfo(0, 0, 0);
+        for (int i = 0; i < 4; i++) {
+            blockCache.put(file, i * BLOCK_SIZE, createBlock(i));
+        }
+        blockCache.get(file, 0);
+        blockCache.get(file, 3 * BLOCK_SIZE);
+        //half of the cache is released, the blocks that were read are kept
+        Assert.assertEquals(2 * BLOCK_SIZE, blockCache.freeMemory());
+        assertCached(blockCache, file, 0, 0);
+        Assert.assertNull(blockCache.get(file, BLOCK_SIZE));
+        Assert.assertNull(blockCache.get(file, 2 * BLOCK_SIZE));
+        assertCached(blockCache, file, 3 * BLOCK_SIZE, 3);
+        Assert.assertEquals(2 * BLOCK_SIZE, blockCache.getMemoryUsage());
+    }
+
+    private void assertCached(BlockCache blockCache, FileInfo file, int position, int value) {
+        ByteBuffer block = blockCache.get(file, position);
+        Assert.assertNotNull(block);
+        Assert.assertEquals(BLOCK_SIZE, block.remaining());
+        Assert.assertEquals(value, block.get(0));
+    }
+
+    private byte[] createBlock(int value) {
+        byte[] result = new byte[BLOCK_SIZE];
+        result[0] = (byte) value;
+        return result;
+    }
+
+}
@@ -0,0 +1,36 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestFileBucket {
+
+    @Test
+    public void testOptimisticReads() {
+        FileBucket bucket = new FileBucket(0, 100);
+        long stamp = bucket.tryOptimisticRead();
+        Assert.assertTrue(stamp != 0);
+        Assert.assertTrue(bucket.validate(stamp));
+        bucket.lockRead();
+        bucket.unlockRead();
+        Assert.assertTrue(bucket.validate(stamp)); //readers do not invalidate optimistic reads
+        bucket.lockWrite();
+        Assert.assertEquals(0, bucket.tryOptimisticRead());
+        Assert.assertFalse(bucket.validate(stamp));
+        bucket.unlockWrite();
+        Assert.assertFalse(bucket.validate(stamp));
+        Assert.assertTrue(bucket.validate(bucket.tryOptimisticRead()));
+    }
+
+    @Test
+    public void testReentrantWriteLock() {
+        FileBucket bucket = new FileBucket(0, 100);
+        bucket.lockWrite();
+        Assert.assertTrue(bucket.tryLockWrite());
+        bucket.unlockWrite();
+        Assert.assertEquals(0, bucket.tryOptimisticRead()); //still locked by the outer lockWrite()
+        bucket.unlockWrite();
+        Assert.assertTrue(bucket.tryOptimisticRead() != 0);
+    }
+
+}
@@ -0,0 +1,485 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.application.ApplicationContext;
+import be.bagofwords.application.BowTaskScheduler;
+import be.bagofwords.application.MinimalApplicationContextFactory;
+import be.bagofwords.application.memory.MemoryManager;
+import be.bagofwords.db.combinator.Combinator;
+import be.bagofwords.db.combinator.LongCombinator;
+import be.bagofwords.db.combinator.OverWriteCombinator;
+import be.bagofwords.util.KeyValue;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntFunction;
+
+public class TestFileDataInterface {
+
+    private static final long KEY_STEP = 922337203685477L; //spreads the keys over all buckets
+
+    private ApplicationContext context;
+    private CompactionScheduler compactionScheduler;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        context = new MinimalApplicationContextFactory().createApplicationContext(new HashMap<>());
+        compactionScheduler = new CompactionScheduler(2, 0);
+        directory = Files.createTempDirectory("filedb").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        compactionScheduler.close();
+    }
+
+    @Test
+    public void testReadsDuringRewrites() throws Exception {
+        List<FileDataInterfaceSettings> settingsOfReadPaths = createSettingsOfReadPaths();
+        for (int s = 0; s < settingsOfReadPaths.size(); s++) {
+            FileDataInterface<Long> dataInterface = createDataInterface("testReadsDuringRewrites" + s, Long.class, new OverWriteCombinator<>(), settingsOfReadPaths.get(s), directory);
+            int numOfKeys = 20000;
+            List<KeyValue<Long>> values = new ArrayList<>();
+            for (int i = 0; i < numOfKeys; i++) {
+                values.add(new KeyValue<>(i * KEY_STEP, (long) i));
+            }
+            dataInterface.write(values.iterator());
+            dataInterface.optimizeForReading();
+            AtomicBoolean stop = new AtomicBoolean(false);
+            AtomicReference<String> error = new AtomicReference<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                Random random = new Random(t);
+                Thread reader = new Thread(() -> {
+                    while (!stop.get() && error.get() == null) {
+                        int i = random.nextInt(2 * numOfKeys);
+                        Long expected = i < numOfKeys ? Long.valueOf(i) : null;
+                        Long value = dataInterface.read(i * KEY_STEP + (i < numOfKeys ? 0 : 1));
+                        if (expected == null ? value != null : !expected.equals(value)) {
+                            error.compareAndSet(null, "Read " + value + " for key " + i + " instead of " + expected);
+                        }
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+            //the same values are written again, so every rewrite swaps in new files with the same contents
+            Random random = new Random(1);
+            for (int round = 0; round < 20 && error.get() == null; round++) {
+                List<KeyValue<Long>> rewrittenValues = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    int ind = random.nextInt(numOfKeys);
+                    rewrittenValues.add(new KeyValue<>(ind * KEY_STEP, (long) ind));
+                }
+                dataInterface.write(rewrittenValues.iterator());
+                dataInterface.optimizeForReading();
+            }
+            stop.set(true);
+            for (Thread reader : readers) {
+                reader.join(60 * 1000);
+                Assert.assertFalse("Reader did not finish", reader.isAlive());
+            }
+            Assert.assertNull(error.get());
+            dataInterface.close();
+        }
+    }
+
+    @Test
+    public void testOptimizeForReadingFromCompactionThread() throws Exception {
+        //with a single compaction thread, the urgent compactions can not run on the thread that waits for them
+        compactionScheduler.close();
+        compactionScheduler = new CompactionScheduler(1, 0);
+        int numOfKeys = 1000;
+        FileDataInterface<Long> dataInterface = createDataInterface("testOptimizeForReadingFromCompactionThread", Long.class, new LongCombinator(), new FileDataInterfaceSettings(), directory);
+        dataInterface.write(createValues(numOfKeys, 1, i -> 1L).iterator());
+        dataInterface.write(createValues(numOfKeys, 2, i -> 1L).iterator());
+        dataInterface.flush();
+        CountDownLatch optimized = new CountDownLatch(1);
+        compactionScheduler.schedule(dataInterface, 1, () -> {
+            dataInterface.optimizeForReading();
+            optimized.countDown();
+        });
+        Assert.assertTrue(optimized.await(60, TimeUnit.SECONDS));
+        for (int i = 0; i < numOfKeys; i++) {
+            Assert.assertEquals(Long.valueOf(i % 2 == 0 ? 2L : 1L), dataInterface.read(i * KEY_STEP));
+        }
+        dataInterface.close();
+    }
+
+    @Test
+    public void testRecoveryAfterCrash() throws Exception {
+        FileDataInterfaceSettings settings = new FileDataInterfaceSettings();
+        settings.setUseWriteAheadLog(true);
+        //values are written to mem tables, flushing them replaces the files of the last checkpoint
+        settings.setMemTableSize(100);
+        testRecoveryAfterCrash("testRecoveryWithMemTables", settings, true);
+        //values are appended to the files of the last checkpoint
+        settings.setMemTableSize(0);
+        testRecoveryAfterCrash("testRecoveryWithAppendedValues", settings, false);
+    }
+
+    private void testRecoveryAfterCrash(String name, FileDataInterfaceSettings settings, boolean filesAreReplaced) throws Exception {
+        int numOfKeys = 5000;
+        FileDataInterface<Long> dataInterface = createDataInterface(name, Long.class, new LongCombinator(), settings, directory);
+        dataInterface.write(createValues(numOfKeys, 1, i -> 1L).iterator());
+        dataInterface.optimizeForReading(); //checkpoint
+        File crashDirectory = Files.createTempDirectory("filedb").toFile();
+        //the periodic task can not write a checkpoint while the data interface is not closed
+        dataInterface.ifNotClosed(() -> {
+            dataInterface.write(createValues(numOfKeys, 1, i -> 2L).iterator());
+            dataInterface.flush();
+            dataInterface.write(createValues(numOfKeys, 2, i -> i % 10 == 0 ? null : 4L).iterator());
+            try {
+                copyDirectory(new File(directory, name), new File(crashDirectory, name));
+            } catch (IOException exp) {
+                throw new RuntimeException(exp);
+            }
+        });
+        dataInterface.close();
+        String[] crashedFiles = new File(crashDirectory, name).list();
+        Assert.assertTrue(Arrays.asList(crashedFiles).contains("LOCK"));
+        Assert.assertEquals(filesAreReplaced, Arrays.stream(crashedFiles).anyMatch(file -> file.startsWith("ckpt.")));
+        FileDataInterface<Long> recoveredDataInterface = createDataInterface(name, Long.class, new LongCombinator(), settings, crashDirectory);
+        for (int i = 0; i < numOfKeys; i++) {
+            Long expected = i % 10 == 0 ? null : i % 2 == 0 ? 7L : 3L;
+            Assert.assertEquals("Value of key " + i, expected, recoveredDataInterface.read(i * KEY_STEP));
+        }
+        recoveredDataInterface.close();
+    }
+
+    @Test
+    public void testRecoveryWithoutMetaInformation() throws Exception {
+        List<FileDataInterfaceSettings> settingsOfReadPaths = createSettingsOfReadPaths();
+        for (int s = 0; s < settingsOfReadPaths.size(); s++) {
+            String name = "testRecoveryWithoutMetaInformation" + s;
+            int numOfKeys = 5000;
+            FileDataInterface<Long> dataInterface = createDataInterface(name, Long.class, new LongCombinator(), settingsOfReadPaths.get(s), directory);
+            dataInterface.write(createValues(numOfKeys, 1, i -> 1L).iterator());
+            dataInterface.optimizeForReading();
+            File crashDirectory = Files.createTempDirectory("filedb").toFile();
+            dataInterface.ifNotClosed(() -> {
+                //appended after the clean part of the files
+                dataInterface.write(createValues(numOfKeys, 3, i -> 2L).iterator());
+                dataInterface.flush();
+                try {
+                    copyDirectory(new File(directory, name), new File(crashDirectory, name));
+                } catch (IOException exp) {
+                    throw new RuntimeException(exp);
+                }
+            });
+            dataInterface.close();
+            File recoveredDirectory = new File(crashDirectory, name);
+            for (String metaFile : new String[]{"META_SNAPSHOT", "META_JOURNAL", "META_FILE"}) {
+                Files.deleteIfExists(new File(recoveredDirectory, metaFile).toPath());
+            }
+            Map<String, Long> sizesOfFiles = getSizesOfDataFiles(recoveredDirectory);
+            FileDataInterface<Long> recoveredDataInterface = createDataInterface(name, Long.class, new LongCombinator(), settingsOfReadPaths.get(s), crashDirectory);
+            for (int i = 0; i < numOfKeys; i++) {
+                Assert.assertEquals("Value of key " + i, Long.valueOf(i % 3 == 0 ? 3L : 1L), recoveredDataInterface.read(i * KEY_STEP));
+            }
+            //the recovered files are indexed when they are first read, not rewritten
+            Assert.assertEquals(sizesOfFiles, getSizesOfDataFiles(recoveredDirectory));
+            recoveredDataInterface.close();
+        }
+    }
+
+    private Map<String, Long> getSizesOfDataFiles(File directory) {
+        Map<String, Long> result = new HashMap<>();
+        for (File file : directory.listFiles()) {
+            if (file.getName().matches("-?[0-9]+")) {
+                result.put(file.getName(), file.length());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        int numOfKeys = 10000;
+        FileDataInterface<Long> dataInterface = createDataInterface("testBulkLoad", Long.class, new LongCombinator(), new FileDataInterfaceSettings(), directory);
+        dataInterface.write(createValues(numOfKeys, 2, i -> 1L).iterator());
+        List<KeyValue<Long>> entries = new ArrayList<>();
+        for (int i = 0; i < numOfKeys; i++) {
+            entries.add(new KeyValue<>(i * KEY_STEP, 10L));
+            if (i % 3 == 0) {
+                entries.add(new KeyValue<>(i * KEY_STEP, 100L)); //duplicate keys are combined
+            }
+            if (i % 7 == 0) {
+                entries.add(new KeyValue<>(i * KEY_STEP, null)); //deletes the key, also in the files
+            }
+        }
+        dataInterface.bulkLoad(entries.iterator());
+        for (int i = 0; i < numOfKeys; i++) {
+            Long expected = i % 7 == 0 ? null : (i % 2 == 0 ? 1L : 0L) + 10L + (i % 3 == 0 ? 100L : 0L);
+            Assert.assertEquals("Value of key " + i, expected, dataInterface.read(i * KEY_STEP));
+        }
+        dataInterface.close();
+    }
+
+    @Test
+    public void testBulkLoadOfSeveralFiles() throws Exception {
+        String name = "testBulkLoadOfSeveralFiles";
+        FileDataInterface<String> dataInterface = createDataInterface(name, String.class, new OverWriteCombinator<>(), new FileDataInterfaceSettings(), directory);
+        //about 30MB in the first bucket, more than the maximum size of one file
+        int numOfLargeValues = 300;
+        char[] chars = new char[100 * 1000];
+        List<KeyValue<String>> entries = new ArrayList<>();
+        for (int i = 0; i < numOfLargeValues; i++) {
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            entries.add(new KeyValue<>((long) i, new String(chars)));
+        }
+        for (int i = 1; i < 100; i++) {
+            entries.add(new KeyValue<>(i * KEY_STEP, "value " + i));
+        }
+        dataInterface.bulkLoad(entries.iterator());
+        boolean firstBucketHasSeveralFiles = Arrays.stream(new File(directory, name).list()).anyMatch(file -> file.matches("[1-9][0-9]*") && Long.parseLong(file) < numOfLargeValues);
+        Assert.assertTrue(firstBucketHasSeveralFiles);
+        //replaces every other value, in all files of the first bucket and in all other buckets
+        entries.clear();
+        for (int i = 0; i < numOfLargeValues; i += 2) {
+            entries.add(new KeyValue<>((long) i, "small value " + i));
+        }
+        for (int i = 1; i < 100; i += 2) {
+            entries.add(new KeyValue<>(i * KEY_STEP, "new value " + i));
+        }
+        dataInterface.bulkLoad(entries.iterator());
+        for (int i = 0; i < numOfLargeValues; i++) {
+            String value = dataInterface.read(i);
+            if (i % 2 == 0) {
+                Assert.assertEquals("small value " + i, value);
+            } else {
+                Assert.assertEquals(chars.length, value.length());
+                Assert.assertEquals('a' + i % 26, value.charAt(0));
+            }
+        }
+        for (int i = 1; i < 100; i++) {
+            Assert.assertEquals((i % 2 == 0 ? "value " : "new value ") + i, dataInterface.read(i * KEY_STEP));
+        }
+        dataInterface.close();
+    }
+
+    @Test
+    public void testBulkLoadOfUnsortedEntries() throws Exception {
+        String name = "testBulkLoadOfUnsortedEntries";
+        int numOfKeys = 1000;
+        FileDataInterface<Long> dataInterface = createDataInterface(name, Long.class, new LongCombinator(), new FileDataInterfaceSettings(), directory);
+        dataInterface.write(createValues(numOfKeys, 1, i -> 1L).iterator());
+        List<KeyValue<Long>> entries = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entries.add(new KeyValue<>((long) i, 1L));
+        }
+        entries.add(new KeyValue<>(50L, 1L));
+        try {
+            dataInterface.bulkLoad(entries.iterator());
+            Assert.fail("Unsorted entries should not be loaded");
+        } catch (IllegalArgumentException exp) {
+            //expected
+        }
+        Assert.assertFalse(Arrays.stream(new File(directory, name).list()).anyMatch(file -> file.startsWith("tmp.")));
+        for (int i = 0; i < numOfKeys; i++) {
+            Assert.assertEquals(Long.valueOf(1L), dataInterface.read(i * KEY_STEP));
+        }
+        dataInterface.close();
+    }
+
+    @Test
+    public void testSizes() throws Exception {
+        FileDataInterfaceSettings settings = new FileDataInterfaceSettings();
+        settings.setMaxFilesPerBucket(2);
+        FileDataInterface<String> dataInterface = createDataInterface("testSizes", String.class, new OverWriteCombinator<>(), settings, directory);
+        int numOfKeys = 5000;
+        Map<Long, String> expected = new HashMap<>();
+        for (int i = 0; i < numOfKeys; i++) {
+            expected.put(i * KEY_STEP, "value " + i);
+        }
+        dataInterface.write(toKeyValues(expected).iterator());
+        dataInterface.flush();
+        //the values are appended to the files
+        assertSizes(expected.size(), dataInterface);
+        dataInterface.optimizeForReading();
+        assertSizes(expected.size(), dataInterface);
+        //updates and deletes are appended, so the approximate size is an upper bound until the files are rewritten
+        Map<Long, String> changes = new HashMap<>();
+        for (int i = 0; i < numOfKeys; i += 3) {
+            changes.put(i * KEY_STEP, i % 2 == 0 ? null : "new value " + i);
+        }
+        dataInterface.write(toKeyValues(changes).iterator());
+        dataInterface.flush();
+        changes.forEach((key, value) -> {
+            if (value == null) {
+                expected.remove(key);
+            } else {
+                expected.put(key, value);
+            }
+        });
+        Assert.assertEquals(expected.size(), dataInterface.exactSize());
+        Assert.assertTrue(dataInterface.apprSize() >= expected.size());
+        dataInterface.optimizeForReading();
+        assertSizes(expected.size(), dataInterface);
+        //about 25MB in the first bucket, so rewriting it creates three files and the bucket is split
+        int numOfBuckets = dataInterface.getNumOfBuckets();
+        char[] chars = new char[100 * 1000];
+        Map<Long, String> largeValues = new HashMap<>();
+        for (int i = 1; i <= 250; i++) {
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            largeValues.put((long) i, new String(chars));
+        }
+        dataInterface.write(toKeyValues(largeValues).iterator());
+        dataInterface.optimizeForReading();
+        expected.putAll(largeValues);
+        long endOfWait = System.currentTimeMillis() + 10 * 1000;
+        while (dataInterface.getNumOfBuckets() == numOfBuckets && System.currentTimeMillis() < endOfWait) {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue(dataInterface.getNumOfBuckets() > numOfBuckets);
+        assertSizes(expected.size(), dataInterface);
+        //values written to the split buckets are counted in their files
+        dataInterface.write(toKeyValues(Collections.singletonMap(251L, "value 251")).iterator());
+        dataInterface.flush();
+        assertSizes(expected.size() + 1, dataInterface);
+        dataInterface.close();
+    }
+
+    @Test
+    public void testSizesWithKeySketches() throws Exception {
+        FileDataInterfaceSettings settings = new FileDataInterfaceSettings();
+        settings.setUseKeySketches(true);
+        settings.setMaxFilesPerBucket(2);
+        FileDataInterface<String> dataInterface = createDataInterface("testSizesWithKeySketches", String.class, new OverWriteCombinator<>(), settings, directory);
+        int numOfKeys = 5000;
+        Map<Long, String> expected = new HashMap<>();
+        //the same keys are written again and again, only the sketches of the buckets know that they are not new keys
+        for (int round = 0; round < 5; round++) {
+            Map<Long, String> values = new HashMap<>();
+            for (int i = 0; i < numOfKeys; i++) {
+                values.put(i * KEY_STEP, "value " + i + " " + round);
+            }
+            dataInterface.write(toKeyValues(values).iterator());
+            dataInterface.flush();
+            expected.putAll(values);
+            assertApproximateSize(expected.size(), dataInterface);
+        }
+        dataInterface.optimizeForReading();
+        assertSizes(expected.size(), dataInterface);
+        //the sketches of the bulk loaded files are merged in the sketches of their buckets
+        Map<Long, String> loadedValues = new HashMap<>();
+        for (int i = 0; i < numOfKeys; i += 2) {
+            loadedValues.put(i * KEY_STEP + 1, "loaded value " + i);
+        }
+        dataInterface.bulkLoad(toKeyValues(loadedValues).iterator());
+        expected.putAll(loadedValues);
+        dataInterface.write(toKeyValues(loadedValues).iterator());
+        dataInterface.flush();
+        assertApproximateSize(expected.size(), dataInterface);
+        //about 25MB in the first bucket, so rewriting it creates three files and the bucket is split
+        int numOfBuckets = dataInterface.getNumOfBuckets();
+        char[] chars = new char[100 * 1000];
+        Map<Long, String> largeValues = new HashMap<>();
+        for (int i = 1; i <= 250; i++) {
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            largeValues.put((long) i, new String(chars));
+        }
+        dataInterface.write(toKeyValues(largeValues).iterator());
+        dataInterface.optimizeForReading();
+        expected.putAll(largeValues);
+        long endOfWait = System.currentTimeMillis() + 10 * 1000;
+        while (dataInterface.getNumOfBuckets() == numOfBuckets && System.currentTimeMillis() < endOfWait) {
+            Thread.sleep(100);
+        }
+        Assert.assertTrue(dataInterface.getNumOfBuckets() > numOfBuckets);
+        //the split buckets have the sketches of their files
+        Map<Long, String> smallValues = new HashMap<>();
+        for (int i = 1; i <= 250; i++) {
+            smallValues.put((long) i, "small value " + i);
+        }
+        for (int round = 0; round < 5; round++) {
+            dataInterface.write(toKeyValues(smallValues).iterator());
+            dataInterface.write(toKeyValues(loadedValues).iterator());
+            dataInterface.flush();
+            assertApproximateSize(expected.size(), dataInterface);
+        }
+        Assert.assertEquals(expected.size(), dataInterface.exactSize());
+        dataInterface.close();
+    }
+
+    /**
+     * The sketch of a bucket has a relative standard error of about 3%, the errors of the buckets partly cancel out
+     */
+
+    private void assertApproximateSize(long expectedSize, FileDataInterface<?> dataInterface) {
+        long size = dataInterface.apprSize();
+        Assert.assertTrue("Approximate size " + size + " instead of " + expectedSize, Math.abs(size - expectedSize) <= expectedSize / 20);
+    }
+
+    private void assertSizes(long expectedSize, FileDataInterface<?> dataInterface) {
+        Assert.assertEquals(expectedSize, dataInterface.exactSize());
+        Assert.assertEquals(expectedSize, dataInterface.apprSize());
+    }
+
+    private <T> List<KeyValue<T>> toKeyValues(Map<Long, T> values) {
+        List<KeyValue<T>> result = new ArrayList<>();
+        values.forEach((key, value) -> result.add(new KeyValue<>(key, value)));
+        result.sort(Comparator.comparingLong(KeyValue::getKey));
+        return result;
+    }
+
+    private List<KeyValue<Long>> createValues(int numOfKeys, int step, IntFunction<Long> value) {
+        List<KeyValue<Long>> result = new ArrayList<>();
+        for (int i = 0; i < numOfKeys; i += step) {
+            result.add(new KeyValue<>(i * KEY_STEP, value.apply(i)));
+        }
+        return result;
+    }
+
+    private void copyDirectory(File source, File target) throws IOException {
+        Assert.assertTrue(target.mkdirs());
+        for (File file : source.listFiles()) {
+            Files.copy(file.toPath(), new File(target, file.getName()).toPath());
+        }
+    }
+
+    /**
+     * Settings for the different ways a value is found in a clean file: fixed width pages, memory mapped fixed width
+     * records, compressed blocks and memory mapped (delta encoded) blocks
+     */
+
+    private List<FileDataInterfaceSettings> createSettingsOfReadPaths() {
+        List<FileDataInterfaceSettings> result = new ArrayList<>();
+        FileDataInterfaceSettings settings = new FileDataInterfaceSettings();
+        settings.setIndexBlockSize(256);
+        result.add(settings.copy());
+        settings.setUseMemoryMappedFiles(true);
+        result.add(settings.copy());
+        settings.setDeltaEncodeKeys(true);
+        result.add(settings.copy());
+        settings.setUseMemoryMappedFiles(false);
+        settings.setUseCompression(true);
+        settings.setUseBloomFilters(true);
+        result.add(settings.copy());
+        return result;
+    }
+
+    private <T> FileDataInterface<T> createDataInterface(String name, Class<T> objectClass, Combinator<T> combinator, FileDataInterfaceSettings settings, File directory) {
+        MemoryManager memoryManager = context.getBean(MemoryManager.class);
+        BlockCache blockCache = new BlockCache(memoryManager, 16 * 1024 * 1024);
+        return new FileDataInterface<>(memoryManager, combinator, objectClass, directory.getAbsolutePath(), name, false, context.getBean(BowTaskScheduler.class), settings, blockCache, compactionScheduler);
+    }
+
+}
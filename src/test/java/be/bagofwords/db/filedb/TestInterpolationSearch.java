@@ -0,0 +1,113 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+public class TestInterpolationSearch {
+
+    @Test
+    public void testUniformKeys() {
+        Random random = new Random(1204);
+        long[] keys = createSortedKeys(random, 100000, false);
+        checkSameResultAsBinarySearch(keys, random);
+    }
+
+    @Test
+    public void testSkewedKeys() {
+        Random random = new Random(1204);
+        long[] keys = createSortedKeys(random, 100000, true);
+        checkSameResultAsBinarySearch(keys, random);
+    }
+
+    @Test
+    public void testSmallArrays() {
+        Random random = new Random(1204);
+        for (int size = 0; size < 10; size++) {
+            long[] keys = createSortedKeys(random, size, false);
+            checkSameResultAsBinarySearch(keys, random);
+        }
+        long[] extremes = new long[]{Long.MIN_VALUE, -1, 0, 1, Long.MAX_VALUE};
+        checkSameResultAsBinarySearch(extremes, random);
+    }
+
+    @Test
+    public void testFixedWidthRecords() {
+        Random random = new Random(1204);
+        int recordSize = 12;
+        int start = 5;
+        long[] keys = createSortedKeys(random, 10000, false);
+        ByteBuffer buffer = ByteBuffer.allocate(start + keys.length * recordSize);
+        for (int i = 0; i < keys.length; i++) {
+            buffer.putLong(start + i * recordSize, keys[i]);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            Assert.assertEquals(i, InterpolationSearch.searchFixedWidth(buffer, start, keys.length, recordSize, keys[i]));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            Assert.assertEquals(Arrays.binarySearch(keys, key), InterpolationSearch.searchFixedWidth(buffer, start, keys.length, recordSize, key));
+        }
+    }
+
+    @Test
+    public void testFixedWidthRecordsInFile() throws IOException {
+        Random random = new Random(1204);
+        int recordSize = 12;
+        long[] keys = createSortedKeys(random, 1000, false);
+        ByteBuffer buffer = ByteBuffer.allocate(keys.length * recordSize);
+        for (int i = 0; i < keys.length; i++) {
+            buffer.putLong(i * recordSize, keys[i]);
+        }
+        File file = File.createTempFile("interpolationSearch", ".bin");
+        try {
+            Files.write(file.toPath(), buffer.array());
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                for (int i = 0; i < keys.length; i++) {
+                    Assert.assertEquals(i, InterpolationSearch.searchFixedWidth(channel, 0, keys.length, recordSize, keys[i]));
+                }
+                for (int i = 0; i < 1000; i++) {
+                    long key = random.nextLong();
+                    Assert.assertEquals(Arrays.binarySearch(keys, key), InterpolationSearch.searchFixedWidth(channel, 0, keys.length, recordSize, key));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void checkSameResultAsBinarySearch(long[] keys, Random random) {
+        for (long key : keys) {
+            Assert.assertEquals(Arrays.binarySearch(keys, key), InterpolationSearch.search(keys, key));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            Assert.assertEquals(Arrays.binarySearch(keys, key), InterpolationSearch.search(keys, key));
+        }
+    }
+
+    private long[] createSortedKeys(Random random, int numOfKeys, boolean skewed) {
+        long[] keys = new long[numOfKeys];
+        for (int i = 0; i < numOfKeys; i++) {
+            keys[i] = skewed ? (long) Math.pow(random.nextInt(1000000), 3) : random.nextLong();
+        }
+        Arrays.sort(keys);
+        //remove duplicates
+        int numOfUniqueKeys = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[numOfUniqueKeys++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, numOfUniqueKeys);
+    }
+
+}
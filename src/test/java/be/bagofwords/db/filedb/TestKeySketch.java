@@ -0,0 +1,47 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class TestKeySketch {
+
+    @Test
+    public void testEstimate() {
+        for (int numOfKeys : new int[]{0, 10, 1000, 100000}) {
+            KeySketch sketch = new KeySketch();
+            Random random = new Random(numOfKeys);
+            for (int i = 0; i < numOfKeys; i++) {
+                long key = random.nextLong();
+                sketch.add(key);
+                sketch.add(key); //duplicates are not counted
+            }
+            Assert.assertEquals(numOfKeys, sketch.estimate(), Math.max(1, numOfKeys * 0.1));
+        }
+    }
+
+    @Test
+    public void testSequentialKeys() {
+        KeySketch sketch = new KeySketch();
+        for (int i = 0; i < 50000; i++) {
+            sketch.add(i * 1024L);
+        }
+        Assert.assertEquals(50000, sketch.estimate(), 5000);
+    }
+
+    @Test
+    public void testMerge() {
+        KeySketch first = new KeySketch();
+        KeySketch second = new KeySketch();
+        for (int i = 0; i < 20000; i++) {
+            first.add(i);
+            second.add(i + 10000);
+        }
+        KeySketch union = KeySketch.fromRegisters(first.getRegisters().clone());
+        union.merge(second);
+        Assert.assertEquals(30000, union.estimate(), 3000);
+        Assert.assertEquals(20000, first.estimate(), 2000);
+    }
+
+}
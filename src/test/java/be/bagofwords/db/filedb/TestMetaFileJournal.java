@@ -0,0 +1,78 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestMetaFileJournal {
+
+    @Test
+    public void testChangesAreAppliedToSnapshot() throws IOException {
+        File directory = Files.createTempDirectory("meta").toFile();
+        List<FileBucket> buckets = createBuckets();
+        MetaFileJournal journal = new MetaFileJournal(directory);
+        journal.write(new FileDataInterface.MetaFile(buckets, 1, 2, 0), false);
+
+        FileInfo appendedFile = buckets.get(0).getFiles().get(1);
+        appendedFile.increaseWriteSize(10);
+        journal.fileWasAppended(appendedFile);
+        FileInfo removedFile = buckets.get(1).getFiles().remove(1);
+        journal.fileWasRemoved(removedFile);
+        FileInfo rewrittenFile = new FileInfo(0, 50, 50);
+        rewrittenFile.setFileLocationsKeys(new long[]{0, 20});
+        rewrittenFile.setFileLocationsLastKeys(new long[]{10, 30});
+        rewrittenFile.setFileLocationsValues(new int[]{0, 25});
+        buckets.get(1).getFiles().set(0, rewrittenFile);
+        journal.fileWasWritten(rewrittenFile);
+        journal.write(new FileDataInterface.MetaFile(buckets, 3, 4, 0), false);
+
+        FileDataInterface.MetaFile metaFile = new MetaFileJournal(directory).read();
+        Assert.assertEquals(3, metaFile.getLastWrite());
+        Assert.assertEquals(4, metaFile.getLastRead());
+        List<FileBucket> readBuckets = metaFile.getFileBuckets();
+        Assert.assertEquals(2, readBuckets.size());
+        Assert.assertEquals(-1, readBuckets.get(0).getLastKey());
+        Assert.assertEquals(2, readBuckets.get(0).getFiles().size());
+        Assert.assertEquals(110, readBuckets.get(0).getFiles().get(1).getWriteSize());
+        Assert.assertEquals(1, readBuckets.get(1).getFiles().size());
+        FileInfo readFile = readBuckets.get(1).getFiles().get(0);
+        Assert.assertEquals(50, readFile.getReadSize());
+        Assert.assertArrayEquals(new long[]{10, 30}, readFile.getFileLocationsLastKeys());
+        Assert.assertArrayEquals(new int[]{0, 25}, readFile.getFileLocationsValues());
+    }
+
+    @Test
+    public void testIncompleteChangesAreIgnored() throws IOException {
+        File directory = Files.createTempDirectory("meta").toFile();
+        List<FileBucket> buckets = createBuckets();
+        MetaFileJournal journal = new MetaFileJournal(directory);
+        journal.write(new FileDataInterface.MetaFile(buckets, 1, 2, 0), false);
+        FileInfo file = buckets.get(0).getFiles().get(0);
+        file.increaseWriteSize(10);
+        journal.fileWasAppended(file);
+        journal.write(new FileDataInterface.MetaFile(buckets, 3, 4, 0), false);
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, "META_JOURNAL"), "rw")) {
+            raf.setLength(raf.length() - 1); //crash while the changes were written
+        }
+        FileDataInterface.MetaFile metaFile = new MetaFileJournal(directory).read();
+        Assert.assertEquals(1, metaFile.getLastWrite());
+        Assert.assertEquals(100, metaFile.getFileBuckets().get(0).getFiles().get(0).getWriteSize());
+    }
+
+    private List<FileBucket> createBuckets() {
+        List<FileBucket> buckets = new ArrayList<>();
+        buckets.add(new FileBucket(Long.MIN_VALUE, -1));
+        buckets.add(new FileBucket(0, Long.MAX_VALUE));
+        buckets.get(0).getFiles().addAll(Arrays.asList(new FileInfo(Long.MIN_VALUE, 100, 100), new FileInfo(-100, 0, 100)));
+        buckets.get(1).getFiles().addAll(Arrays.asList(new FileInfo(0, 0, 100), new FileInfo(100, 0, 100)));
+        return buckets;
+    }
+
+}
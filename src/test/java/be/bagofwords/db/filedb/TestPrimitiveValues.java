@@ -0,0 +1,64 @@
+package be.bagofwords.db.filedb;
+
+import be.bagofwords.db.combinator.LongCombinator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.*;
+
+public class TestPrimitiveValues {
+
+    private static final long NULL_VALUE = Long.MAX_VALUE - 7;
+
+    @Test
+    public void testSortAndCombine() {
+        Random random = new Random(1204);
+        PrimitiveValues values = new PrimitiveValues();
+        Map<Long, Long> expected = new TreeMap<>();
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(20000) - 10000;
+            if (random.nextInt(10) == 0) {
+                values.add(key, NULL_VALUE);
+                expected.remove(key);
+            } else {
+                long value = random.nextInt(100);
+                values.add(key, value);
+                expected.merge(key, value, Long::sum);
+            }
+        }
+        values.sortAndCombine(0, new LongCombinator(), NULL_VALUE);
+        checkValues(values, 0, expected);
+    }
+
+    @Test
+    public void testOnlySortsFromStart() {
+        PrimitiveValues values = new PrimitiveValues();
+        values.add(5, 1);
+        values.add(1, 1);
+        int start = values.size();
+        for (long key = 1000; key > 0; key--) {
+            values.add(key, key);
+            values.add(key, NULL_VALUE);
+            values.add(key, 2);
+        }
+        values.sortAndCombine(start, new LongCombinator(), NULL_VALUE);
+        Assert.assertEquals(5, values.getKey(0));
+        Assert.assertEquals(1, values.getKey(1));
+        Map<Long, Long> expected = new TreeMap<>();
+        for (long key = 1; key <= 1000; key++) {
+            expected.put(key, 2L);
+        }
+        checkValues(values, start, expected);
+    }
+
+    private void checkValues(PrimitiveValues values, int start, Map<Long, Long> expected) {
+        Assert.assertEquals(expected.size(), values.size() - start);
+        int ind = start;
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            Assert.assertEquals(entry.getKey().longValue(), values.getKey(ind));
+            Assert.assertEquals(entry.getValue().longValue(), values.getValue(ind));
+            ind++;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package be.bagofwords.db.filedb;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TestWriteAheadLog {
+
+    @Test
+    public void testRecordsAreReadInOrder() throws IOException {
+        File directory = Files.createTempDirectory("wal").toFile();
+        WriteAheadLog log = new WriteAheadLog(directory, 1, 0);
+        log.waitForSync(log.append(new byte[]{1, 2, 3}));
+        long record = log.append(new byte[]{4});
+        log.append(new byte[0]);
+        log.waitForSync(record);
+        Assert.assertEquals(2, log.startNewSegment());
+        log.append(new byte[]{5});
+        log.close();
+        Assert.assertEquals(Arrays.asList(1L, 2L), WriteAheadLog.findSegments(directory));
+        List<byte[]> records = WriteAheadLog.readRecords(WriteAheadLog.getSegmentFile(directory, 1));
+        Assert.assertEquals(3, records.size());
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, records.get(0));
+        Assert.assertArrayEquals(new byte[]{4}, records.get(1));
+        Assert.assertArrayEquals(new byte[0], records.get(2));
+        Assert.assertEquals(1, WriteAheadLog.readRecords(WriteAheadLog.getSegmentFile(directory, 2)).size());
+        WriteAheadLog.deleteSegmentsBefore(directory, 2);
+        Assert.assertEquals(Arrays.asList(2L), WriteAheadLog.findSegments(directory));
+    }
+
+    @Test
+    public void testIncompleteRecordIsIgnored() throws IOException {
+        File directory = Files.createTempDirectory("wal").toFile();
+        WriteAheadLog log = new WriteAheadLog(directory, 1, 0);
+        log.append(new byte[]{1, 2, 3});
+        log.append(new byte[]{4, 5, 6});
+        log.close();
+        File segment = WriteAheadLog.getSegmentFile(directory, 1);
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 1); //crash while the last record was written
+        }
+        List<byte[]> records = WriteAheadLog.readRecords(segment);
+        Assert.assertEquals(1, records.size());
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, records.get(0));
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        File directory = Files.createTempDirectory("wal").toFile();
+        WriteAheadLog log = new WriteAheadLog(directory, 1, 1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> writes = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            byte value = (byte) i;
+            writes.add(executor.submit(() -> {
+                log.waitForSync(log.append(new byte[]{value}));
+                return null;
+            }));
+        }
+        for (Future<?> write : writes) {
+            write.get();
+        }
+        executor.shutdown();
+        Assert.assertEquals(1000, WriteAheadLog.readRecords(WriteAheadLog.getSegmentFile(directory, 1)).size());
+        log.close();
+    }
+
+}